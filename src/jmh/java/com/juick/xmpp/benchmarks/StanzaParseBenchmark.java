@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.juick.xmpp.benchmarks;
+
+import com.juick.xmpp.ChildParsers;
+import com.juick.xmpp.Iq;
+import com.juick.xmpp.Message;
+import com.juick.xmpp.Presence;
+import com.juick.xmpp.RawChild;
+import com.juick.xmpp.StanzaChild;
+import com.juick.xmpp.extensions.ChatState;
+import com.juick.xmpp.extensions.Delay;
+import com.juick.xmpp.extensions.DiscoInfo;
+import com.juick.xmpp.extensions.MucUser;
+import com.juick.xmpp.extensions.ReceiptsRequest;
+import com.juick.xmpp.utils.Utf8XmlParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message.parse, Presence.parse and Iq.parse with the children a component usually receives,
+ * on a parser which is reused like the one of a stream, either the {@link Utf8XmlParser} streams use
+ * or the one of the {@link XmlPullParserFactory} (kxml2). The children are parsed eagerly or kept as
+ * {@link RawChild}ren, and {@link #messageDelay()} asks for one of them as a router would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StanzaParseBenchmark {
+
+    static final String MESSAGE = "<message xmlns='jabber:client' from='ugnich@juick.com/work' to='juick@juick.com' "
+        + "id='purple5d1a3f40' type='chat'><body>#12345 Привет, this is a reply to the post</body>"
+        + "<active xmlns='http://jabber.org/protocol/chatstates'/><request xmlns='urn:xmpp:receipts'/>"
+        + "<delay xmlns='urn:xmpp:delay' from='juick.com' stamp='2017-02-01T12:00:00Z'>Offline Storage</delay></message>";
+    static final String PRESENCE = "<presence xmlns='jabber:client' from='room@conference.juick.com/ugnich' "
+        + "to='juick@juick.com/bot' id='p1'><show>away</show><priority>5</priority><status>busy</status>"
+        + "<x xmlns='http://jabber.org/protocol/muc#user'><item affiliation='member' role='participant'/>"
+        + "<status code='110'/></x></presence>";
+    static final String IQ = "<iq xmlns='jabber:client' from='juick.com' to='juick@juick.com/bot' id='disco1' type='result'>"
+        + "<query xmlns='http://jabber.org/protocol/disco#info'><identity category='component' type='generic' name='Juick'/>"
+        + "<feature var='http://jabber.org/protocol/disco#info'/><feature var='http://jabber.org/protocol/disco#items'/>"
+        + "<feature var='urn:xmpp:receipts'/><feature var='http://jabber.org/protocol/chatstates'/>"
+        + "<feature var='jabber:iq:version'/><feature var='urn:xmpp:time'/></query></iq>";
+
+    private static final byte[] MESSAGE_BYTES = MESSAGE.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRESENCE_BYTES = PRESENCE.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] IQ_BYTES = IQ.getBytes(StandardCharsets.UTF_8);
+
+    @Param({"utf8", "factory"})
+    public String parserType;
+
+    @Param({"false", "true"})
+    public boolean lazy;
+
+    private XmlPullParser parser;
+    private ChildParsers childParsers;
+
+    @Setup
+    public void setup() throws XmlPullParserException {
+        parser = parserType.equals("utf8") ? new Utf8XmlParser() : XmlPullParserFactory.newInstance().newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        childParsers = ChildParsers.of(new ChatState(), new ReceiptsRequest(), new Delay(), new MucUser(),
+            new DiscoInfo());
+    }
+
+    private XmlPullParser start(final byte[] stanza) throws XmlPullParserException, IOException {
+        parser.setInput(new ByteArrayInputStream(stanza), "UTF-8");
+        parser.nextTag();
+        return parser;
+    }
+
+    @Benchmark
+    public Message message() throws XmlPullParserException, IOException, ParseException {
+        return Message.parse(start(MESSAGE_BYTES), childParsers, lazy);
+    }
+
+    @Benchmark
+    public StanzaChild messageDelay() throws XmlPullParserException, IOException, ParseException {
+        return Message.parse(start(MESSAGE_BYTES), childParsers, lazy).getChild(Delay.XMLNS);
+    }
+
+    @Benchmark
+    public Presence presence() throws XmlPullParserException, IOException, ParseException {
+        return Presence.parse(start(PRESENCE_BYTES), childParsers, lazy);
+    }
+
+    @Benchmark
+    public Iq iq() throws XmlPullParserException, IOException, ParseException {
+        return Iq.parse(start(IQ_BYTES), childParsers, lazy);
+    }
+}
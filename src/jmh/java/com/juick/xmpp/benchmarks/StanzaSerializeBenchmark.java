@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.juick.xmpp.benchmarks;
+
+import com.juick.xmpp.Iq;
+import com.juick.xmpp.Message;
+import com.juick.xmpp.Presence;
+import com.juick.xmpp.extensions.ChatState;
+import com.juick.xmpp.extensions.Delay;
+import com.juick.xmpp.extensions.DiscoInfo;
+import com.juick.xmpp.extensions.MucUser;
+import com.juick.xmpp.extensions.ReceiptsRequest;
+import com.juick.xmpp.utils.XmppWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rocks.xmpp.addr.Jid;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * toString() of each stanza type, next to writeTo(XmppWriter) into a reused buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StanzaSerializeBenchmark {
+
+    private Message message;
+    private Presence presence;
+    private Iq iq;
+    private final XmppWriter writer = new XmppWriter();
+
+    @Setup
+    public void setup() {
+        message = new Message(Jid.of("ugnich@juick.com/work"), Jid.of("juick@juick.com"), Message.Type.chat);
+        message.body = "#12345 Привет, this is a reply to the post";
+        ChatState active = new ChatState();
+        active.setValue(ChatState.State.active);
+        message.addChild(active);
+        message.addChild(new ReceiptsRequest());
+        Delay delay = new Delay();
+        delay.from = Jid.of("juick.com");
+        delay.stamp = "2017-02-01T12:00:00Z";
+        delay.description = "Offline Storage";
+        message.addChild(delay);
+
+        presence = new Presence(Jid.of("room@conference.juick.com/ugnich"), Jid.of("juick@juick.com/bot"));
+        presence.show = "away";
+        presence.priority = 5;
+        presence.status = "busy";
+        MucUser mucUser = new MucUser();
+        mucUser.addStatus(110);
+        presence.addChild(mucUser);
+
+        iq = new Iq(Jid.of("juick.com"), Jid.of("juick@juick.com/bot"));
+        iq.type = Iq.Type.result;
+        DiscoInfo discoInfo = new DiscoInfo();
+        discoInfo.addFeature("http://jabber.org/protocol/disco#info");
+        discoInfo.addFeature("urn:xmpp:receipts");
+        discoInfo.addFeature("http://jabber.org/protocol/chatstates");
+        iq.addChild(discoInfo);
+    }
+
+    @Benchmark
+    public String messageToString() {
+        return message.toString();
+    }
+
+    @Benchmark
+    public String presenceToString() {
+        return presence.toString();
+    }
+
+    @Benchmark
+    public String iqToString() {
+        return iq.toString();
+    }
+
+    @Benchmark
+    public int messageWriteTo() {
+        writer.clear();
+        message.writeTo(writer);
+        return writer.size();
+    }
+
+    @Benchmark
+    public int presenceWriteTo() {
+        writer.clear();
+        presence.writeTo(writer);
+        return writer.size();
+    }
+
+    @Benchmark
+    public int iqWriteTo() {
+        writer.clear();
+        iq.writeTo(writer);
+        return writer.size();
+    }
+}
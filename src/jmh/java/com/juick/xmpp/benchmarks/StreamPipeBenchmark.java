@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.juick.xmpp.benchmarks;
+
+import com.juick.xmpp.Message;
+import com.juick.xmpp.StreamComponent;
+import com.juick.xmpp.StreamComponentServer;
+import com.juick.xmpp.StreamListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import rocks.xmpp.addr.Jid;
+
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A message sent by a component server and received by its component over in-memory pipes,
+ * wired like ComponentTests: serialization, writing, parsing and dispatch in one round.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamPipeBenchmark {
+
+    private ExecutorService executorService;
+    private StreamComponentServer server;
+    private StreamComponent component;
+    private final Semaphore received = new Semaphore(0);
+    private Message message;
+
+    @Setup
+    public void setup() throws Exception {
+        PipedInputStream serverInputStream = new PipedInputStream(65536);
+        PipedOutputStream componentOutputStream = new PipedOutputStream(serverInputStream);
+        PipedInputStream componentInputStream = new PipedInputStream(65536);
+        PipedOutputStream serverOutputStream = new PipedOutputStream(componentInputStream);
+
+        final CountDownLatch ready = new CountDownLatch(2);
+        StreamListener listener = new StreamListener() {
+            @Override
+            public void ready() {
+                ready.countDown();
+            }
+
+            @Override
+            public void fail(final Exception ex) {
+            }
+
+            @Override
+            public boolean filter(final Jid from, final Jid to) {
+                return false;
+            }
+        };
+        server = new StreamComponentServer(serverInputStream, serverOutputStream, "secret");
+        server.addListener(listener);
+        component = new StreamComponent(Jid.of("localhost"), componentInputStream, componentOutputStream, "secret");
+        component.addListener(listener);
+        component.addListener((Message.MessageListener) msg -> received.release());
+
+        executorService = Executors.newFixedThreadPool(2);
+        executorService.submit(server::connect);
+        executorService.submit(component::connect);
+        if (!ready.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("component handshake timed out");
+        }
+
+        message = new Message(Jid.of("ugnich@juick.com"), Jid.of("juick@localhost"), Message.Type.chat);
+        message.body = "#12345 Привет, this is a reply to the post";
+    }
+
+    @TearDown
+    public void teardown() {
+        component.close();
+        server.close();
+        executorService.shutdownNow();
+    }
+
+    @Benchmark
+    public void roundTrip() throws InterruptedException {
+        server.send(message);
+        received.acquire();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.benchmarks;
+
+import com.juick.xmpp.utils.XmlEscaper;
+import org.apache.commons.text.StringEscapeUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * XmlEscaper against the StringEscapeUtils.escapeXml10 it replaced, on a message body
+ * which needs no escaping, one with markup and one in Cyrillic.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlEscaperBenchmark {
+
+    @Param({"plain", "markup", "cyrillic"})
+    public String body;
+
+    private String text;
+
+    @Setup
+    public void setup() {
+        switch (body) {
+            case "plain":
+                text = "Hello, this is a fairly usual message body of a microblog post, http://juick.com/12345";
+                break;
+            case "markup":
+                text = "if (a < b && c > d) { return \"quoted\" + 'single'; } // see <http://juick.com/12345>";
+                break;
+            default:
+                text = "Привет, это довольно обычное сообщение микроблога, http://juick.com/12345";
+                break;
+        }
+    }
+
+    @Benchmark
+    public String commonsText() {
+        return StringEscapeUtils.escapeXml10(text);
+    }
+
+    @Benchmark
+    public String xmlEscaper() {
+        return XmlEscaper.escape(text);
+    }
+}
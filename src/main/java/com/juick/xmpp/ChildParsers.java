@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp;
+
+import com.juick.xmpp.utils.SymbolTable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The registered {@link StanzaChild} parsers by namespace, compiled into a {@link SymbolTable} on the first
+ * lookup, so that finding the parser of a child element takes no string hashing and registering several
+ * parsers in a row compiles them once.
+ * Instances are immutable, registering a parser makes a new one. {@link #wrap(Map)} skips the compilation
+ * for parsers which are used once.
+ */
+public final class ChildParsers {
+
+    public static final ChildParsers EMPTY = new ChildParsers(new LinkedHashMap<>(), true);
+
+    private static final class Compiled {
+
+        private final SymbolTable namespaces;
+        private final StanzaChild[] byIndex;
+
+        Compiled(final Map<String, StanzaChild> parsers) {
+            namespaces = new SymbolTable(parsers.keySet().toArray(new String[0]));
+            byIndex = parsers.values().toArray(new StanzaChild[0]);
+        }
+    }
+
+    private final Map<String, StanzaChild> parsers;
+    private final boolean compile;
+    /**
+     * Null until the first lookup, two threads may both compile it.
+     */
+    private volatile Compiled compiled;
+
+    /**
+     * @param compile false to look the parsers up in the map
+     */
+    private ChildParsers(final Map<String, StanzaChild> parsers, final boolean compile) {
+        this.parsers = parsers;
+        this.compile = compile;
+    }
+
+    public static ChildParsers of(final Map<String, StanzaChild> parsers) {
+        return parsers == null || parsers.isEmpty() ? EMPTY : new ChildParsers(new LinkedHashMap<>(parsers), true);
+    }
+
+    /**
+     * @return the parsers of the map looked up in the map itself, which must not be changed while they are used
+     */
+    public static ChildParsers wrap(final Map<String, StanzaChild> parsers) {
+        return parsers == null || parsers.isEmpty() ? EMPTY : new ChildParsers(parsers, false);
+    }
+
+    public static ChildParsers of(final StanzaChild... parsers) {
+        Map<String, StanzaChild> map = new LinkedHashMap<>();
+        for (StanzaChild parser : parsers) {
+            map.put(parser.getXMLNS(), parser);
+        }
+        return of(map);
+    }
+
+    /**
+     * @return the parsers with this one added, replacing any other of its namespace
+     */
+    public ChildParsers with(final StanzaChild parser) {
+        return with(parser.getXMLNS(), parser);
+    }
+
+    /**
+     * @return the parsers with this one added for the namespace, replacing any other
+     */
+    public ChildParsers with(final String xmlns, final StanzaChild parser) {
+        Map<String, StanzaChild> map = new LinkedHashMap<>(parsers);
+        map.put(xmlns, parser);
+        return new ChildParsers(map, true);
+    }
+
+    public ChildParsers without(final String xmlns) {
+        if (!parsers.containsKey(xmlns)) {
+            return this;
+        }
+        Map<String, StanzaChild> map = new LinkedHashMap<>(parsers);
+        map.remove(xmlns);
+        return of(map);
+    }
+
+    /**
+     * @return the parser of the namespace, null if there is none
+     */
+    public StanzaChild get(final String xmlns) {
+        if (!compile) {
+            return xmlns == null ? null : parsers.get(xmlns);
+        }
+        Compiled c = compiled;
+        if (c == null) {
+            c = new Compiled(parsers);
+            compiled = c;
+        }
+        int index = c.namespaces.indexOf(xmlns);
+        return index < 0 ? null : c.byIndex[index];
+    }
+
+    /**
+     * @return the parsers by namespace, unmodifiable
+     */
+    public Map<String, StanzaChild> asMap() {
+        return Collections.unmodifiableMap(parsers);
+    }
+}
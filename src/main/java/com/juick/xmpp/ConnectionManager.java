@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp;
+
+import com.juick.xmpp.extensions.StreamError;
+import com.juick.xmpp.utils.HashedWheelTimer;
+import lombok.Setter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rocks.xmpp.addr.Jid;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the outbound server-to-server links of a local domain, keyed by remote domain.
+ * <p>
+ * Stanzas to a domain without an authenticated link are queued while a single {@link StreamServerDialback}
+ * connects and runs dialback, then written with one batch. Every local JID shares the links of a domain;
+ * another link, up to {@link #setMaxLinks(int)}, is opened only while all of them are above their high watermark.
+ * Failed connects are retried with exponential backoff and jitter for as long as stanzas are queued,
+ * so a cold start sending to thousands of domains opens one socket per domain.
+ */
+public class ConnectionManager implements ConnectionListener, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionManager.class);
+
+    /**
+     * Opens the transport to a remote domain, usually resolving its SRV records and connecting a socket.
+     * The returned stream is connected by the manager on its executor.
+     */
+    @FunctionalInterface
+    public interface Connector {
+
+        StreamServerDialback open(Jid from, Jid to) throws Exception;
+    }
+
+    private final Jid from;
+    private final Connector connector;
+    private final Executor executor;
+    private final ConcurrentHashMap<String, Domain> domains = new ConcurrentHashMap<>();
+    private final HashedWheelTimer timer = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512, "xmpp-s2s-timer");
+    private volatile boolean closed;
+
+    /**
+     * Receives the callbacks the manager does not handle itself: STARTTLS without a
+     * {@link com.juick.xmpp.utils.TlsContext}, and dialback verification.
+     */
+    @Setter
+    private volatile ConnectionListener delegate;
+    @Setter
+    private int maxLinks = 1;
+    @Setter
+    private int maxQueued = 1000;
+    @Setter
+    private long dialbackTimeout = 30000;
+    @Setter
+    private long reconnectDelay = 1000;
+    @Setter
+    private long maxReconnectDelay = 300000;
+    @Setter
+    private int maxReconnects = 8;
+
+    /**
+     * @param from      the local domain the links authenticate as
+     * @param connector opens the links
+     * @param executor  runs the connector and the {@link Stream#connect()} loop of each link, which blocks
+     *                  for as long as the link is open
+     */
+    public ConnectionManager(final Jid from, final Connector connector, final Executor executor) {
+        this.from = from;
+        this.connector = connector;
+        this.executor = executor;
+    }
+
+    private final class Domain {
+
+        private final Jid jid;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<StreamServerDialback> links = new ArrayList<>();
+        private final ArrayDeque<Stanza> queue = new ArrayDeque<>();
+        private int opening;
+        private int failures;
+        private int next;
+        private HashedWheelTimer.Timeout reconnect;
+
+        Domain(final String domain) {
+            jid = Jid.ofDomain(domain);
+        }
+
+        /**
+         * @return an authenticated link, preferring one below its high watermark; null if there is none
+         */
+        StreamServerDialback pick() {
+            StreamServerDialback ready = null;
+            int size = links.size();
+            for (int i = 0; i < size; i++) {
+                StreamServerDialback link = links.get((next + i) % size);
+                if (link.isStreamReady()) {
+                    if (link.isWritable()) {
+                        next = (next + i + 1) % size;
+                        return link;
+                    }
+                    if (ready == null) {
+                        ready = link;
+                    }
+                }
+            }
+            return ready;
+        }
+
+        boolean isConnecting() {
+            if (opening > 0 || reconnect != null) {
+                return true;
+            }
+            for (StreamServerDialback link : links) {
+                if (!link.isStreamReady()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void open() {
+            opening++;
+            executor.execute(() -> connect(this));
+        }
+    }
+
+    /**
+     * Sends the stanza on a link to the domain of its recipient, queueing it while the link is being set up.
+     *
+     * @return false if the stanza was dropped because the queue of the domain is full or the manager is closed
+     */
+    public boolean send(final Stanza stanza) {
+        if (closed) {
+            return false;
+        }
+        Domain domain = domains.computeIfAbsent(stanza.to.getDomain(), Domain::new);
+        StreamServerDialback link;
+        domain.lock.lock();
+        try {
+            link = domain.queue.isEmpty() ? domain.pick() : null;
+            if (link == null) {
+                if (domain.queue.size() >= maxQueued) {
+                    return false;
+                }
+                domain.queue.add(stanza);
+                if (!domain.isConnecting()) {
+                    domain.open();
+                }
+                return true;
+            }
+            if (!link.isWritable() && !domain.isConnecting() && domain.links.size() < maxLinks) {
+                domain.open();
+            }
+        } finally {
+            domain.lock.unlock();
+        }
+        link.send(stanza);
+        return true;
+    }
+
+    /**
+     * @return an authenticated link to the domain
+     */
+    public Optional<StreamServerDialback> getConnectionOut(final String domain) {
+        Domain d = domains.get(domain);
+        if (d == null) {
+            return Optional.empty();
+        }
+        d.lock.lock();
+        try {
+            return Optional.ofNullable(d.pick());
+        } finally {
+            d.lock.unlock();
+        }
+    }
+
+    /**
+     * Checks a dialback key received in {@code <db:verify/>} against the link that sent it.
+     *
+     * @param domain   the domain the link is connected to
+     * @param streamID the id of the stream that carried the key
+     * @param key      the key to check
+     */
+    public boolean verify(final String domain, final String streamID, final String key) {
+        Domain d = domains.get(domain);
+        if (d == null) {
+            return false;
+        }
+        d.lock.lock();
+        try {
+            for (StreamServerDialback link : d.links) {
+                if (streamID.equals(link.getStreamID())) {
+                    return key.equals(link.getDbKey());
+                }
+            }
+            return false;
+        } finally {
+            d.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the stanzas queued for the domain
+     */
+    public int getQueued(final String domain) {
+        Domain d = domains.get(domain);
+        if (d == null) {
+            return 0;
+        }
+        d.lock.lock();
+        try {
+            return d.queue.size();
+        } finally {
+            d.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the links to the domain, connecting or authenticated
+     */
+    public int getLinks(final String domain) {
+        Domain d = domains.get(domain);
+        if (d == null) {
+            return 0;
+        }
+        d.lock.lock();
+        try {
+            return d.opening + d.links.size();
+        } finally {
+            d.lock.unlock();
+        }
+    }
+
+    private void connect(final Domain domain) {
+        StreamServerDialback link;
+        try {
+            link = connector.open(from, domain.jid);
+        } catch (Exception e) {
+            logger.info("stream to {} failed to connect: {}", domain.jid, e.toString());
+            domain.lock.lock();
+            try {
+                domain.opening--;
+                failed(domain);
+            } finally {
+                domain.lock.unlock();
+            }
+            return;
+        }
+        link.setConnectionListener(this);
+        domain.lock.lock();
+        try {
+            domain.opening--;
+            domain.links.add(link);
+        } finally {
+            domain.lock.unlock();
+        }
+        if (closed) {
+            link.close();
+            return;
+        }
+        timer.schedule(() -> {
+            if (!link.isStreamReady() && remove(link)) {
+                logger.info("stream to {} {} dialback timed out", domain.jid, link.getStreamID());
+                link.close();
+            }
+        }, dialbackTimeout, TimeUnit.MILLISECONDS);
+        link.connect();
+    }
+
+    /**
+     * Schedules a reconnect of a domain with stanzas queued. Must hold the lock of the domain.
+     */
+    private void failed(final Domain domain) {
+        if (closed || domain.queue.isEmpty() || domain.isConnecting()) {
+            return;
+        }
+        if (++domain.failures > maxReconnects) {
+            logger.warn("stream to {} unreachable, dropping {} stanzas", domain.jid, domain.queue.size());
+            domain.queue.clear();
+            domain.failures = 0;
+            return;
+        }
+        long delay = Math.min(maxReconnectDelay, reconnectDelay << Math.min(domain.failures - 1, 20));
+        long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        domain.reconnect = timer.schedule(() -> {
+            domain.lock.lock();
+            try {
+                domain.reconnect = null;
+                if (!closed && !domain.queue.isEmpty() && !domain.isConnecting()) {
+                    domain.open();
+                }
+            } finally {
+                domain.lock.unlock();
+            }
+        }, jittered, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return false if the link was already removed
+     */
+    private boolean remove(final StreamServerDialback link) {
+        Domain domain = domains.get(link.to.getDomain());
+        if (domain == null) {
+            return false;
+        }
+        domain.lock.lock();
+        try {
+            if (!domain.links.remove(link)) {
+                return false;
+            }
+            failed(domain);
+            return true;
+        } finally {
+            domain.lock.unlock();
+        }
+    }
+
+    @Override
+    public void ready(final StreamServerDialback connection) {
+        Domain domain = domains.get(connection.to.getDomain());
+        if (domain == null) {
+            return;
+        }
+        domain.lock.lock();
+        try {
+            if (!domain.links.contains(connection)) {
+                return;
+            }
+            domain.failures = 0;
+            if (!domain.queue.isEmpty()) {
+                // written under the lock, so that stanzas sent meanwhile are not written before the queued ones
+                connection.sendBatch(domain.queue);
+                domain.queue.clear();
+            }
+        } finally {
+            domain.lock.unlock();
+        }
+        ConnectionListener listener = delegate;
+        if (listener != null) {
+            listener.ready(connection);
+        }
+    }
+
+    @Override
+    public void finished(final StreamServerDialback connection, final boolean dirty) {
+        remove(connection);
+        ConnectionListener listener = delegate;
+        if (listener != null) {
+            listener.finished(connection, dirty);
+        }
+    }
+
+    @Override
+    public void exception(final StreamServerDialback connection, final Exception ex) {
+        remove(connection);
+        ConnectionListener listener = delegate;
+        if (listener != null) {
+            listener.exception(connection, ex);
+        }
+    }
+
+    @Override
+    public void dialbackError(final StreamServerDialback connection, final StreamError error) {
+        if (remove(connection)) {
+            connection.close();
+        }
+        ConnectionListener listener = delegate;
+        if (listener != null) {
+            listener.dialbackError(connection, error);
+        }
+    }
+
+    @Override
+    public void starttls(final StreamServer connection) {
+        ConnectionListener listener = delegate;
+        if (listener != null) {
+            listener.starttls(connection);
+        }
+    }
+
+    @Override
+    public void proceed(final StreamServerDialback connection) {
+        ConnectionListener listener = delegate;
+        if (listener != null) {
+            listener.proceed(connection);
+        }
+    }
+
+    @Override
+    public void verify(final StreamServerDialback connection, final String from, final String type, final String sid) {
+        ConnectionListener listener = delegate;
+        if (listener != null) {
+            listener.verify(connection, from, type, sid);
+        }
+    }
+
+    @Override
+    public boolean securing(final StreamServerDialback connection) {
+        ConnectionListener listener = delegate;
+        return listener != null && listener.securing(connection);
+    }
+
+    /**
+     * Closes every link and drops the queued stanzas.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        List<StreamServerDialback> links = new ArrayList<>();
+        for (Domain domain : domains.values()) {
+            domain.lock.lock();
+            try {
+                links.addAll(domain.links);
+                domain.links.clear();
+                domain.queue.clear();
+                if (domain.reconnect != null) {
+                    domain.reconnect.cancel();
+                    domain.reconnect = null;
+                }
+            } finally {
+                domain.lock.unlock();
+            }
+        }
+        timer.close();
+        for (StreamServerDialback link : links) {
+            link.close();
+        }
+    }
+}
@@ -17,7 +17,8 @@
  */
 package com.juick.xmpp;
 
-import com.juick.xmpp.utils.XmlUtils;
+import com.juick.xmpp.extensions.XMPPError;
+import com.juick.xmpp.utils.XmppWriter;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import rocks.xmpp.addr.Jid;
@@ -44,6 +45,10 @@ public class Iq extends Stanza {
         public static final String error = "error";
     }
     public final static String TagName = "iq";
+    private static final byte[] START = XmppWriter.fragment("<" + TagName);
+    private static final byte[] END = XmppWriter.fragment("</" + TagName + ">");
+    private static final byte[] SERVICE_UNAVAILABLE = XmppWriter.fragment(
+        "<error type='cancel'><service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas' /></error>");
 
     public Iq() {
     }
@@ -63,7 +68,7 @@ public class Iq extends Stanza {
     }
 
     public StanzaChild getChild() {
-        return childs.isEmpty() ? null : childs.get(0);
+        return childs.isEmpty() ? null : getChild(childs.get(0).getXMLNS());
     }
 
     public Iq reply() {
@@ -85,44 +90,65 @@ public class Iq extends Stanza {
         return error;
     }
 
+    /**
+     * Looks the parsers up in the map as it is, streams keep them compiled as {@link ChildParsers}.
+     */
     public static Iq parse(XmlPullParser parser, Map<String, StanzaChild> childParsers) throws XmlPullParserException, java.io.IOException, ParseException {
+        return parse(parser, ChildParsers.wrap(childParsers), false);
+    }
+
+    /**
+     * @param lazy whether to keep the child as a {@link RawChild} instead of parsing it
+     */
+    public static Iq parse(XmlPullParser parser, ChildParsers childParsers, boolean lazy) throws XmlPullParserException, java.io.IOException, ParseException {
         Iq iq = new Iq();
         iq.parseStanza(parser);
 
         String currentTag = parser.getName();
         while (!(parser.next() == XmlPullParser.END_TAG && parser.getName().equals(currentTag))) {
             if (parser.getEventType() == XmlPullParser.START_TAG) {
-                final String xmlns = parser.getNamespace();
-                if (xmlns != null && childParsers != null) {
-                    StanzaChild childparser = childParsers.get(xmlns);
-                    if (childparser != null) {
-                        StanzaChild child = childparser.parse(parser);
-                        if (child != null) {
-                            iq.addChild(child);
-                        } else {
-                            XmlUtils.skip(parser);
-                        }
-                    } else {
-                        XmlUtils.skip(parser);
-                    }
-                } else {
-                    XmlUtils.skip(parser);
-                }
+                iq.parseChild(parser, childParsers, lazy);
             }
         }
         return iq;
     }
 
+    /**
+     * @return whether an error child is added, otherwise an error is sent as service-unavailable
+     */
+    private boolean hasError() {
+        for (StanzaChild child : childs) {
+            if (child instanceof XMPPError) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public String toString() {
         StringBuilder str = new StringBuilder("<").append(TagName).append(super.toString()).append(">");
         for (StanzaChild child : childs) {
             str.append(child.toString());
         }
-        if (type.equals(Type.error)) {
+        if (type.equals(Type.error) && !hasError()) {
             str.append("<error type='cancel'><service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas' /></error>");
         }
         str.append("</").append(TagName).append(">");
         return str.toString();
     }
+
+    @Override
+    public void writeTo(XmppWriter writer) {
+        writer.append(START);
+        super.writeTo(writer);
+        writer.append(GT);
+        for (StanzaChild child : childs) {
+            child.writeTo(writer);
+        }
+        if (type.equals(Type.error) && !hasError()) {
+            writer.append(SERVICE_UNAVAILABLE);
+        }
+        writer.append(END);
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.RuntimeOperationsException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Registers metrics as MBeans named {@code com.juick.xmpp:type=StreamMetrics,name=...}, with a read-only
+ * attribute per entry of {@link StreamMetrics#snapshot()}. Attributes are read when they are asked for,
+ * so an exporter costs nothing between polls.
+ */
+public class JmxMetricsExporter implements StreamMetrics.Exporter {
+
+    private final MBeanServer server;
+
+    public JmxMetricsExporter() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxMetricsExporter(final MBeanServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void register(final String name, final StreamMetrics metrics) {
+        try {
+            server.registerMBean(new MetricsBean(metrics), objectName(name));
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void unregister(final String name) {
+        try {
+            server.unregisterMBean(objectName(name));
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ObjectName objectName(final String name) throws JMException {
+        return new ObjectName("com.juick.xmpp:type=StreamMetrics,name=" + ObjectName.quote(name));
+    }
+
+    private static final class MetricsBean implements DynamicMBean {
+
+        private final StreamMetrics metrics;
+
+        MetricsBean(final StreamMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+            Long value = metrics.snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(final String[] attributes) {
+            Map<String, Long> snapshot = metrics.snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = snapshot.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(final AttributeList attributes) {
+            if (attributes.isEmpty()) {
+                return new AttributeList();
+            }
+            StringJoiner names = new StringJoiner(", ", "", " read-only");
+            for (Attribute attribute : attributes.asList()) {
+                names.add(attribute.getName());
+            }
+            throw new RuntimeOperationsException(new IllegalArgumentException(names.toString()));
+        }
+
+        @Override
+        public Object invoke(final String actionName, final Object[] params, final String[] signature)
+            throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> snapshot = metrics.snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+            int i = 0;
+            for (String name : snapshot.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            return new MBeanInfo(StreamMetrics.class.getName(), "XMPP stream metrics", attributes, null, null, null);
+        }
+    }
+}
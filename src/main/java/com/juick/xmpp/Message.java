@@ -17,8 +17,10 @@
  */
 package com.juick.xmpp;
 
+import com.juick.xmpp.utils.SymbolTable;
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
-import org.apache.commons.text.StringEscapeUtils;
+import com.juick.xmpp.utils.XmppWriter;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import rocks.xmpp.addr.Jid;
@@ -46,6 +48,19 @@ public class Message extends Stanza {
         public static final String normal = "normal";
     }
     public final static String TagName = "message";
+    private static final byte[] START = XmppWriter.fragment("<" + TagName);
+    private static final byte[] END = XmppWriter.fragment("</" + TagName + ">");
+    private static final byte[] SUBJECT = XmppWriter.fragment("<subject>");
+    private static final byte[] SUBJECT_END = XmppWriter.fragment("</subject>");
+    private static final byte[] BODY = XmppWriter.fragment("<body>");
+    private static final byte[] BODY_END = XmppWriter.fragment("</body>");
+    private static final byte[] THREAD = XmppWriter.fragment("<thread>");
+    private static final byte[] THREAD_END = XmppWriter.fragment("</thread>");
+    private static final SymbolTable FIELDS = new SymbolTable("subject", "body", "thread");
+    private static final int FIELD_SUBJECT = 0;
+    private static final int FIELD_BODY = 1;
+    private static final int FIELD_THREAD = 2;
+
     public String subject = null;
     public String body = null;
     public String thread = null;
@@ -69,35 +84,35 @@ public class Message extends Stanza {
         super(from, to, type);
     }
 
+    /**
+     * Looks the parsers up in the map as it is, streams keep them compiled as {@link ChildParsers}.
+     */
     public static Message parse(XmlPullParser parser, Map<String, StanzaChild> childParsers) throws XmlPullParserException, java.io.IOException, ParseException {
+        return parse(parser, ChildParsers.wrap(childParsers), false);
+    }
+
+    /**
+     * @param lazy whether to keep the children as {@link RawChild}ren instead of parsing them
+     */
+    public static Message parse(XmlPullParser parser, ChildParsers childParsers, boolean lazy) throws XmlPullParserException, java.io.IOException, ParseException {
         Message msg = new Message();
         msg.parseStanza(parser);
 
         String currentTag = parser.getName();
         while (!(parser.next() == XmlPullParser.END_TAG && parser.getName().equals(currentTag))) {
             if (parser.getEventType() == XmlPullParser.START_TAG) {
-                final String tag = parser.getName();
-                final String xmlns = parser.getNamespace();
-                if (tag.equals("subject")) {
-                    msg.subject = XmlUtils.getTagText(parser);
-                } else if (tag.equals("body")) {
-                    msg.body = XmlUtils.getTagText(parser);
-                } else if (tag.equals("thread")) {
-                    msg.thread = XmlUtils.getTagText(parser);
-                } else if (xmlns != null && childParsers != null) {
-                    StanzaChild childparser = childParsers.get(xmlns);
-                    if (childparser != null) {
-                        StanzaChild child = childparser.parse(parser);
-                        if (child != null) {
-                            msg.addChild(child);
-                        } else {
-                            XmlUtils.skip(parser);
-                        }
-                    } else {
-                        XmlUtils.skip(parser);
-                    }
-                } else {
-                    XmlUtils.skip(parser);
+                switch (FIELDS.indexOf(parser.getName())) {
+                    case FIELD_SUBJECT:
+                        msg.subject = XmlUtils.getTagText(parser);
+                        break;
+                    case FIELD_BODY:
+                        msg.body = XmlUtils.getTagText(parser);
+                        break;
+                    case FIELD_THREAD:
+                        msg.thread = XmlUtils.getTagText(parser);
+                        break;
+                    default:
+                        msg.parseChild(parser, childParsers, lazy);
                 }
             }
         }
@@ -118,15 +133,15 @@ public class Message extends Stanza {
         StringBuilder str = new StringBuilder("<").append(TagName).append(super.toString()).append(">");
 
         if (subject != null) {
-            str.append("<subject>").append(StringEscapeUtils.escapeXml10(subject)).append("</subject>");
+            str.append("<subject>").append(XmlEscaper.escape(subject)).append("</subject>");
         }
 
         if (body != null) {
-            str.append("<body>").append(StringEscapeUtils.escapeXml10(body)).append("</body>");
+            str.append("<body>").append(XmlEscaper.escape(body)).append("</body>");
         }
 
         if (thread != null) {
-            str.append("<thread>").append(StringEscapeUtils.escapeXml10(thread)).append("</thread>");
+            str.append("<thread>").append(XmlEscaper.escape(thread)).append("</thread>");
         }
 
         for (StanzaChild child : childs) {
@@ -136,4 +151,29 @@ public class Message extends Stanza {
         str.append("</").append(TagName).append(">");
         return str.toString();
     }
+
+    @Override
+    public void writeTo(XmppWriter writer) {
+        writer.append(START);
+        super.writeTo(writer);
+        writer.append(GT);
+
+        if (subject != null) {
+            writer.append(SUBJECT).text(subject).append(SUBJECT_END);
+        }
+
+        if (body != null) {
+            writer.append(BODY).text(body).append(BODY_END);
+        }
+
+        if (thread != null) {
+            writer.append(THREAD).text(thread).append(THREAD_END);
+        }
+
+        for (StanzaChild child : childs) {
+            child.writeTo(writer);
+        }
+
+        writer.append(END);
+    }
 }
@@ -17,8 +17,10 @@
  */
 package com.juick.xmpp;
 
+import com.juick.xmpp.utils.SymbolTable;
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
-import org.apache.commons.text.StringEscapeUtils;
+import com.juick.xmpp.utils.XmppWriter;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import rocks.xmpp.addr.Jid;
@@ -56,6 +58,19 @@ public class Presence extends Stanza {
         public static final String xa = "xa";
     }
     public final static String TagName = "presence";
+    private static final byte[] START = XmppWriter.fragment("<" + TagName);
+    private static final byte[] END = XmppWriter.fragment("</" + TagName + ">");
+    private static final byte[] SHOW = XmppWriter.fragment("<show>");
+    private static final byte[] SHOW_END = XmppWriter.fragment("</show>");
+    private static final byte[] PRIORITY = XmppWriter.fragment("<priority>");
+    private static final byte[] PRIORITY_END = XmppWriter.fragment("</priority>");
+    private static final byte[] STATUS = XmppWriter.fragment("<status>");
+    private static final byte[] STATUS_END = XmppWriter.fragment("</status>");
+    private static final SymbolTable FIELDS = new SymbolTable("status", "show", "priority");
+    private static final int FIELD_STATUS = 0;
+    private static final int FIELD_SHOW = 1;
+    private static final int FIELD_PRIORITY = 2;
+
     public int priority = -255; // The value MUST be an integer between -128 and +127 - RFC 3921
     public String show = null; // away / chat / dnd / xa
     public String status = null;
@@ -75,41 +90,41 @@ public class Presence extends Stanza {
         super(from, to, type);
     }
 
+    /**
+     * Looks the parsers up in the map as it is, streams keep them compiled as {@link ChildParsers}.
+     */
     public static Presence parse(XmlPullParser parser, Map<String, StanzaChild> childParsers) throws XmlPullParserException, java.io.IOException, ParseException {
+        return parse(parser, ChildParsers.wrap(childParsers), false);
+    }
+
+    /**
+     * @param lazy whether to keep the children as {@link RawChild}ren instead of parsing them
+     */
+    public static Presence parse(XmlPullParser parser, ChildParsers childParsers, boolean lazy) throws XmlPullParserException, java.io.IOException, ParseException {
         Presence p = new Presence();
         p.parseStanza(parser);
 
         String currentTag = parser.getName();
         while (!(parser.next() == XmlPullParser.END_TAG && parser.getName().equals(currentTag))) {
             if (parser.getEventType() == XmlPullParser.START_TAG) {
-                final String tag = parser.getName();
-                final String xmlns = parser.getNamespace();
-                if (tag.equals("status")) {
-                    p.status = XmlUtils.getTagText(parser);
-                } else if (tag.equals("show")) {
-                    p.show = XmlUtils.getTagText(parser);
-                } else if (tag.equals("priority")) {
-                    String priority = XmlUtils.getTagText(parser);
-                    if (priority.length() > 0) {
-                        try {
-                            p.priority = Integer.parseInt(priority);
-                        } catch (NumberFormatException e) {
+                switch (FIELDS.indexOf(parser.getName())) {
+                    case FIELD_STATUS:
+                        p.status = XmlUtils.getTagText(parser);
+                        break;
+                    case FIELD_SHOW:
+                        p.show = XmlUtils.getTagText(parser);
+                        break;
+                    case FIELD_PRIORITY:
+                        String priority = XmlUtils.getTagText(parser);
+                        if (priority.length() > 0) {
+                            try {
+                                p.priority = Integer.parseInt(priority);
+                            } catch (NumberFormatException e) {
+                            }
                         }
-                    }
-                } else if (xmlns != null && childParsers != null) {
-                    StanzaChild childparser = childParsers.get(xmlns);
-                    if (childparser != null) {
-                        StanzaChild child = childparser.parse(parser);
-                        if (child != null) {
-                            p.addChild(child);
-                        } else {
-                            XmlUtils.skip(parser);
-                        }
-                    } else {
-                        XmlUtils.skip(parser);
-                    }
-                } else {
-                    XmlUtils.skip(parser);
+                        break;
+                    default:
+                        p.parseChild(parser, childParsers, lazy);
                 }
             }
         }
@@ -128,7 +143,7 @@ public class Presence extends Stanza {
         StringBuilder str =  new StringBuilder("<").append(TagName).append(super.toString()).append(">");
 
         if (show != null) {
-            str.append("<show>").append(StringEscapeUtils.escapeXml10(show)).append("</show>");
+            str.append("<show>").append(XmlEscaper.escape(show)).append("</show>");
         }
 
         if (priority >= -128 && priority <= 127) {
@@ -136,7 +151,7 @@ public class Presence extends Stanza {
         }
 
         if (status != null) {
-            str.append("<status>").append(StringEscapeUtils.escapeXml10(status)).append("</status>");
+            str.append("<status>").append(XmlEscaper.escape(status)).append("</status>");
         }
 
         for (StanzaChild child : childs) {
@@ -146,4 +161,29 @@ public class Presence extends Stanza {
         str.append("</").append(TagName).append(">");
         return str.toString();
     }
+
+    @Override
+    public void writeTo(XmppWriter writer) {
+        writer.append(START);
+        super.writeTo(writer);
+        writer.append(GT);
+
+        if (show != null) {
+            writer.append(SHOW).text(show).append(SHOW_END);
+        }
+
+        if (priority >= -128 && priority <= 127) {
+            writer.append(PRIORITY).append(priority).append(PRIORITY_END);
+        }
+
+        if (status != null) {
+            writer.append(STATUS).text(status).append(STATUS_END);
+        }
+
+        for (StanzaChild child : childs) {
+            child.writeTo(writer);
+        }
+
+        writer.append(END);
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp;
+
+import com.juick.xmpp.utils.XmlParsers;
+import com.juick.xmpp.utils.XmlUtils;
+import com.juick.xmpp.utils.XmppWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * A child element kept as the bytes it was read from, which is what streams with
+ * {@link Stream#setLazyChildren(boolean)} put in the stanzas they read. It is written out unchanged,
+ * and {@link Stanza#getChild(String)} replaces it with the typed child the first time it is asked for.
+ */
+public class RawChild implements StanzaChild {
+
+    private static final Logger logger = LoggerFactory.getLogger(RawChild.class);
+
+    private final String xmlns;
+    private final byte[] xml;
+    private final StanzaChild parser;
+    private boolean invalid;
+
+    /**
+     * @param xml    the element as UTF-8, declaring the namespaces it uses, see {@link XmlUtils#captureBytes(XmlPullParser)}
+     * @param parser the registered parser of the namespace, null if there is none
+     */
+    public RawChild(final String xmlns, final byte[] xml, final StanzaChild parser) {
+        this.xmlns = xmlns;
+        this.xml = xml;
+        this.parser = parser;
+    }
+
+    public RawChild(final String xmlns, final String xml, final StanzaChild parser) {
+        this(xmlns, xml.getBytes(StandardCharsets.UTF_8), parser);
+    }
+
+    @Override
+    public String getXMLNS() {
+        return xmlns;
+    }
+
+    public String getXml() {
+        return new String(xml, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public RawChild parse(final XmlPullParser parser) throws XmlPullParserException, IOException {
+        return new RawChild(parser.getNamespace(), XmlUtils.captureBytes(parser), null);
+    }
+
+    /**
+     * @return the child parsed by the registered parser, this if there is none, null if it could not be parsed,
+     * which is only tried and logged once
+     */
+    public StanzaChild materialize() {
+        if (parser == null) {
+            return this;
+        }
+        if (invalid) {
+            return null;
+        }
+        XmlPullParser p = null;
+        try {
+            p = XmlParsers.acquire();
+            p.setInput(new ByteArrayInputStream(xml), "UTF-8");
+            p.nextTag();
+            return parser.parse(p);
+        } catch (XmlPullParserException | IOException | ParseException e) {
+            logger.warn("invalid {} child: {}", xmlns, e.getMessage());
+            invalid = true;
+            return null;
+        } finally {
+            if (p != null) {
+                XmlParsers.release(p);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getXml();
+    }
+
+    @Override
+    public void writeTo(final XmppWriter writer) {
+        writer.append(xml);
+    }
+}
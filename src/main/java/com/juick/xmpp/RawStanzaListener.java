@@ -0,0 +1,20 @@
+package com.juick.xmpp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Gets the stanzas a stream reads as the bytes they came in, before they are parsed,
+ * typically to pass them on with {@link Stream#forward(ByteBuffer, rocks.xmpp.addr.Jid, rocks.xmpp.addr.Jid)}.
+ * Only streams run by {@link StreamReactor} deliver stanzas this way.
+ */
+public interface RawStanzaListener {
+
+    /**
+     * Runs on the thread reading the stream and must not block.
+     *
+     * @param name {@code message}, {@code presence} or {@code iq}
+     * @param stanza the stanza, UTF-8 encoded, only valid during the call and not to be modified
+     * @return true if the stanza was taken care of, false to have it parsed and dispatched as usual
+     */
+    boolean onStanza(Stream stream, String name, ByteBuffer stanza);
+}
@@ -17,10 +17,16 @@
  */
 package com.juick.xmpp;
 
-import org.apache.commons.text.StringEscapeUtils;
+import com.juick.xmpp.utils.JidCache;
+import com.juick.xmpp.utils.XmlEscaper;
+import com.juick.xmpp.utils.XmlUtils;
+import com.juick.xmpp.utils.XmppWriter;
 import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 import rocks.xmpp.addr.Jid;
 
+import java.io.IOException;
+import java.text.ParseException;
 import java.util.ArrayList;
 
 /**
@@ -29,6 +35,14 @@ import java.util.ArrayList;
  */
 public class Stanza {
 
+    protected static final byte[] XMLNS_CLIENT = XmppWriter.fragment(" xmlns='jabber:client'");
+    protected static final byte[] FROM = XmppWriter.fragment(" from='");
+    protected static final byte[] TO = XmppWriter.fragment(" to='");
+    protected static final byte[] ID = XmppWriter.fragment(" id='");
+    protected static final byte[] TYPE = XmppWriter.fragment(" type='");
+    protected static final byte[] QUOTE = XmppWriter.fragment("'");
+    protected static final byte[] GT = XmppWriter.fragment(">");
+
     public Jid from = null;
     public Jid to = null;
     public String id = Long.toString(System.currentTimeMillis());
@@ -66,24 +80,58 @@ public class Stanza {
         return !childs.isEmpty();
     }
 
+    /**
+     * A {@link RawChild} found here is parsed and takes its place, unless no parser is registered for it.
+     * One which could not be parsed stays in place and is not parsed again.
+     */
     public StanzaChild getChild(String XMLNS) {
-        for (StanzaChild ce : childs) {
+        for (int i = 0; i < childs.size(); i++) {
+            StanzaChild ce = childs.get(i);
             if (ce.getXMLNS().equals(XMLNS)) {
+                if (ce instanceof RawChild) {
+                    ce = ((RawChild) ce).materialize();
+                    if (ce == null) {
+                        continue;
+                    }
+                    childs.set(i, ce);
+                }
                 return ce;
             }
         }
         return null;
     }
 
+    /**
+     * Reads the child element the parser is at with the parser registered for its namespace, or skips it.
+     * If lazy, the element is kept as a {@link RawChild} instead, to be parsed by that parser.
+     */
+    protected void parseChild(XmlPullParser parser, ChildParsers childParsers, boolean lazy)
+            throws XmlPullParserException, IOException, ParseException {
+        final String xmlns = parser.getNamespace();
+        StanzaChild childparser = childParsers.get(xmlns);
+        if (childparser == null) {
+            XmlUtils.skip(parser);
+        } else if (lazy) {
+            addChild(new RawChild(xmlns, XmlUtils.captureBytes(parser), childparser));
+        } else {
+            StanzaChild child = childparser.parse(parser);
+            if (child != null) {
+                addChild(child);
+            } else {
+                XmlUtils.skip(parser);
+            }
+        }
+    }
+
     public void parseStanza(XmlPullParser parser) {
         final String fromStr = parser.getAttributeValue(null, "from");
         if (fromStr != null) {
-            from = Jid.of(fromStr);
+            from = JidCache.of(fromStr);
         }
 
         final String toStr = parser.getAttributeValue(null, "to");
         if (toStr != null) {
-            to = Jid.of(toStr);
+            to = JidCache.of(toStr);
         }
 
         id = parser.getAttributeValue(null, "id");
@@ -94,17 +142,36 @@ public class Stanza {
     public String toString() {
         StringBuilder sb = new StringBuilder(" xmlns='jabber:client'");
         if (from != null) {
-            sb.append(" from='").append(from.toEscapedString()).append("'");
+            sb.append(" from='").append(JidCache.toEscapedString(from)).append("'");
         }
         if (to != null) {
-            sb.append(" to='").append(to.toEscapedString()).append("'");
+            sb.append(" to='").append(JidCache.toEscapedString(to)).append("'");
         }
         if (id != null) {
-            sb.append(" id='").append(StringEscapeUtils.escapeXml10(id)).append("'");
+            sb.append(" id='").append(XmlEscaper.escape(id)).append("'");
         }
         if (type != null) {
-            sb.append(" type='").append(StringEscapeUtils.escapeXml10(type)).append("'");
+            sb.append(" type='").append(XmlEscaper.escape(type)).append("'");
         }
         return sb.toString();
     }
+
+    /**
+     * Writes the same attributes as {@link #toString()}.
+     */
+    public void writeTo(XmppWriter writer) {
+        writer.append(XMLNS_CLIENT);
+        if (from != null) {
+            writer.append(FROM).append(JidCache.toEscapedString(from)).append(QUOTE);
+        }
+        if (to != null) {
+            writer.append(TO).append(JidCache.toEscapedString(to)).append(QUOTE);
+        }
+        if (id != null) {
+            writer.append(ID).text(id).append(QUOTE);
+        }
+        if (type != null) {
+            writer.append(TYPE).text(type).append(QUOTE);
+        }
+    }
 }
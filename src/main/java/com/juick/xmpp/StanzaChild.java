@@ -20,6 +20,7 @@ package com.juick.xmpp;
 import java.io.IOException;
 import java.text.ParseException;
 
+import com.juick.xmpp.utils.XmppWriter;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -35,4 +36,11 @@ public interface StanzaChild {
 
     @Override
     String toString();
+
+    /**
+     * Serializes the child without building the string, falls back to {@link #toString()}.
+     */
+    default void writeTo(XmppWriter writer) {
+        writer.append(toString());
+    }
 }
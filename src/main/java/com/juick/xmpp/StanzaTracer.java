@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlpull.v1.XmlPullParser;
+import rocks.xmpp.addr.Jid;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Traces the stanzas of the streams it is set on to the {@code com.juick.xmpp.trace} logger at TRACE level.
+ * <p>
+ * Nothing is captured unless that level is enabled. Stanzas may be sampled one in N, or limited to the ones
+ * from or to some JIDs or domains, so tracing can be turned on in production for a single peer.
+ * The stream threads only copy the top-level tag and its addressing into a bounded ring buffer;
+ * a daemon thread formats and logs them, and events are dropped while the buffer is full.
+ */
+public class StanzaTracer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger("com.juick.xmpp.trace");
+    private static final String[] NO_ATTRIBUTES = new String[0];
+    /**
+     * Elements of raw output whose text is a credential: SASL, component handshakes and dialback keys.
+     */
+    private static final String[] SECRETS = {"<auth", "<response", "<handshake", "<db:result", "<db:verify"};
+    private static volatile StanzaTracer defaultTracer;
+
+    private static final class Event {
+
+        private final boolean in;
+        private final Stream stream;
+        private final String name;
+        private final String[] attributes;
+        private final Stanza stanza;
+        private final Jid from;
+        private final Jid to;
+        private final String id;
+        private final String type;
+
+        Event(final Stream stream, final String name, final String[] attributes) {
+            this.in = true;
+            this.stream = stream;
+            this.name = name;
+            this.attributes = attributes;
+            stanza = null;
+            from = null;
+            to = null;
+            id = null;
+            type = null;
+        }
+
+        Event(final Stream stream, final Stanza stanza, final String raw) {
+            this.in = false;
+            this.stream = stream;
+            this.name = raw;
+            this.attributes = NO_ATTRIBUTES;
+            this.stanza = stanza;
+            // the stanza may be changed once it is sent
+            from = stanza != null ? stanza.from : null;
+            to = stanza != null ? stanza.to : null;
+            id = stanza != null ? stanza.id : null;
+            type = stanza != null ? stanza.type : null;
+        }
+    }
+
+    private final AtomicReferenceArray<Event> ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong counter = new AtomicLong();
+    private final Thread thread;
+    private volatile long tail;
+    private volatile boolean waiting;
+    private volatile boolean running = true;
+    private volatile int sampleRate = 1;
+    private volatile Set<String> jids = Collections.emptySet();
+
+    /**
+     * @param capacity events buffered until they are logged, rounded up to a power of two
+     */
+    public StanzaTracer(final int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        ring = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        thread = new Thread(this::run, "xmpp-trace");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the tracer streams start with, shared and created once TRACE is enabled on the
+     * {@code com.juick.xmpp.trace} logger, or null while it is not
+     */
+    public static StanzaTracer getDefault() {
+        if (!logger.isTraceEnabled()) {
+            return null;
+        }
+        StanzaTracer tracer = defaultTracer;
+        if (tracer == null) {
+            synchronized (StanzaTracer.class) {
+                tracer = defaultTracer;
+                if (tracer == null) {
+                    tracer = new StanzaTracer(1024);
+                    defaultTracer = tracer;
+                }
+            }
+        }
+        return tracer;
+    }
+
+    /**
+     * @param sampleRate traces one in that many stanzas, 1 traces all of them
+     */
+    public void setSampleRate(final int sampleRate) {
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    /**
+     * @param jids bare JIDs or domains a stanza has to be from or to in order to be traced, none for any
+     */
+    public void setJids(final String... jids) {
+        Set<String> set = new HashSet<>();
+        for (String jid : jids) {
+            set.add(jid.toLowerCase(Locale.ROOT));
+        }
+        this.jids = set;
+    }
+
+    /**
+     * @return events dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public boolean isEnabled() {
+        return running && logger.isTraceEnabled();
+    }
+
+    /**
+     * Traces the top-level element the parser of the stream is positioned on.
+     */
+    void in(final Stream stream, final XmlPullParser parser) {
+        if (!isEnabled()) {
+            return;
+        }
+        Set<String> filter = jids;
+        if (!filter.isEmpty() && !matches(filter, parser.getAttributeValue(null, "from"))
+            && !matches(filter, parser.getAttributeValue(null, "to"))) {
+            return;
+        }
+        if (!sampled()) {
+            return;
+        }
+        int count = parser.getAttributeCount();
+        String[] attributes = count > 0 ? new String[count * 2] : NO_ATTRIBUTES;
+        for (int i = 0; i < count; i++) {
+            attributes[i * 2] = parser.getAttributeName(i);
+            attributes[i * 2 + 1] = parser.getAttributeValue(i);
+        }
+        publish(new Event(stream, parser.getName(), attributes));
+    }
+
+    void out(final Stream stream, final Stanza stanza) {
+        if (!isEnabled()) {
+            return;
+        }
+        Set<String> filter = jids;
+        if (!filter.isEmpty() && !matches(filter, stanza.from) && !matches(filter, stanza.to)) {
+            return;
+        }
+        if (sampled()) {
+            publish(new Event(stream, stanza, null));
+        }
+    }
+
+    /**
+     * Traces raw output such as stream headers and dialback elements, which is never from or to a filtered JID.
+     * The text of authentication elements is logged as {@code [redacted]}.
+     */
+    void out(final Stream stream, final String raw) {
+        if (isEnabled() && jids.isEmpty() && sampled()) {
+            publish(new Event(stream, null, raw));
+        }
+    }
+
+    private boolean sampled() {
+        int rate = sampleRate;
+        return rate == 1 || counter.getAndIncrement() % rate == 0;
+    }
+
+    private static boolean matches(final Set<String> filter, final Jid jid) {
+        return jid != null && (filter.contains(jid.getDomain()) || filter.contains(jid.asBareJid().toEscapedString()));
+    }
+
+    private static boolean matches(final Set<String> filter, final String jid) {
+        if (jid == null) {
+            return false;
+        }
+        int slash = jid.indexOf('/');
+        String bare = (slash < 0 ? jid : jid.substring(0, slash)).toLowerCase(Locale.ROOT);
+        return filter.contains(bare) || filter.contains(bare.substring(bare.lastIndexOf('@') + 1));
+    }
+
+    private void publish(final Event event) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= ring.length()) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        ring.lazySet((int) sequence & mask, event);
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        StringBuilder line = new StringBuilder();
+        while (running) {
+            int index = (int) tail & mask;
+            Event event = ring.get(index);
+            if (event == null) {
+                waiting = true;
+                if (ring.get(index) == null) {
+                    LockSupport.parkNanos(this, 10_000_000L);
+                }
+                waiting = false;
+                continue;
+            }
+            ring.lazySet(index, null);
+            tail++;
+            line.setLength(0);
+            format(line, event);
+            logger.trace(line.toString());
+        }
+    }
+
+    private static void format(final StringBuilder line, final Event event) {
+        line.append(event.in ? "IN " : "OUT ").append(event.stream.getClass().getSimpleName()).append('@')
+            .append(Integer.toHexString(System.identityHashCode(event.stream))).append(": ");
+        if (event.in) {
+            line.append('<').append(event.name);
+            for (int i = 0; i < event.attributes.length; i += 2) {
+                line.append(' ').append(event.attributes[i]).append("=\"").append(event.attributes[i + 1]).append('"');
+            }
+            line.append(">...</").append(event.name).append('>');
+        } else if (event.stanza == null) {
+            redact(line, event.name);
+        } else {
+            String name = event.stanza instanceof Message ? "message"
+                : event.stanza instanceof Presence ? "presence" : event.stanza instanceof Iq ? "iq" : "stanza";
+            line.append('<').append(name);
+            append(line, "from", event.from);
+            append(line, "to", event.to);
+            append(line, "id", event.id);
+            append(line, "type", event.type);
+            line.append(">...</").append(name).append('>');
+        }
+    }
+
+    /**
+     * Appends the raw output with the text of the {@link #SECRETS} left out.
+     */
+    static void redact(final StringBuilder line, final String raw) {
+        int from = 0;
+        int i = 0;
+        while ((i = raw.indexOf('<', i)) >= 0) {
+            int content = secretContent(raw, i);
+            if (content < 0) {
+                i++;
+                continue;
+            }
+            int end = raw.indexOf('<', content);
+            if (end < 0) {
+                end = raw.length();
+            }
+            if (end > content) {
+                line.append(raw, from, content).append("[redacted]");
+                from = end;
+            }
+            i = end;
+        }
+        line.append(raw, from, raw.length());
+    }
+
+    /**
+     * @return where the text of the secret element starting at the index begins, -1 if there is none
+     */
+    private static int secretContent(final String raw, final int start) {
+        for (String secret : SECRETS) {
+            int next = start + secret.length();
+            if (raw.startsWith(secret, start) && next < raw.length()
+                && (raw.charAt(next) == '>' || Character.isWhitespace(raw.charAt(next)))) {
+                int close = raw.indexOf('>', next);
+                return close < 0 || raw.charAt(close - 1) == '/' ? -1 : close + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static void append(final StringBuilder line, final String name, final Object value) {
+        if (value != null) {
+            line.append(' ').append(name).append("=\"").append(value).append('"');
+        }
+    }
+
+    /**
+     * Stops logging, events still buffered are discarded.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+}
@@ -18,7 +18,20 @@
 package com.juick.xmpp;
 
 import com.juick.xmpp.extensions.StreamError;
+import com.juick.xmpp.extensions.XMPPError;
+import com.juick.xmpp.utils.HashedWheelTimer;
+import com.juick.xmpp.utils.JidCache;
+import com.juick.xmpp.utils.ListenerRegistry;
+import com.juick.xmpp.utils.OrderedExecutor;
+import com.juick.xmpp.utils.StanzaRewriter;
+import com.juick.xmpp.utils.TlsContext;
+import com.juick.xmpp.utils.TlsTransport;
+import com.juick.xmpp.utils.XmlParsers;
 import com.juick.xmpp.utils.XmlUtils;
+import com.juick.xmpp.utils.XmppTokenizer;
+import com.juick.xmpp.utils.XmppWriter;
+import com.juick.xmpp.utils.ZlibInputStream;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.xmlpull.v1.XmlPullParser;
@@ -26,17 +39,38 @@ import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 import rocks.xmpp.addr.Jid;
 
+import javax.net.ssl.SSLEngine;
 import java.io.IOException;
+import java.io.FilterInputStream;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * @author Ugnich Anton
@@ -45,36 +79,253 @@ import java.util.Map;
 public abstract class Stream {
 
     public static final String NS_STREAM = "http://etherx.jabber.org/streams";
+    public static final String NS_COMPRESS = "http://jabber.org/protocol/compress";
+    public static final String NS_COMPRESS_FEATURE = "http://jabber.org/features/compress";
+
+    /**
+     * What {@link #send(Stanza)} does while the stream is not writable.
+     */
+    public enum SlowConsumerPolicy {
+        /**
+         * Discards the stanza.
+         */
+        DROP,
+        /**
+         * Waits until the queued bytes fall to the low watermark. Must not be used from the threads of a
+         * {@link StreamReactor}, which write the queued bytes out. The default of blocking streams.
+         */
+        BLOCK,
+        /**
+         * Finishes the stream with a {@code policy-violation} error, written only if no other thread is writing,
+         * and closes the output without waiting for the bytes queued. The default of {@link StreamReactor} streams.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * The byte pipeline of a stream served by a {@link StreamReactor}, which encrypts and compresses the bytes
+     * itself instead of the input and output streams being wrapped.
+     */
+    interface Transport {
+
+        /**
+         * Inflates the bytes read after the element being handled and deflates the bytes written from now on.
+         */
+        void startCompression();
+
+        /**
+         * Decrypts the bytes read after the element being handled and encrypts the bytes written from now on,
+         * without waiting for the handshake.
+         */
+        void startTls(SSLEngine engine) throws IOException;
+
+        /**
+         * Closes the connection at once, dropping the bytes queued for the peer.
+         */
+        void abort();
+
+        /**
+         * Whether the calling thread reads the connection, which is the only one that may start compression
+         * or TLS: the element asking for it is being handled and the bytes after it are not read yet.
+         */
+        boolean inEventLoop();
+    }
+
+    /**
+     * Cause of a stream finished by {@link SlowConsumerPolicy#DISCONNECT}.
+     */
+    public static class SlowConsumerException extends IOException {
+
+        public SlowConsumerException(final long queued) {
+            super(queued + " bytes not written to a slow consumer");
+        }
+    }
+
+    private static final byte[] STREAM_END = XmppWriter.fragment("</stream:stream>");
+    private static final ThreadLocal<XmppWriter> QUEUE_WRITER = ThreadLocal.withInitial(XmppWriter::new);
 
     protected Jid from;
     protected Jid to;
     @Setter
     private InputStream is;
-    @Setter
     private OutputStream os;
-    protected XmlPullParserFactory factory;
+    /**
+     * The output the stream was created or registered with, under any compression or encryption.
+     */
+    @Getter(AccessLevel.NONE)
+    private OutputStream transportOutput;
     protected XmlPullParser parser;
     protected OutputStreamWriter writer;
-    private Map<String, StanzaChild> childParsers = new HashMap<>();
-    protected List<StreamListener> listenersStream = new ArrayList<>();
-    protected List<Message.MessageListener> listenersMessage = new ArrayList<>();
-    protected List<Presence.PresenceListener> listenersPresence = new ArrayList<>();
-    protected List<Iq.IqListener> listenersIq = new ArrayList<>();
-    protected HashMap<String, Iq.IqListener> listenersIqId = new HashMap<>();
+    @Getter(AccessLevel.NONE)
+    private OutputStream writerTarget;
+    @Getter(AccessLevel.NONE)
+    private volatile ChildParsers childParsers = ChildParsers.EMPTY;
+    @Getter(AccessLevel.NONE)
+    private final ReentrantLock childParsersLock = new ReentrantLock();
+    protected ListenerRegistry<StreamListener> listenersStream = new ListenerRegistry<>();
+    protected ListenerRegistry<Message.MessageListener> listenersMessage = new ListenerRegistry<>();
+    protected ListenerRegistry<Presence.PresenceListener> listenersPresence = new ListenerRegistry<>();
+    protected ListenerRegistry<Iq.IqListener> listenersIq = new ListenerRegistry<>();
+    protected Map<String, Iq.IqListener> listenersIqId = new ConcurrentHashMap<>();
+    protected Map<String, ListenerRegistry<Message.MessageListener>> listenersMessageXmlns = new ConcurrentHashMap<>();
+    protected Map<String, ListenerRegistry<Presence.PresenceListener>> listenersPresenceType = new ConcurrentHashMap<>();
+    protected Map<String, Map<String, Iq.IqListener>> listenersIqPayload = new ConcurrentHashMap<>();
     private boolean loggedIn;
+    private volatile boolean finished;
+    /**
+     * Whether XEP-0138 zlib compression is offered or requested, where the stream supports it.
+     */
+    @Setter
+    private boolean compressionEnabled;
+    private boolean compressed;
+    /**
+     * Runs STARTTLS within the stream where it is supported, instead of leaving it to the application.
+     */
+    @Setter
+    private TlsContext tlsContext;
     private Instant created;
     private Instant updated;
+    /**
+     * Bytes written since the last flush which force a flush even if more stanzas are queued.
+     */
+    @Setter
+    private volatile int flushThreshold = 8192;
+    /**
+     * Microseconds to hold back the flush once the send queue is drained, so that stanzas sent
+     * right afterwards share the write. 0 flushes as soon as the queue is drained.
+     */
+    @Setter
+    private volatile long flushDelay;
+    /**
+     * Milliseconds {@link #sendIq(Iq)} waits for the response.
+     */
+    @Setter
+    private volatile long iqTimeout = 30000;
+    /**
+     * Keeps the children of stanzas read as {@link RawChild}ren, parsed only once they are asked for with
+     * {@link Stanza#getChild(String)}. Stanzas which are just forwarded are then written out with
+     * the children they came with. Children of namespaces no parser is registered for are skipped either way.
+     */
+    @Setter
+    private boolean lazyChildren;
+    /**
+     * Gets the stanzas read by {@link StreamReactor} before they are parsed, once {@link #acceptsRaw(String, String)}.
+     */
+    @Setter
+    private volatile RawStanzaListener rawStanzaListener;
+    /**
+     * Requests sent with {@link #sendIq(Iq)} which may wait for their response at the same time.
+     */
+    @Setter
+    private volatile int maxPendingIqs = 1024;
+    /**
+     * Runs the stanza listeners keyed by the sender, so that a slow listener does not hold up reading the stream
+     * while the stanzas of each sender are still handled in order. Null calls them on the thread reading the stream.
+     * IQ requests and messages the dispatcher rejects are answered with a {@code resource-constraint} error,
+     * presences are dropped. Streams of a {@link StreamReactor} should not use {@link OrderedExecutor.Overflow#WAIT},
+     * which blocks the event loop.
+     */
+    @Setter
+    private volatile OrderedExecutor dispatcher;
+    /**
+     * Bytes queued but not yet written to the peer at which the stream turns unwritable, 0 for no limit.
+     */
+    @Setter
+    private volatile long highWatermark = 1 << 20;
+    /**
+     * Bytes queued at which an unwritable stream turns writable again.
+     */
+    @Setter
+    private volatile long lowWatermark = 1 << 18;
+    /**
+     * Null for the default of the transport, see {@link SlowConsumerPolicy}.
+     */
+    @Setter
+    private volatile SlowConsumerPolicy slowConsumerPolicy;
+    /**
+     * Traces the top-level elements read and the stanzas sent, null for no tracing.
+     * {@link StanzaTracer#getDefault()} by default.
+     */
+    @Setter
+    private volatile StanzaTracer tracer = StanzaTracer.getDefault();
+    /**
+     * Where the stream records its counters and timings, {@link StreamMetrics#GLOBAL} by default.
+     * Must be set before the stream is connected.
+     */
+    @Setter
+    private volatile StreamMetrics metrics = StreamMetrics.GLOBAL;
+    /**
+     * False while more than the high watermark is queued, until the queue falls to the low watermark.
+     * Changes are reported by {@link StreamListener#writabilityChanged(boolean)}.
+     */
+    private volatile boolean writable = true;
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong queuedBytes = new AtomicLong();
+    @Getter(AccessLevel.NONE)
+    private final ReentrantLock writableLock = new ReentrantLock();
+    @Getter(AccessLevel.NONE)
+    private final Condition writableAgain = writableLock.newCondition();
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger pendingIqs = new AtomicInteger();
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong iqCounter = new AtomicLong();
+    @Getter(AccessLevel.NONE)
+    private final Queue<byte[]> sendQueue = new ConcurrentLinkedQueue<>();
+    @Getter(AccessLevel.NONE)
+    private final ReentrantLock sendLock = new ReentrantLock();
+    @Getter(AccessLevel.NONE)
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /**
+     * Set by a delayed flush which found another thread writing, for that thread to flush before it returns.
+     */
+    @Getter(AccessLevel.NONE)
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    @Getter(AccessLevel.NONE)
+    private final XmppWriter output = new XmppWriter();
+    @Getter(AccessLevel.NONE)
+    private final AtomicBoolean open = new AtomicBoolean();
+    /**
+     * Whether the bytes read are counted by a {@link StreamReactor} rather than by the parser input.
+     */
+    @Getter(AccessLevel.NONE)
+    boolean inputMetered;
+    /**
+     * Set by {@link StreamReactor}, null for a stream over its input and output streams.
+     */
+    @Getter(AccessLevel.NONE)
+    Transport transport;
+    /**
+     * Set once the stream is disconnected as a slow consumer, from then on nothing waits for the output.
+     */
+    @Getter(AccessLevel.NONE)
+    private volatile boolean abandoned;
 
     public Stream(final Jid from, final Jid to, final InputStream is, final OutputStream os) throws XmlPullParserException {
         this.from = from;
         this.to = to;
         this.is = is;
         this.os = os;
-        writer = new OutputStreamWriter(this.os);
-        factory = XmlPullParserFactory.newInstance();
+        transportOutput = os;
+        if (os != null) {
+            writer = new OutputStreamWriter(this.os, StandardCharsets.UTF_8);
+            writerTarget = os;
+        }
         created = updated = Instant.now();
     }
 
+    public void setOs(final OutputStream os) {
+        this.os = os;
+        transportOutput = os;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        SlowConsumerPolicy policy = slowConsumerPolicy;
+        if (policy == null) {
+            return inputMetered ? SlowConsumerPolicy.DISCONNECT : SlowConsumerPolicy.BLOCK;
+        }
+        return policy;
+    }
+
     public boolean isLoggedIn() {
         return loggedIn;
     }
@@ -83,61 +334,345 @@ public abstract class Stream {
         this.loggedIn = loggedIn;
     }
 
+    /**
+     * Reads a new stream from the input, with the parser of the stream reset rather than a new one.
+     * The writer is only replaced if the output has been, for example by STARTTLS.
+     */
     public void restartStream() throws XmlPullParserException, IOException {
-        parser = factory.newPullParser();
-        parser.setInput(new InputStreamReader(is));
-        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
-        writer = new OutputStreamWriter(os);
+        flush();
+        if (parser == null) {
+            parser = XmlParsers.acquire();
+        } else {
+            StreamEvents.streamRestarted(this);
+        }
+        parser.setInput(inputMetered ? is : new MeteredInputStream(is, metrics), "UTF-8");
+        if (writer == null || writerTarget != os) {
+            writer = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+            writerTarget = os;
+        }
+    }
+
+    /**
+     * Hands the parser back to {@link XmlParsers} once nothing is read any more, on the thread which read.
+     */
+    void releaseParser() {
+        XmlPullParser p = parser;
+        if (p != null) {
+            parser = null;
+            XmlParsers.release(p);
+        }
+    }
+
+    /**
+     * @return the parser factory of the JVM, which streams no longer build their parsers with by default
+     * @deprecated use {@link XmlParsers#getFactory()}
+     */
+    @Deprecated
+    public XmlPullParserFactory getFactory() {
+        return XmlParsers.getFactory();
+    }
+
+    /**
+     * @return whether {@link #startCompression()} may be called from this thread: a {@link StreamReactor} stream
+     * only switches on its event loop, so it is not compressed during {@link #handshake()}
+     */
+    protected boolean canStartCompression() {
+        Transport t = transport;
+        return t == null || t.inEventLoop();
+    }
+
+    /**
+     * Compresses both directions of the stream from now on, once {@code <compressed/>} is sent or received.
+     * The stream has to be restarted with {@link #restartStream()} afterwards. One deflater and one inflater
+     * are used for the whole stream, the deflater is sync-flushed with every write.
+     */
+    protected void startCompression() {
+        sendLock.lock();
+        try {
+            flush();
+            if (transport != null) {
+                transport.startCompression();
+            } else {
+                os = new DeflaterOutputStream(os, true);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+        if (transport == null) {
+            is = new ZlibInputStream(is);
+        }
+        compressed = true;
+    }
+
+    /**
+     * Encrypts both directions of the stream from now on, once {@code <proceed/>} is sent or received.
+     * The TLS handshake runs on the calling thread over the current transport, or on the event loop as the records
+     * arrive for a {@link StreamReactor} stream; the stream has to be restarted with {@link #restartStream()}
+     * afterwards. Stanzas sent meanwhile are queued and encrypted.
+     */
+    protected void startTls(final SSLEngine engine) throws IOException {
+        if (transport != null) {
+            sendLock.lock();
+            try {
+                flush();
+                transport.startTls(engine);
+            } finally {
+                sendLock.unlock();
+            }
+            return;
+        }
+        flush();
+        TlsTransport tls = new TlsTransport(engine, is, os);
+        sendLock.lock();
+        try {
+            tls.handshake();
+            os = tls.getOutputStream();
+        } finally {
+            sendLock.unlock();
+        }
+        is = tls.getInputStream();
+        flush();
+    }
+
+    /**
+     * @return the stream feature offering zlib compression, empty if it is not enabled or already on
+     */
+    protected String compressionFeature() {
+        return compressionEnabled && !compressed
+            ? "<compression xmlns='" + NS_COMPRESS_FEATURE + "'><method>zlib</method></compression>"
+            : "";
     }
 
     public void connect() {
+        opened();
         try {
             restartStream();
             handshake();
-            parse();
+            if (!finished) {
+                parse();
+            }
         } catch (final Exception e) {
+            closed(e);
             connectionFailed(e);
+        } finally {
+            releaseParser();
+        }
+    }
+
+    /**
+     * Counts the stream as open in its metrics until {@link #closed(Exception)}.
+     */
+    void opened() {
+        if (open.compareAndSet(false, true)) {
+            metrics.opened(this, 1);
+            StreamEvents.streamOpened(this);
+        }
+    }
+
+    void closed(final Exception cause) {
+        if (open.compareAndSet(true, false)) {
+            metrics.opened(this, -1);
+            StreamEvents.streamClosed(this, cause, Duration.between(created, Instant.now()).toNanos());
         }
     }
 
     protected abstract void handshake() throws XmlPullParserException, IOException;
 
+    /**
+     * Parsers may be registered from any thread, the lookup table is compiled again on the next stanza read.
+     */
     public void addChildParser(StanzaChild childparser) {
-        childParsers.put(childparser.getXMLNS(), childparser);
+        childParsersLock.lock();
+        try {
+            childParsers = childParsers.with(childparser);
+        } finally {
+            childParsersLock.unlock();
+        }
     }
 
     public void removeChildParser(final String xmlns) {
-        childParsers.remove(xmlns);
+        childParsersLock.lock();
+        try {
+            childParsers = childParsers.without(xmlns);
+        } finally {
+            childParsersLock.unlock();
+        }
     }
 
-    public void addListener(final StreamListener l) {
-        if (!listenersStream.contains(l)) {
-            listenersStream.add(l);
-        }
+    /**
+     * @return the registered parsers by namespace, put and remove register and unregister them
+     * @deprecated use {@link #addChildParser(StanzaChild)} and {@link #removeChildParser(String)}
+     */
+    @Deprecated
+    public Map<String, StanzaChild> getChildParsers() {
+        return new AbstractMap<String, StanzaChild>() {
+            @Override
+            public Set<Entry<String, StanzaChild>> entrySet() {
+                return childParsers.asMap().entrySet();
+            }
+
+            @Override
+            public StanzaChild get(final Object xmlns) {
+                return childParsers.asMap().get(xmlns);
+            }
+
+            @Override
+            public StanzaChild put(final String xmlns, final StanzaChild childparser) {
+                childParsersLock.lock();
+                try {
+                    StanzaChild previous = childParsers.asMap().get(xmlns);
+                    childParsers = childParsers.with(xmlns, childparser);
+                    return previous;
+                } finally {
+                    childParsersLock.unlock();
+                }
+            }
+
+            @Override
+            public StanzaChild remove(final Object xmlns) {
+                childParsersLock.lock();
+                try {
+                    StanzaChild previous = childParsers.asMap().get(xmlns);
+                    if (previous != null) {
+                        childParsers = childParsers.without((String) xmlns);
+                    }
+                    return previous;
+                } finally {
+                    childParsersLock.unlock();
+                }
+            }
+        };
     }
 
-    public void addListener(final Message.MessageListener l) {
-        if (!listenersMessage.contains(l)) {
-            listenersMessage.add(l);
-        }
+    /**
+     * Listeners may be added and removed from any thread, also while stanzas are dispatched.
+     *
+     * @return the registration removing the listener
+     */
+    public ListenerRegistry.Registration addListener(final StreamListener l) {
+        return listenersStream.add(l);
     }
 
-    public void addListener(final Presence.PresenceListener l) {
-        if (!listenersPresence.contains(l)) {
-            listenersPresence.add(l);
-        }
+    public ListenerRegistry.Registration addListener(final Message.MessageListener l) {
+        return listenersMessage.add(l);
     }
 
-    public void addListener(final Iq.IqListener l) {
-        if (!listenersIq.contains(l)) {
-            listenersIq.add(l);
-        }
+    public ListenerRegistry.Registration addListener(final Presence.PresenceListener l) {
+        return listenersPresence.add(l);
+    }
+
+    public ListenerRegistry.Registration addListener(final Iq.IqListener l) {
+        return listenersIq.add(l);
     }
 
     public void addListener(final String Jid, final String id, final Iq.IqListener iql) {
         listenersIqId.put(Jid + "\n" + id, iql);
     }
 
+    /**
+     * Adds a listener for the messages carrying a child of the namespace, a child parser must be added for it.
+     */
+    public ListenerRegistry.Registration addMessageListener(final String xmlns, final Message.MessageListener l) {
+        return listenersMessageXmlns.computeIfAbsent(xmlns, k -> new ListenerRegistry<>()).add(l);
+    }
+
+    /**
+     * Adds a listener for the presences of the type, null for available presences.
+     */
+    public ListenerRegistry.Registration addPresenceListener(final String type, final Presence.PresenceListener l) {
+        return listenersPresenceType.computeIfAbsent(presenceKey(type), k -> new ListenerRegistry<>()).add(l);
+    }
+
+    /**
+     * Sets the handler of the IQs of the type whose payload is of the namespace, a child parser must be added for it.
+     * Such IQs are not passed to the listeners added with {@link #addListener(Iq.IqListener)}. Once a get or set
+     * handler is set, requests of that type with a payload no handler is set for are answered with an error
+     * right away, without the listeners added with {@link #addListener(Iq.IqListener)}.
+     */
+    public ListenerRegistry.Registration addIqListener(final String type, final String xmlns, final Iq.IqListener l) {
+        final Map<String, Iq.IqListener> listeners = listenersIqPayload.computeIfAbsent(type, k -> new ConcurrentHashMap<>());
+        listeners.put(xmlns, l);
+        return () -> listeners.remove(xmlns, l);
+    }
+
+    /**
+     * Sends the request and completes with the response, which may be of the error type.
+     * The id of the request is replaced with one unique within the stream. The future fails with a
+     * {@link TimeoutException} after {@link #setIqTimeout(long)}, right away with an {@link IllegalStateException}
+     * if {@link #setMaxPendingIqs(int)} requests are already waiting, and once the stream is finished.
+     * It is completed on the thread reading the stream, so dependent actions should not block.
+     * The response is matched by id and must come from the recipient of the request: any resource may answer a
+     * request to a bare JID, and a request without a recipient, or to the own bare JID, is answered by the server
+     * without a sender, from the own bare JID or from the own domain.
+     */
+    public CompletableFuture<Iq> sendIq(final Iq iq) {
+        final PendingIq pending = new PendingIq();
+        if (pendingIqs.incrementAndGet() > maxPendingIqs) {
+            pendingIqs.decrementAndGet();
+            pending.future.completeExceptionally(new IllegalStateException("too many pending iq requests"));
+            return pending.future;
+        }
+        metrics.pendingIq(1);
+        iq.id = "iq" + Long.toString(iqCounter.incrementAndGet(), 36);
+        // unlike the keys of addListener(String, String, IqListener) it has no line feed
+        final String key = iq.id;
+        pending.recipient = iq.to;
+        listenersIqId.put(key, pending);
+        pending.timeout = IqTimer.INSTANCE.schedule(() -> {
+            if (listenersIqId.remove(key, pending)) {
+                StreamEvents.iqTimeout(this, iq, iqTimeout);
+                pending.complete(null, new TimeoutException("no response to iq " + iq.id));
+            }
+        }, iqTimeout, TimeUnit.MILLISECONDS);
+        send(iq);
+        if (finished && listenersIqId.remove(key, pending)) {
+            pending.complete(null, new IOException("stream finished"));
+        }
+        return pending.future;
+    }
+
+    private final class PendingIq implements Iq.IqListener {
+
+        private final CompletableFuture<Iq> future = new CompletableFuture<>();
+        private volatile HashedWheelTimer.Timeout timeout;
+        private Jid recipient;
+
+        @Override
+        public boolean onIq(final Iq iq) {
+            complete(iq, null);
+            return true;
+        }
+
+        boolean answeredBy(final Jid responder) {
+            Jid self = from == null ? null : from.asBareJid();
+            if (recipient == null || recipient.equals(self)) {
+                return responder == null || responder.equals(self)
+                    || self != null && responder.equals(Jid.ofDomain(self.getDomain()));
+            }
+            return responder != null
+                && (responder.equals(recipient) || recipient.isBareJid() && responder.asBareJid().equals(recipient));
+        }
+
+        void complete(final Iq iq, final Exception cause) {
+            HashedWheelTimer.Timeout scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+            pendingIqs.decrementAndGet();
+            metrics.pendingIq(-1);
+            if (cause == null) {
+                future.complete(iq);
+            } else {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private static final class IqTimer {
+
+        private static final HashedWheelTimer INSTANCE = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512, "xmpp-iq-timer");
+    }
+
     public boolean removeListener(final StreamListener l) {
         return listenersStream.remove(l);
     }
@@ -154,10 +689,33 @@ public abstract class Stream {
         return listenersIq.remove(l);
     }
 
+    public boolean removeMessageListener(final String xmlns, final Message.MessageListener l) {
+        ListenerRegistry<Message.MessageListener> listeners = listenersMessageXmlns.get(xmlns);
+        return listeners != null && listeners.remove(l);
+    }
+
+    public boolean removePresenceListener(final String type, final Presence.PresenceListener l) {
+        ListenerRegistry<Presence.PresenceListener> listeners = listenersPresenceType.get(presenceKey(type));
+        return listeners != null && listeners.remove(l);
+    }
+
+    public boolean removeIqListener(final String type, final String xmlns, final Iq.IqListener l) {
+        Map<String, Iq.IqListener> listeners = listenersIqPayload.get(type);
+        return listeners != null && listeners.remove(xmlns, l);
+    }
+
+    private static String presenceKey(final String type) {
+        return type == null ? "" : type;
+    }
+
     public void logoff() {
         setLoggedIn(false);
+        if (abandoned) {
+            closeTransport();
+            return;
+        }
+        flush();
         try {
-            writer.flush();
             writer.close();
             //TODO close parser
         } catch (final Exception e) {
@@ -166,62 +724,417 @@ public abstract class Stream {
     }
 
     public void close() {
-        try {
-            writer.write("</stream:stream>");
-        } catch (IOException e) {
-        }
+        enqueue(STREAM_END);
         logoff();
     }
 
+    /**
+     * Writes the stanza unless another thread is already writing, in which case it is queued for that thread.
+     * While the stream is not writable, the {@link #setSlowConsumerPolicy(SlowConsumerPolicy)} applies.
+     */
     public void send(final Stanza s) {
-        send(s.toString());
+        StanzaTracer t = tracer;
+        if (t != null) {
+            t.out(this, s);
+        }
+        if (admit()) {
+            updated = Instant.now();
+            metrics.sent(s);
+            StreamEvents.stanzaSent(this, s);
+            drain(false, false, s, null);
+        }
     }
 
+    /**
+     * Writes the string unless another thread is already writing, in which case it is queued for that thread,
+     * so stanzas sent concurrently are written with a single flush.
+     */
     public void send(final String str) {
-        try {
+        StanzaTracer t = tracer;
+        if (t != null) {
+            t.out(this, str);
+        }
+        if (admit()) {
             updated = Instant.now();
-            writer.write(str);
-            writer.flush();
-        } catch (final Exception e) {
-            connectionFailed(e);
+            drain(false, false, null, str);
+        }
+    }
+
+    /**
+     * Sends the stanzas with a single write.
+     */
+    public void sendBatch(final Collection<? extends Stanza> stanzas) {
+        XmppWriter batch = QUEUE_WRITER.get();
+        batch.clear();
+        StanzaTracer t = tracer;
+        for (Stanza stanza : stanzas) {
+            if (t != null) {
+                t.out(this, stanza);
+            }
+            stanza.writeTo(batch);
+        }
+        if (batch.size() > 0 && admit()) {
+            updated = Instant.now();
+            StreamMetrics m = metrics;
+            for (Stanza stanza : stanzas) {
+                m.sent(stanza);
+                StreamEvents.stanzaSent(this, stanza);
+            }
+            enqueue(batch.toByteArray());
+            drain(false, false, null, null);
+        }
+    }
+
+    /**
+     * Writes a stanza read by another stream as it is, with only its addresses replaced, so that unknown
+     * children are passed on and nothing is parsed or serialized. Queued like {@link #sendBatch(Collection)}.
+     *
+     * @param stanza the stanza as given to a {@link RawStanzaListener}, left as it is
+     * @param from the new sender, null to keep the one the stanza has
+     * @param to the new recipient, null to keep the one the stanza has
+     */
+    public void forward(final ByteBuffer stanza, final Jid from, final Jid to) {
+        XmppWriter batch = QUEUE_WRITER.get();
+        batch.clear();
+        StanzaRewriter.rewrite(stanza, from == null ? null : JidCache.toEscapedString(from),
+            to == null ? null : JidCache.toEscapedString(to), batch);
+        byte[] bytes = batch.toByteArray();
+        StanzaTracer t = tracer;
+        if (t != null && t.isEnabled()) {
+            t.out(this, new String(bytes, StandardCharsets.UTF_8));
+        }
+        if (admit()) {
+            updated = Instant.now();
+            enqueue(bytes);
+            drain(false, false, null, null);
+        }
+    }
+
+    /**
+     * @return the bytes queued but not yet written to the peer
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Writes out everything queued and flushes it, regardless of {@link #setFlushDelay(long)}.
+     */
+    public void flush() {
+        drain(true, true, null, null);
+    }
+
+    private void drain(final boolean wait, final boolean flush, final Stanza stanza, final String str) {
+        boolean pending = stanza != null || str != null;
+        do {
+            if (wait) {
+                sendLock.lock();
+            } else if (!sendLock.tryLock()) {
+                if (!pending) {
+                    // the thread holding the lock checks the queue and flushRequested again after releasing it
+                    return;
+                }
+                // serialize right away, the stanza may be changed once send() returns
+                XmppWriter queued = QUEUE_WRITER.get();
+                queued.clear();
+                serialize(queued, stanza, str);
+                enqueue(queued.toByteArray());
+                pending = false;
+                continue;
+            }
+            try {
+                byte[] queued;
+                while ((queued = sendQueue.poll()) != null) {
+                    output.append(queued);
+                    if (output.size() >= flushThreshold) {
+                        writeOutput();
+                    }
+                }
+                if (pending) {
+                    pending = false;
+                    int size = output.size();
+                    serialize(output, stanza, str);
+                    queued(output.size() - size);
+                }
+                boolean flushNow = flushRequested.getAndSet(false) || flush || flushDelay <= 0;
+                if (output.size() >= flushThreshold || (output.size() > 0 && flushNow)) {
+                    writeOutput();
+                } else if (output.size() > 0 && flushScheduled.compareAndSet(false, true)) {
+                    FlushScheduler.schedule(this::delayedFlush, flushDelay);
+                }
+            } catch (final Exception e) {
+                sendQueue.clear();
+                output.clear();
+                written(queuedBytes.get());
+                connectionFailed(e);
+            } finally {
+                sendLock.unlock();
+            }
+        } while (!sendQueue.isEmpty() || flushRequested.get());
+    }
+
+    /**
+     * Writes out what has been held back by {@link #setFlushDelay(long)}. If another thread is writing,
+     * it is left to that thread, which sees {@link #flushRequested} once it releases the lock.
+     */
+    private void delayedFlush() {
+        flushScheduled.set(false);
+        flushRequested.set(true);
+        drain(false, true, null, null);
+    }
+
+    private static void serialize(final XmppWriter writer, final Stanza stanza, final String str) {
+        if (stanza != null) {
+            stanza.writeTo(writer);
+        } else {
+            writer.append(str);
+        }
+    }
+
+    private void enqueue(final byte[] bytes) {
+        sendQueue.add(bytes);
+        queued(bytes.length);
+    }
+
+    private boolean admit() {
+        if (writable || finished) {
+            return true;
+        }
+        switch (getSlowConsumerPolicy()) {
+            case DROP:
+                return false;
+            case DISCONNECT:
+                abandoned = true;
+                finish(new SlowConsumerException(queuedBytes.get()));
+                closeTransport();
+                return false;
+            default:
+                writableLock.lock();
+                try {
+                    while (!writable && !finished) {
+                        writableAgain.await();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    writableLock.unlock();
+                }
+                return true;
+        }
+    }
+
+    /**
+     * Closes the output under any compression or encryption, which would write to the peer on close.
+     * A {@link StreamReactor} connection is closed without waiting for its queued bytes to be written.
+     */
+    private void closeTransport() {
+        Transport t = transport;
+        if (t != null) {
+            t.abort();
+            return;
         }
+        try {
+            transportOutput.close();
+        } catch (IOException e) {
+            // the stream is given up anyway
+        }
+    }
+
+    /**
+     * Accounts for bytes on their way to the peer, also used by {@link StreamReactor} for the bytes it buffers.
+     */
+    void queued(final long bytes) {
+        metrics.queued(bytes);
+        long queued = queuedBytes.addAndGet(bytes);
+        long high = highWatermark;
+        if (high > 0 && queued >= high && writable) {
+            setWritable(false);
+        }
+    }
+
+    void written(final long bytes) {
+        metrics.queued(-bytes);
+        long queued = queuedBytes.addAndGet(-bytes);
+        if (queued <= lowWatermark && !writable) {
+            setWritable(true);
+        }
+    }
+
+    private void setWritable(final boolean writable) {
+        writableLock.lock();
+        try {
+            long queued = queuedBytes.get();
+            if (this.writable == writable || (writable ? queued > lowWatermark : queued < highWatermark)) {
+                return;
+            }
+            this.writable = writable;
+            writableAgain.signalAll();
+        } finally {
+            writableLock.unlock();
+        }
+        // the writing thread must not run the listeners, they may send
+        FlushScheduler.INSTANCE.execute(() -> listenersStream.forEach(l -> l.writabilityChanged(writable)));
+    }
+
+    private void writeOutput() throws IOException {
+        int size = output.size();
+        output.writeTo(os);
+        output.clear();
+        written(size);
+        metrics.bytesOut(size);
+        os.flush();
     }
 
     protected void parse() throws IOException, ParseException {
         try {
-            while (parser.next() != XmlPullParser.END_DOCUMENT) {
+            while (!finished && parser.next() != XmlPullParser.END_DOCUMENT) {
                 if (parser.getEventType() == XmlPullParser.IGNORABLE_WHITESPACE) {
                     updated = Instant.now();
                 }
                 if (parser.getEventType() != XmlPullParser.START_TAG) {
                     continue;
                 }
-                updated = Instant.now();
-                final String tag = parser.getName();
-                switch (tag) {
-                    case "message":
-                        message();
-                        break;
-                    case "presence":
-                        presence();
-                        break;
-                    case "iq":
-                        iq();
-                        break;
-                    case "error":
-                        error();
-                        return;
-                    default:
-                        XmlUtils.skip(parser);
-                        break;
+                trace();
+                if (!handleElement()) {
+                    break;
+                }
+            }
+            finish(null);
+        } catch (Exception e) {
+            finish(e);
+        }
+    }
+
+    /**
+     * Parses a single top-level element, as delivered by {@link StreamReactor}.
+     * The input starts with the stream header (when the element is not a header itself),
+     * so the element is read with the namespaces declared by the peer.
+     *
+     * @return false if the stream should not be read any further
+     */
+    boolean parseElement(final InputStream element, final int depth) {
+        if (parser == null || finished) {
+            return false;
+        }
+        try {
+            parser.setInput(element, "UTF-8");
+            while (parser.next() != XmlPullParser.END_DOCUMENT) {
+                if (parser.getEventType() == XmlPullParser.START_TAG && parser.getDepth() == depth) {
+                    trace();
+                    if (handleElement()) {
+                        return true;
+                    }
+                    break;
+                }
+            }
+            finish(null);
+        } catch (Exception e) {
+            finish(e);
+        }
+        return false;
+    }
+
+    private void trace() {
+        StanzaTracer t = tracer;
+        if (t != null) {
+            t.in(this, parser);
+        }
+    }
+
+    /**
+     * Handles the top-level element the parser is positioned on.
+     *
+     * @return false if the stream should not be read any further
+     */
+    protected boolean handleElement() throws Exception {
+        updated = Instant.now();
+        final String tag = parser.getName();
+        switch (tag) {
+            case "message":
+                message();
+                break;
+            case "presence":
+                presence();
+                break;
+            case "iq":
+                iq();
+                break;
+            case "error":
+                error();
+                return false;
+            default:
+                XmlUtils.skip(parser);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Offers a stanza read by {@link StreamReactor} to the {@link RawStanzaListener}.
+     *
+     * @return true if the listener took care of it, so that it is not parsed
+     */
+    boolean rawStanza(final String name, final ByteBuffer stanza) {
+        RawStanzaListener l = rawStanzaListener;
+        if (l == null || !(Message.TagName.equals(name) || Presence.TagName.equals(name) || Iq.TagName.equals(name))) {
+            return false;
+        }
+        try {
+            if (!acceptsRaw(StanzaRewriter.attribute(stanza, "from"), StanzaRewriter.attribute(stanza, "to"))) {
+                return false;
+            }
+            updated = Instant.now();
+            return l.onStanza(this, name, stanza);
+        } catch (RuntimeException e) {
+            finish(e);
+            return true;
+        }
+    }
+
+    /**
+     * Whether a stanza with these addresses may go to the {@link RawStanzaListener}, which skips the checks
+     * done while parsing. Those which may not are parsed as usual.
+     */
+    protected boolean acceptsRaw(final String from, final String to) {
+        return isLoggedIn();
+    }
+
+    protected void finish(final Exception cause) {
+        if (!finished) {
+            finished = true;
+            closed(cause);
+            writableLock.lock();
+            try {
+                writableAgain.signalAll();
+            } finally {
+                writableLock.unlock();
+            }
+            for (Map.Entry<String, Iq.IqListener> entry : listenersIqId.entrySet()) {
+                if (entry.getValue() instanceof PendingIq && listenersIqId.remove(entry.getKey(), entry.getValue())) {
+                    ((PendingIq) entry.getValue()).complete(null, new IOException("stream finished"));
                 }
             }
-        } catch (XmlPullParserException e) {
+            streamFinished(cause);
+        }
+    }
+
+    /**
+     * Called once the stream is not read anymore.
+     *
+     * @param cause null if the stream was finished by the peer or by {@link #handleElement()}
+     */
+    protected void streamFinished(final Exception cause) {
+        if (cause instanceof XmppTokenizer.ElementTooLargeException || cause instanceof SlowConsumerException) {
+            StreamError policyViolationError = new StreamError("policy-violation");
+            send(policyViolationError.toString());
+            connectionFailed(new Exception(policyViolationError.getCondition()));
+        } else if (cause instanceof XmlPullParserException) {
             StreamError invalidXmlError = new StreamError("invalid-xml");
             send(invalidXmlError.toString());
             connectionFailed(new Exception(invalidXmlError.getCondition()));
+        } else if (cause != null) {
+            connectionFailed(cause);
         }
-
     }
 
     protected void error() throws IOException, XmlPullParserException {
@@ -230,34 +1143,185 @@ public abstract class Stream {
     }
 
     protected void iq() throws XmlPullParserException, IOException, ParseException {
-        Iq iq = Iq.parse(parser, childParsers);
-        final String key = (iq.from == null) ? "" : iq.from.toEscapedString() + "\n" + iq.id;
-        boolean parsed = false;
-        if (listenersIqId.containsKey(key)) {
-            Iq.IqListener l = listenersIqId.get(key);
+        long start = System.nanoTime();
+        final Iq iq = Iq.parse(parser, childParsers, lazyChildren);
+        parsed(iq, start);
+        if (!dispatch(iq, () -> onIq(iq))) {
+            if (Iq.Type.get.equals(iq.type) || Iq.Type.set.equals(iq.type)) {
+                Iq error = iq.error();
+                error.addChild(new XMPPError(XMPPError.Type.wait, "resource-constraint"));
+                send(error);
+            }
+        }
+    }
+
+    protected void presence() throws XmlPullParserException, IOException, ParseException {
+        long start = System.nanoTime();
+        final Presence p = Presence.parse(parser, childParsers, lazyChildren);
+        parsed(p, start);
+        dispatch(p, () -> onPresence(p));
+    }
+
+    protected void message() throws XmlPullParserException, IOException, ParseException {
+        long start = System.nanoTime();
+        final Message msg = Message.parse(parser, childParsers, lazyChildren);
+        parsed(msg, start);
+        if (!dispatch(msg, () -> onMessage(msg)) && !Message.Type.error.equals(msg.type)) {
+            Message error = msg.reply();
+            error.id = msg.id;
+            error.type = Message.Type.error;
+            error.addChild(new XMPPError(XMPPError.Type.wait, "resource-constraint"));
+            send(error);
+        }
+    }
+
+    /**
+     * @return false if the dispatcher rejected the stanza
+     */
+    private boolean dispatch(final Stanza stanza, final Runnable listeners) throws InterruptedIOException {
+        OrderedExecutor executor = dispatcher;
+        if (executor == null) {
+            timed(stanza, listeners);
+            return true;
+        }
+        try {
+            return executor.execute(stanza.from, () -> timed(stanza, listeners));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while dispatching");
+        }
+    }
+
+    private void parsed(final Stanza stanza, final long start) {
+        long elapsed = System.nanoTime() - start;
+        StreamMetrics m = metrics;
+        m.parsed(elapsed);
+        m.received(stanza);
+        StreamEvents.stanzaReceived(this, stanza, elapsed);
+    }
+
+    private void timed(final Stanza stanza, final Runnable listeners) {
+        long start = System.nanoTime();
+        try {
+            listeners.run();
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            metrics.dispatched(elapsed);
+            StreamEvents.stanzaDispatched(this, stanza, elapsed);
+        }
+    }
+
+    private void onIq(final Iq iq) {
+        final String key = (iq.from == null ? "" : iq.from.toEscapedString()) + "\n" + iq.id;
+        boolean parsed;
+        Iq.IqListener l = listenersIqId.remove(key);
+        if (l == null && iq.id != null && (Iq.Type.result.equals(iq.type) || Iq.Type.error.equals(iq.type))) {
+            Iq.IqListener pending = listenersIqId.get(iq.id);
+            if (pending instanceof PendingIq && ((PendingIq) pending).answeredBy(iq.from)
+                && listenersIqId.remove(iq.id, pending)) {
+                l = pending;
+            }
+        }
+        boolean request = Iq.Type.get.equals(iq.type) || Iq.Type.set.equals(iq.type);
+        boolean unmatched = false;
+        if (l == null && iq.type != null && iq.hasChilds()) {
+            Map<String, Iq.IqListener> listeners = listenersIqPayload.get(iq.type);
+            if (listeners != null) {
+                l = listeners.get(iq.childs.get(0).getXMLNS());
+                unmatched = l == null && request && !listeners.isEmpty();
+            }
+        }
+        if (l != null) {
             parsed = l.onIq(iq);
-            listenersIqId.remove(key);
+        } else if (unmatched) {
+            parsed = false;
         } else {
-            for (Iq.IqListener listener : listenersIq) {
-                parsed |= listener.onIq(iq);
-            }
+            parsed = listenersIq.handle(Iq.IqListener::onIq, iq);
         }
-        if (!parsed) {
+        // RFC 6120 8.2.3: results and errors are never answered
+        if (!parsed && request) {
             send(iq.error());
         }
     }
 
-    protected void presence() throws XmlPullParserException, IOException, ParseException {
-        Presence p = Presence.parse(parser, childParsers);
-        for (Presence.PresenceListener listener : listenersPresence) {
-            listener.onPresence(p);
+    private void onPresence(final Presence p) {
+        listenersPresence.forEach(Presence.PresenceListener::onPresence, p);
+        ListenerRegistry<Presence.PresenceListener> listeners = listenersPresenceType.get(presenceKey(p.type));
+        if (listeners != null) {
+            listeners.forEach(Presence.PresenceListener::onPresence, p);
         }
     }
 
-    protected void message() throws XmlPullParserException, IOException, ParseException {
-        Message msg = Message.parse(parser, childParsers);
-        for (Message.MessageListener listener : listenersMessage) {
-            listener.onMessage(msg);
+    private void onMessage(final Message msg) {
+        listenersMessage.forEach(Message.MessageListener::onMessage, msg);
+        if (!listenersMessageXmlns.isEmpty()) {
+            List<StanzaChild> childs = msg.childs;
+            for (int i = 0; i < childs.size(); i++) {
+                String xmlns = childs.get(i).getXMLNS();
+                ListenerRegistry<Message.MessageListener> listeners = listenersMessageXmlns.get(xmlns);
+                if (listeners != null && !hasChild(childs, i, xmlns)) {
+                    listeners.forEach(Message.MessageListener::onMessage, msg);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether one of the first children is of the namespace, so that its listeners have been called
+     */
+    private static boolean hasChild(final List<StanzaChild> childs, final int count, final String xmlns) {
+        for (int i = 0; i < count; i++) {
+            if (xmlns.equals(childs.get(i).getXMLNS())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class MeteredInputStream extends FilterInputStream {
+
+        private final StreamMetrics metrics;
+
+        MeteredInputStream(final InputStream in, final StreamMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                metrics.bytesIn(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0) {
+                metrics.bytesIn(count);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Times the delayed flushes of all streams on one thread. The flushes themselves run on threads of their own,
+     * virtual ones where available, so that a peer which does not read holds up only the flushes of its stream.
+     */
+    private static final class FlushScheduler {
+
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "xmpp-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private static final ExecutorService WRITERS = Executors.newCachedThreadPool(
+            StreamLauncher.threadFactory("xmpp-flush-"));
+
+        static void schedule(final Runnable flush, final long delayMicros) {
+            INSTANCE.schedule(() -> WRITERS.execute(flush), delayMicros, TimeUnit.MICROSECONDS);
         }
     }
 
@@ -266,7 +1330,7 @@ public abstract class Stream {
      * It tries to close the XML-Reader and XML-Writer one last time.
      */
     protected void connectionFailed(final Exception ex) {
-        if (isLoggedIn()) {
+        if (isLoggedIn() && !abandoned) {
             try {
                 writer.close();
                 //TODO close parser
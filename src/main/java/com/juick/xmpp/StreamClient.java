@@ -46,13 +46,14 @@ public class StreamClient extends Stream implements Iq.IqListener {
 
     @Override
     public void handshake() throws XmlPullParserException, IOException {
-        writer.write(String.format("<stream:stream xmlns='%s' xmlns:stream='%s' to='%s' version='1.0'>", NS_CLIENT, NS_STREAM, to.getDomain()));
-        writer.flush();
+        send(String.format("<stream:stream xmlns='%s' xmlns:stream='%s' to='%s' version='1.0'>", NS_CLIENT, NS_STREAM, to.getDomain()));
+        flush();
         parser.next(); // stream:stream
 
         StreamFeatures features = StreamFeatures.parse(parser);
         if (features.STARTTLS == StreamFeatures.REQUIRED || features.PLAIN == StreamFeatures.NOTAVAILABLE) {
             setLoggedIn(false);
+            getMetrics().authFailed();
             getListenersStream().forEach(listener -> listener.fail(new IOException("stream:features, failed authentication")));
             return;
         }
@@ -60,14 +61,15 @@ public class StreamClient extends Stream implements Iq.IqListener {
         StringBuilder msg = new StringBuilder("<auth xmlns='urn:ietf:params:xml:ns:xmpp-sasl' mechanism='PLAIN'>");
         byte[] auth_msg = (from.asBareJid().toEscapedString() + '\0' + from.getLocal() + '\0' + password).getBytes();
         msg.append(Base64.encodeBase64String(auth_msg)).append("</auth>");
-        writer.write(msg.toString());
-        writer.flush();
+        send(msg.toString());
+        flush();
         parser.next();
         if (parser.getName().equals("success")) {
             skipTag("success");
             setLoggedIn(true);
         } else {
             setLoggedIn(false);
+            getMetrics().authFailed();
             for (StreamListener listener : listenersStream) {
                 listener.fail(new IOException(String.format("%s, failed authentication", parser.getName())));
             }
@@ -76,7 +78,24 @@ public class StreamClient extends Stream implements Iq.IqListener {
 
         send(String.format("<stream:stream xmlns='%s' xmlns:stream='%s' to='%s' version='1.0'>", NS_CLIENT, NS_STREAM, to.getDomain()));
         restartStream();
-        skipTag("features");
+        do {
+            parser.next();
+        } while (!(parser.getEventType() == XmlPullParser.START_TAG && parser.getName().equals("features")));
+        features = StreamFeatures.parse(parser);
+        if (isCompressionEnabled() && features.ZLIB >= 0 && canStartCompression()) {
+            send("<compress xmlns='" + NS_COMPRESS + "'><method>zlib</method></compress>");
+            flush();
+            parser.nextTag();
+            if (parser.getName().equals("compressed")) {
+                skipTag("compressed");
+                startCompression();
+                send(String.format("<stream:stream xmlns='%s' xmlns:stream='%s' to='%s' version='1.0'>", NS_CLIENT, NS_STREAM, to.getDomain()));
+                restartStream();
+                skipTag("features");
+            } else {
+                skipTag(parser.getName());
+            }
+        }
 
         Iq bind = new Iq();
         bind.type = Iq.Type.set;
@@ -88,8 +107,8 @@ public class StreamClient extends Stream implements Iq.IqListener {
             rb.resource = from.getResource();
         }
         bind.addChild(rb);
-        writer.write(bind.toString());
-        writer.flush();
+        send(bind);
+        flush();
     }
 
     protected void skipTag(String tagName) throws IOException, XmlPullParserException {
@@ -113,8 +132,8 @@ public class StreamClient extends Stream implements Iq.IqListener {
         }
         String xmlns = iq.childs.get(0).getXMLNS();
         if (xmlns.equals(ResourceBinding.XMLNS)) {
-            ResourceBinding rb = (ResourceBinding) iq.childs.get(0);
-            if (rb.jid != null) {
+            ResourceBinding rb = (ResourceBinding) iq.getChild();
+            if (rb != null && rb.jid != null) {
                 from = from.withResource(rb.jid.getResource());
             }
             listenersStream.forEach(StreamListener::ready);
@@ -48,6 +48,7 @@ public class StreamComponent extends Stream {
         String sfrom = parser.getAttributeValue(null, "from");
         if (sfrom == null || !sfrom.equals(to.toString())) {
             setLoggedIn(false);
+            getMetrics().authFailed();
             getListenersStream().forEach(listener -> listener.fail(new IOException("stream:stream, failed authentication")));
             return;
         }
@@ -61,6 +62,7 @@ public class StreamComponent extends Stream {
             listenersStream.forEach(StreamListener::ready);
         } else {
             setLoggedIn(false);
+            getMetrics().authFailed();
             for (StreamListener listener : listenersStream) {
                 listener.fail(new IOException(String.format("%s, failed authentication", parser.getName())));
             }
@@ -51,6 +51,7 @@ public class StreamComponentServer extends Stream {
         setLoggedIn(authenticated);
         if (!authenticated) {
             send(new XMPPError(XMPPError.Type.cancel, "not-authorized").toString());
+            getMetrics().authFailed();
             getListenersStream().forEach(listener -> listener.fail(new IOException("stream:stream, failed authentication")));
             return;
         }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import rocks.xmpp.addr.Jid;
+
+/**
+ * Java Flight Recorder events of streams, all disabled by default. They are turned on in a running server with
+ * {@code jcmd <pid> JFR.start +com.juick.xmpp.StanzaReceived#enabled=true} (JDK 17+) or a custom {@code .jfc}.
+ * <p>
+ * While an event is disabled, emitting it costs a check of its {@link EventType}. On a JVM without
+ * {@code jdk.jfr} (Java 8 before 8u262) the nested event classes are never loaded and nothing is emitted.
+ */
+final class StreamEvents {
+
+    private static final boolean AVAILABLE = isAvailable();
+
+    private StreamEvents() {
+    }
+
+    static void stanzaReceived(final Stream stream, final Stanza stanza, final long parseNanos) {
+        if (AVAILABLE && Jfr.RECEIVED.isEnabled()) {
+            Jfr.StanzaReceived event = new Jfr.StanzaReceived();
+            event.streamType = stream.getClass().getSimpleName();
+            event.peer = domain(stanza.from);
+            event.kind = kind(stanza);
+            event.parseTime = parseNanos;
+            event.commit();
+        }
+    }
+
+    static void stanzaDispatched(final Stream stream, final Stanza stanza, final long dispatchNanos) {
+        if (AVAILABLE && Jfr.DISPATCHED.isEnabled()) {
+            Jfr.StanzaDispatched event = new Jfr.StanzaDispatched();
+            event.streamType = stream.getClass().getSimpleName();
+            event.peer = domain(stanza.from);
+            event.kind = kind(stanza);
+            event.dispatchTime = dispatchNanos;
+            event.commit();
+        }
+    }
+
+    static void stanzaSent(final Stream stream, final Stanza stanza) {
+        if (AVAILABLE && Jfr.SENT.isEnabled()) {
+            Jfr.StanzaSent event = new Jfr.StanzaSent();
+            event.streamType = stream.getClass().getSimpleName();
+            event.peer = domain(stanza.to);
+            event.kind = kind(stanza);
+            event.queuedBytes = stream.getQueuedBytes();
+            event.commit();
+        }
+    }
+
+    static void streamOpened(final Stream stream) {
+        if (AVAILABLE && Jfr.OPENED.isEnabled()) {
+            Jfr.StreamOpened event = new Jfr.StreamOpened();
+            event.streamType = stream.getClass().getSimpleName();
+            event.peer = domain(stream.to);
+            event.commit();
+        }
+    }
+
+    static void streamClosed(final Stream stream, final Exception cause, final long lifetimeNanos) {
+        if (AVAILABLE && Jfr.CLOSED.isEnabled()) {
+            Jfr.StreamClosed event = new Jfr.StreamClosed();
+            event.streamType = stream.getClass().getSimpleName();
+            event.peer = domain(stream.to);
+            event.cause = cause == null ? null : cause.toString();
+            event.lifetime = lifetimeNanos;
+            event.commit();
+        }
+    }
+
+    static void streamRestarted(final Stream stream) {
+        if (AVAILABLE && Jfr.RESTARTED.isEnabled()) {
+            Jfr.StreamRestarted event = new Jfr.StreamRestarted();
+            event.streamType = stream.getClass().getSimpleName();
+            event.peer = domain(stream.to);
+            event.compressed = stream.isCompressed();
+            event.commit();
+        }
+    }
+
+    static void dialbackResult(final Stream stream, final String domain, final boolean valid) {
+        if (AVAILABLE && Jfr.DIALBACK.isEnabled()) {
+            Jfr.DialbackResult event = new Jfr.DialbackResult();
+            event.streamType = stream.getClass().getSimpleName();
+            event.peer = domain;
+            event.valid = valid;
+            event.commit();
+        }
+    }
+
+    static void iqTimeout(final Stream stream, final Iq iq, final long timeoutMillis) {
+        if (AVAILABLE && Jfr.IQ_TIMEOUT.isEnabled()) {
+            Jfr.IqTimeout event = new Jfr.IqTimeout();
+            event.streamType = stream.getClass().getSimpleName();
+            event.peer = domain(iq.to);
+            event.id = iq.id;
+            event.timeout = timeoutMillis;
+            event.commit();
+        }
+    }
+
+    private static String domain(final Jid jid) {
+        return jid == null ? null : jid.getDomain();
+    }
+
+    private static String kind(final Stanza stanza) {
+        return stanza instanceof Message ? "message" : stanza instanceof Presence ? "presence"
+            : stanza instanceof Iq ? "iq" : stanza.getClass().getSimpleName();
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Holds every reference to {@code jdk.jfr}, loaded once an event is emitted on a JVM that has it.
+     */
+    private static final class Jfr {
+
+        static final EventType RECEIVED = EventType.getEventType(StanzaReceived.class);
+        static final EventType DISPATCHED = EventType.getEventType(StanzaDispatched.class);
+        static final EventType SENT = EventType.getEventType(StanzaSent.class);
+        static final EventType OPENED = EventType.getEventType(StreamOpened.class);
+        static final EventType CLOSED = EventType.getEventType(StreamClosed.class);
+        static final EventType RESTARTED = EventType.getEventType(StreamRestarted.class);
+        static final EventType DIALBACK = EventType.getEventType(DialbackResult.class);
+        static final EventType IQ_TIMEOUT = EventType.getEventType(IqTimeout.class);
+
+        @Category({"XMPP", "Stream"})
+        @Enabled(false)
+        @StackTrace(false)
+        abstract static class StreamEvent extends Event {
+
+            @Label("Stream Type")
+            String streamType;
+
+            @Label("Peer Domain")
+            String peer;
+        }
+
+        @Name("com.juick.xmpp.StanzaReceived")
+        @Label("Stanza Received")
+        static final class StanzaReceived extends StreamEvent {
+
+            @Label("Kind")
+            String kind;
+
+            @Label("Parse Time")
+            @Timespan(Timespan.NANOSECONDS)
+            long parseTime;
+        }
+
+        @Name("com.juick.xmpp.StanzaDispatched")
+        @Label("Stanza Dispatched")
+        static final class StanzaDispatched extends StreamEvent {
+
+            @Label("Kind")
+            String kind;
+
+            @Label("Dispatch Time")
+            @Timespan(Timespan.NANOSECONDS)
+            long dispatchTime;
+        }
+
+        @Name("com.juick.xmpp.StanzaSent")
+        @Label("Stanza Sent")
+        static final class StanzaSent extends StreamEvent {
+
+            @Label("Kind")
+            String kind;
+
+            @Label("Queued Bytes")
+            @DataAmount
+            long queuedBytes;
+        }
+
+        @Name("com.juick.xmpp.StreamOpened")
+        @Label("Stream Opened")
+        static final class StreamOpened extends StreamEvent {
+        }
+
+        @Name("com.juick.xmpp.StreamClosed")
+        @Label("Stream Closed")
+        static final class StreamClosed extends StreamEvent {
+
+            @Label("Cause")
+            String cause;
+
+            @Label("Lifetime")
+            @Timespan(Timespan.NANOSECONDS)
+            long lifetime;
+        }
+
+        @Name("com.juick.xmpp.StreamRestarted")
+        @Label("Stream Restarted")
+        static final class StreamRestarted extends StreamEvent {
+
+            @Label("Compressed")
+            boolean compressed;
+        }
+
+        @Name("com.juick.xmpp.DialbackResult")
+        @Label("Dialback Result")
+        static final class DialbackResult extends StreamEvent {
+
+            @Label("Valid")
+            boolean valid;
+        }
+
+        @Name("com.juick.xmpp.IqTimeout")
+        @Label("IQ Timeout")
+        static final class IqTimeout extends StreamEvent {
+
+            @Label("Id")
+            String id;
+
+            @Label("Timeout")
+            @Timespan(Timespan.MILLISECONDS)
+            long timeout;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the blocking {@link Stream#connect()} loop of every stream on a thread of its own.
+ * <p>
+ * On a JVM with virtual threads (Java 21+) each stream gets a virtual thread, so tens of thousands
+ * of mostly idle streams cost no platform threads. The blocking paths of a stream (socket reads through the parser,
+ * {@code OutputStreamWriter.flush}) hold no monitors, so they unmount from the carrier thread instead of pinning it.
+ * Code running in listeners should keep to {@code java.util.concurrent} locks for the same reason.
+ * On older JVMs a daemon platform thread is started per stream.
+ */
+public class StreamLauncher {
+
+    /**
+     * Creates a stream for an accepted or connected socket, with its listeners and child parsers already added.
+     */
+    public interface StreamFactory<T extends Stream> {
+
+        T create(InputStream is, OutputStream os) throws Exception;
+    }
+
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = virtualThreadFactory("xmpp-stream-");
+
+    private final ThreadFactory threadFactory;
+
+    public StreamLauncher() {
+        this(VIRTUAL_THREAD_FACTORY != null ? VIRTUAL_THREAD_FACTORY : platformThreadFactory("xmpp-stream-"));
+    }
+
+    public StreamLauncher(final ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    public Thread launch(final Stream stream) {
+        Thread thread = threadFactory.newThread(stream::connect);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Creates a stream on the socket and runs it, closing the socket once the stream is finished.
+     */
+    public <T extends Stream> T launch(final Socket socket, final StreamFactory<T> factory) throws IOException {
+        final T stream;
+        try {
+            stream = factory.create(socket.getInputStream(), socket.getOutputStream());
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        } catch (Exception e) {
+            closeQuietly(socket);
+            throw new IOException(e);
+        }
+        Thread thread = threadFactory.newThread(() -> {
+            try {
+                stream.connect();
+            } finally {
+                closeQuietly(socket);
+            }
+        });
+        thread.start();
+        return stream;
+    }
+
+    /**
+     * Accepts connections until the server socket is closed and runs a stream for each of them.
+     */
+    public Thread serve(final ServerSocket serverSocket, final StreamFactory<? extends Stream> factory) {
+        Thread thread = threadFactory.newThread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    launch(serverSocket.accept(), factory);
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void closeQuietly(final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * @return a factory of virtual threads where they are available, of daemon platform threads otherwise
+     */
+    static ThreadFactory threadFactory(final String prefix) {
+        ThreadFactory virtual = virtualThreadFactory(prefix);
+        return virtual != null ? virtual : platformThreadFactory(prefix);
+    }
+
+    private static ThreadFactory platformThreadFactory(final String prefix) {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Looks up {@code Thread.ofVirtual()} reflectively, so the library still runs on Java 8.
+     *
+     * @return null if virtual threads are not available
+     */
+    private static ThreadFactory virtualThreadFactory(final String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            factory.newThread(() -> { });
+            return factory;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
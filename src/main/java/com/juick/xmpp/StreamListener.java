@@ -12,4 +12,11 @@ public interface StreamListener {
     void fail(final Exception ex);
 
     boolean filter(Jid from, Jid to);
+
+    /**
+     * Called when the bytes queued for the peer cross the high watermark, and again once they fall to the low one.
+     * Runs on a thread shared by all streams and must not block.
+     */
+    default void writabilityChanged(final boolean writable) {
+    }
 }
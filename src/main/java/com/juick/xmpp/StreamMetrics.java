@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp;
+
+import com.juick.xmpp.utils.Histogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms of streams.
+ * <p>
+ * Every stream records into {@link #GLOBAL} unless it is given metrics of its own with
+ * {@link Stream#setMetrics(StreamMetrics)}; metrics created with a parent record into it as well,
+ * so a stream watched on its own still shows up in the totals. Counters are {@link LongAdder}s,
+ * which threads update without contending with each other.
+ */
+public class StreamMetrics {
+
+    public static final StreamMetrics GLOBAL = new StreamMetrics(null);
+
+    /**
+     * Publishes metrics, for example as MBeans with {@link JmxMetricsExporter}.
+     */
+    public interface Exporter {
+
+        void register(String name, StreamMetrics metrics);
+
+        void unregister(String name);
+    }
+
+    private final StreamMetrics parent;
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder presencesIn = new LongAdder();
+    private final LongAdder iqsIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder presencesOut = new LongAdder();
+    private final LongAdder iqsOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder queuedBytes = new LongAdder();
+    private final LongAdder pendingIqs = new LongAdder();
+    private final LongAdder authFailures = new LongAdder();
+    private final Map<String, LongAdder> openStreams = new ConcurrentHashMap<>();
+    private final Histogram parseTime = new Histogram();
+    private final Histogram dispatchTime = new Histogram();
+
+    /**
+     * @param parent also records everything recorded here, null for none
+     */
+    public StreamMetrics(final StreamMetrics parent) {
+        this.parent = parent;
+    }
+
+    void received(final Stanza stanza) {
+        for (StreamMetrics m = this; m != null; m = m.parent) {
+            LongAdder counter = kind(stanza, m.messagesIn, m.presencesIn, m.iqsIn);
+            if (counter != null) {
+                counter.increment();
+            }
+        }
+    }
+
+    void sent(final Stanza stanza) {
+        for (StreamMetrics m = this; m != null; m = m.parent) {
+            LongAdder counter = kind(stanza, m.messagesOut, m.presencesOut, m.iqsOut);
+            if (counter != null) {
+                counter.increment();
+            }
+        }
+    }
+
+    private static LongAdder kind(final Stanza stanza, final LongAdder messages, final LongAdder presences,
+                                  final LongAdder iqs) {
+        return stanza instanceof Message ? messages : stanza instanceof Presence ? presences
+            : stanza instanceof Iq ? iqs : null;
+    }
+
+    void bytesIn(final long bytes) {
+        for (StreamMetrics m = this; m != null; m = m.parent) {
+            m.bytesIn.add(bytes);
+        }
+    }
+
+    void bytesOut(final long bytes) {
+        for (StreamMetrics m = this; m != null; m = m.parent) {
+            m.bytesOut.add(bytes);
+        }
+    }
+
+    void queued(final long bytes) {
+        for (StreamMetrics m = this; m != null; m = m.parent) {
+            m.queuedBytes.add(bytes);
+        }
+    }
+
+    void pendingIq(final int delta) {
+        for (StreamMetrics m = this; m != null; m = m.parent) {
+            m.pendingIqs.add(delta);
+        }
+    }
+
+    void authFailed() {
+        for (StreamMetrics m = this; m != null; m = m.parent) {
+            m.authFailures.increment();
+        }
+    }
+
+    void opened(final Stream stream, final int delta) {
+        String type = stream.getClass().getSimpleName();
+        for (StreamMetrics m = this; m != null; m = m.parent) {
+            m.openStreams.computeIfAbsent(type, k -> new LongAdder()).add(delta);
+        }
+    }
+
+    void parsed(final long nanos) {
+        for (StreamMetrics m = this; m != null; m = m.parent) {
+            m.parseTime.record(nanos);
+        }
+    }
+
+    void dispatched(final long nanos) {
+        for (StreamMetrics m = this; m != null; m = m.parent) {
+            m.dispatchTime.record(nanos);
+        }
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long getPresencesIn() {
+        return presencesIn.sum();
+    }
+
+    public long getIqsIn() {
+        return iqsIn.sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    public long getPresencesOut() {
+        return presencesOut.sum();
+    }
+
+    public long getIqsOut() {
+        return iqsOut.sum();
+    }
+
+    /**
+     * @return bytes read by the parser, after TLS and compression are taken off
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return bytes written, before TLS and compression are applied
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * @return bytes sent but not yet written to the peers
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.sum();
+    }
+
+    public long getPendingIqs() {
+        return pendingIqs.sum();
+    }
+
+    public long getAuthFailures() {
+        return authFailures.sum();
+    }
+
+    /**
+     * @param type the simple class name of the streams, such as {@code StreamServer}
+     */
+    public long getOpenStreams(final String type) {
+        LongAdder open = openStreams.get(type);
+        return open == null ? 0 : open.sum();
+    }
+
+    /**
+     * @return nanoseconds spent parsing each stanza read
+     */
+    public Histogram getParseTime() {
+        return parseTime;
+    }
+
+    /**
+     * @return nanoseconds spent running the listeners of each stanza read
+     */
+    public Histogram getDispatchTime() {
+        return dispatchTime;
+    }
+
+    /**
+     * @return every metric by name, the histograms as their count, median, 99th percentile and maximum
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("stanzas.in.message", getMessagesIn());
+        snapshot.put("stanzas.in.presence", getPresencesIn());
+        snapshot.put("stanzas.in.iq", getIqsIn());
+        snapshot.put("stanzas.out.message", getMessagesOut());
+        snapshot.put("stanzas.out.presence", getPresencesOut());
+        snapshot.put("stanzas.out.iq", getIqsOut());
+        snapshot.put("bytes.in", getBytesIn());
+        snapshot.put("bytes.out", getBytesOut());
+        snapshot.put("bytes.queued", getQueuedBytes());
+        snapshot.put("iq.pending", getPendingIqs());
+        snapshot.put("auth.failures", getAuthFailures());
+        for (Map.Entry<String, LongAdder> open : openStreams.entrySet()) {
+            snapshot.put("streams.open." + open.getKey(), open.getValue().sum());
+        }
+        histogram(snapshot, "time.parse", parseTime);
+        histogram(snapshot, "time.dispatch", dispatchTime);
+        return snapshot;
+    }
+
+    private static void histogram(final Map<String, Long> snapshot, final String name, final Histogram histogram) {
+        snapshot.put(name + ".count", histogram.getCount());
+        snapshot.put(name + ".p50", histogram.getValueAtQuantile(0.5));
+        snapshot.put(name + ".p99", histogram.getValueAtQuantile(0.99));
+        snapshot.put(name + ".max", histogram.getMax());
+    }
+}
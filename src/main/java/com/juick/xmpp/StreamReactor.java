@@ -0,0 +1,889 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp;
+
+import com.juick.xmpp.utils.XmppTokenizer;
+import org.xmlpull.v1.XmlPullParserException;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Serves many streams over non-blocking {@link SocketChannel}s with a small pool of event-loop threads.
+ * <p>
+ * The handshake of a stream is a short sequence of blocking reads, so it runs on the handshake executor.
+ * Once {@link Stream#handshake()} returns, each following top-level element is parsed on the event loop
+ * which owns the channel and dispatched to the same listeners as {@link Stream#connect()} does,
+ * so an idle stream costs no thread at all. Elements larger than {@link #setMaxElementSize(int)}
+ * finish the stream with a {@code policy-violation} error. Encryption and compression are done by the connection
+ * between the channel and the tokenizer, the TLS handshake runs on the event loop as its records arrive.
+ */
+public class StreamReactor implements Closeable {
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ExecutorService handshakeExecutor;
+    private volatile int maxElementSize;
+
+    public StreamReactor() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public StreamReactor(final int threads) throws IOException {
+        this(threads, Executors.newCachedThreadPool());
+    }
+
+    public StreamReactor(final int threads, final ExecutorService handshakeExecutor) throws IOException {
+        this.handshakeExecutor = handshakeExecutor;
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("xmpp-reactor-" + i);
+        }
+    }
+
+    /**
+     * @param maxElementSize the largest first-level element accepted from the streams registered afterwards,
+     *                       in bytes, or 0 for no limit
+     */
+    public void setMaxElementSize(final int maxElementSize) {
+        this.maxElementSize = maxElementSize;
+    }
+
+    /**
+     * Takes over the channel and starts the stream on it, replacing the input and output streams
+     * the stream was created with.
+     */
+    public void register(final SocketChannel channel, final Stream stream) throws IOException {
+        channel.configureBlocking(false);
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        Connection connection = new Connection(loop, channel, stream, maxElementSize);
+        stream.setIs(connection.input);
+        stream.setOs(connection.output);
+        stream.inputMetered = true;
+        stream.transport = connection;
+        loop.execute(connection::open);
+        handshakeExecutor.execute(connection::handshake);
+    }
+
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+        handshakeExecutor.shutdownNow();
+    }
+
+    private static final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private volatile boolean running = true;
+
+        EventLoop(final String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void execute(final Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void close() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read(readBuffer);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // keep serving the other channels
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static final class Connection implements XmppTokenizer.Handler, Stream.Transport {
+
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final Stream stream;
+        private final XmppTokenizer tokenizer;
+        private final HandshakeInput input = new HandshakeInput();
+        private final ChannelOutput output = new ChannelOutput();
+        private final ElementInput elementInput = new ElementInput();
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        /**
+         * Guards the deflater and the order of the queued writes.
+         */
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private Inflater inflater;
+        private byte[] inflated;
+        private Deflater deflater;
+        private byte[] deflated;
+        private volatile Tls tls;
+        private volatile boolean closing;
+        private SelectionKey key;
+        private byte[] header;
+        private boolean framed;
+        /**
+         * What the tokenizer failed with before the stream was framed, the stream is finished with it once it is.
+         */
+        private XmlPullParserException failure;
+
+        Connection(final EventLoop loop, final SocketChannel channel, final Stream stream, final int maxElementSize) {
+            this.loop = loop;
+            this.channel = channel;
+            this.stream = stream;
+            tokenizer = new XmppTokenizer(this, maxElementSize);
+        }
+
+        void open() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                input.end();
+            }
+        }
+
+        void handshake() {
+            stream.opened();
+            try {
+                stream.restartStream();
+                stream.handshake();
+            } catch (final Exception e) {
+                stream.closed(e);
+                stream.connectionFailed(e);
+                loop.execute(this::close);
+                return;
+            }
+            loop.execute(this::startFraming);
+        }
+
+        void startFraming() {
+            framed = true;
+            if (stream.isFinished()) {
+                closeAfterFlush();
+                return;
+            }
+            Unit unit;
+            while ((unit = input.units.poll()) != null) {
+                if (unit == HandshakeInput.EOF) {
+                    if (failure != null) {
+                        stream.finish(failure);
+                        closeAfterFlush();
+                    } else {
+                        stream.finish(new EOFException());
+                        close();
+                    }
+                    return;
+                }
+                unit.kind.dispatch(this, unit);
+            }
+        }
+
+        void read(final ByteBuffer buffer) {
+            try {
+                buffer.clear();
+                int count = channel.read(buffer);
+                if (count < 0) {
+                    eof(new EOFException());
+                } else {
+                    stream.getMetrics().bytesIn(count);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        Tls layer = tls;
+                        if (layer == null) {
+                            deliver(buffer);
+                        } else {
+                            layer.unwrap(buffer);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                eof(e);
+            } catch (XmlPullParserException e) {
+                if (framed) {
+                    stream.finish(e);
+                    closeAfterFlush();
+                } else {
+                    failure = e;
+                    key.interestOps(0);
+                    input.end();
+                }
+            }
+        }
+
+        /**
+         * Hands the bytes read, decrypted if TLS is on, to the tokenizer or the inflater. Returns early
+         * once TLS starts, the bytes left are then encrypted.
+         */
+        private void deliver(final ByteBuffer data) throws IOException, XmlPullParserException {
+            Tls layer = tls;
+            while (data.hasRemaining() && tls == layer) {
+                if (inflater == null) {
+                    tokenizer.feed(data);
+                } else {
+                    inflate(data);
+                }
+            }
+        }
+
+        /**
+         * Feeds the tokenizer with what the bytes inflate to.
+         */
+        private void inflate(final ByteBuffer data) throws IOException, XmlPullParserException {
+            inflater.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+            try {
+                int count;
+                while ((count = inflater.inflate(inflated)) > 0 || !inflater.needsInput()) {
+                    if (count == 0) {
+                        throw new ZipException("zlib stream ended");
+                    }
+                    int fed = 0;
+                    while (fed < count) {
+                        fed += tokenizer.feed(inflated, fed, count - fed);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+        }
+
+        @Override
+        public boolean inEventLoop() {
+            return Thread.currentThread() == loop.thread;
+        }
+
+        /**
+         * Called on the event loop while the element asking for compression is handled,
+         * with everything written before already queued.
+         */
+        @Override
+        public void startCompression() {
+            requireEventLoop();
+            writeLock.lock();
+            try {
+                deflater = new Deflater();
+                deflated = new byte[8192];
+            } finally {
+                writeLock.unlock();
+            }
+            inflater = new Inflater();
+            inflated = new byte[8192];
+            tokenizer.suspend();
+        }
+
+        /**
+         * Called on the event loop while the element starting TLS is handled, with everything written before
+         * already queued. What is written until the handshake is done is held back.
+         */
+        @Override
+        public void startTls(final SSLEngine engine) throws IOException {
+            requireEventLoop();
+            writeLock.lock();
+            try {
+                tls = new Tls(engine);
+                tls.start();
+            } finally {
+                writeLock.unlock();
+            }
+            tokenizer.suspend();
+        }
+
+        /**
+         * The tokenizer is switched over while it is fed the element asking for the switch, a handshake
+         * thread would race the event loop reading what follows.
+         */
+        private void requireEventLoop() {
+            if (!inEventLoop()) {
+                throw new IllegalStateException("the transport of a reactor stream is switched on its event loop");
+            }
+        }
+
+        private void eof(final IOException cause) {
+            if (framed) {
+                stream.finish(cause);
+            } else {
+                input.end();
+            }
+            close();
+        }
+
+        @Override
+        public void header(final ByteBuffer data) {
+            header = toArray(data);
+            if (!framed) {
+                input.add(UnitKind.HEADER, null, header);
+            } else if (!stream.parseElement(elementInput.of(header, null), 1)) {
+                closeAfterFlush();
+            }
+        }
+
+        @Override
+        public void element(final String name, final ByteBuffer data) {
+            if (!framed) {
+                input.add(UnitKind.ELEMENT, name, toArray(data));
+            } else if (stream.rawStanza(name, data)) {
+                if (stream.isFinished()) {
+                    closeAfterFlush();
+                }
+            } else if (!stream.parseElement(elementInput.of(header, data), 2)) {
+                closeAfterFlush();
+            }
+        }
+
+        @Override
+        public void text(final ByteBuffer data) {
+            if (!framed) {
+                input.add(UnitKind.TEXT, null, toArray(data));
+            }
+        }
+
+        @Override
+        public void footer(final ByteBuffer data) {
+            if (!framed) {
+                input.add(UnitKind.FOOTER, null, toArray(data));
+            } else {
+                stream.finish(null);
+                closeAfterFlush();
+            }
+        }
+
+        private static byte[] toArray(final ByteBuffer data) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            return bytes;
+        }
+
+        void write(final byte[] data, final int offset, final int length) throws IOException {
+            if (closing) {
+                throw new IOException("connection closed");
+            }
+            writeLock.lock();
+            try {
+                if (deflater == null) {
+                    transmit(data, offset, length);
+                } else {
+                    deflate(data, offset, length);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Queues what the bytes deflate to, sync-flushed so that the peer can inflate every write at once.
+         */
+        private void deflate(final byte[] data, final int offset, final int length) throws IOException {
+            deflater.setInput(data, offset, length);
+            int count;
+            do {
+                count = deflater.deflate(deflated, 0, deflated.length, Deflater.SYNC_FLUSH);
+                if (count > 0) {
+                    transmit(deflated, 0, count);
+                }
+            } while (count == deflated.length);
+        }
+
+        /**
+         * Queues the bytes for the channel, encrypted if TLS is on. Must hold the write lock.
+         */
+        private void transmit(final byte[] data, final int offset, final int length) throws IOException {
+            if (tls == null) {
+                enqueue(Arrays.copyOfRange(data, offset, offset + length));
+            } else {
+                tls.write(data, offset, length);
+            }
+        }
+
+        private void enqueue(final byte[] bytes) {
+            outbound.add(ByteBuffer.wrap(bytes));
+            stream.queued(bytes.length);
+            scheduleFlush();
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        void flush() {
+            flushScheduled.set(false);
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            try {
+                ByteBuffer buffer;
+                while ((buffer = outbound.peek()) != null) {
+                    stream.written(channel.write(buffer));
+                    if (buffer.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outbound.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing) {
+                    close();
+                }
+            } catch (IOException e) {
+                eof(e);
+            }
+        }
+
+        void closeAfterFlush() {
+            if (tls != null && !closing) {
+                writeLock.lock();
+                try {
+                    tls.close();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            closing = true;
+            scheduleFlush();
+        }
+
+        @Override
+        public void abort() {
+            closing = true;
+            loop.execute(this::close);
+        }
+
+        /**
+         * Discards the bytes queued for the channel, on the event loop which writes them.
+         */
+        private void drop() {
+            ByteBuffer buffer;
+            while ((buffer = outbound.poll()) != null) {
+                stream.written(buffer.remaining());
+            }
+        }
+
+        void close() {
+            closing = true;
+            drop();
+            input.end();
+            if (framed) {
+                stream.releaseParser();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+            writeLock.lock();
+            try {
+                if (deflater != null) {
+                    deflater.end();
+                    deflater = null;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Runs the {@link SSLEngine} over the bytes of the channel. Records are unwrapped on the event loop
+         * and wrapped under the write lock, which also guards the handshake.
+         */
+        private final class Tls {
+
+            private final SSLEngine engine;
+            private final ByteArrayOutputStream held = new ByteArrayOutputStream();
+            private ByteBuffer netIn;
+            private ByteBuffer appIn;
+            private ByteBuffer netOut;
+
+            Tls(final SSLEngine engine) {
+                this.engine = engine;
+                netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            }
+
+            void start() throws SSLException {
+                engine.beginHandshake();
+                advance();
+            }
+
+            /**
+             * Delivers what the records read so far decrypt to, keeping an incomplete record for the next read.
+             */
+            void unwrap(final ByteBuffer data) throws IOException, XmlPullParserException {
+                if (netIn.remaining() < data.remaining()) {
+                    netIn.flip();
+                    netIn = ByteBuffer.allocate(netIn.remaining() + data.remaining()).put(netIn);
+                }
+                netIn.put(data);
+                netIn.flip();
+                try {
+                    while (true) {
+                        appIn.clear();
+                        SSLEngineResult result = engine.unwrap(netIn, appIn);
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                            appIn = ByteBuffer.allocate(appIn.capacity() + engine.getSession().getApplicationBufferSize());
+                            continue;
+                        }
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            return;
+                        }
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new EOFException("TLS connection closed");
+                        }
+                        writeLock.lock();
+                        try {
+                            advance();
+                        } finally {
+                            writeLock.unlock();
+                        }
+                        appIn.flip();
+                        if (appIn.hasRemaining()) {
+                            deliver(appIn);
+                        }
+                    }
+                } finally {
+                    netIn.compact();
+                }
+            }
+
+            /**
+             * Holds the bytes back while the handshake runs. Must hold the write lock.
+             */
+            void write(final byte[] data, final int offset, final int length) throws SSLException {
+                if (handshaking()) {
+                    held.write(data, offset, length);
+                    stream.queued(length);
+                } else {
+                    wrap(ByteBuffer.wrap(data, offset, length));
+                }
+            }
+
+            /**
+             * Queues the close_notify alert. Must hold the write lock.
+             */
+            void close() {
+                engine.closeOutbound();
+                try {
+                    wrap(EMPTY);
+                } catch (SSLException e) {
+                    // the connection is closed anyway
+                }
+            }
+
+            private boolean handshaking() {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                    && status != SSLEngineResult.HandshakeStatus.FINISHED;
+            }
+
+            /**
+             * Wraps the handshake messages due and runs its tasks, then writes what was held back once the
+             * handshake is done. Must hold the write lock.
+             */
+            private void advance() throws SSLException {
+                while (true) {
+                    switch (engine.getHandshakeStatus()) {
+                        case NEED_TASK:
+                            Runnable task;
+                            while ((task = engine.getDelegatedTask()) != null) {
+                                task.run();
+                            }
+                            break;
+                        case NEED_WRAP:
+                            if (!wrap(EMPTY)) {
+                                return;
+                            }
+                            break;
+                        case NEED_UNWRAP:
+                        case NEED_UNWRAP_AGAIN:
+                            return;
+                        default:
+                            if (held.size() > 0) {
+                                byte[] bytes = held.toByteArray();
+                                held.reset();
+                                stream.written(bytes.length);
+                                wrap(ByteBuffer.wrap(bytes));
+                            }
+                            return;
+                    }
+                }
+            }
+
+            /**
+             * @return false once the engine is closed
+             */
+            private boolean wrap(final ByteBuffer src) throws SSLException {
+                while (true) {
+                    netOut.clear();
+                    SSLEngineResult result = engine.wrap(src, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        netOut = ByteBuffer.allocate(netOut.capacity() + engine.getSession().getPacketBufferSize());
+                        continue;
+                    }
+                    if (netOut.position() > 0) {
+                        enqueue(Arrays.copyOf(netOut.array(), netOut.position()));
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        return false;
+                    }
+                    if (!src.hasRemaining()) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        private final class ChannelOutput extends OutputStream {
+
+            @Override
+            public void write(final int b) throws IOException {
+                Connection.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                Connection.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                closeAfterFlush();
+            }
+        }
+    }
+
+    /**
+     * Hands the parser of a connection the header followed by an element, as the bytes they were read as,
+     * reused for every element instead of a stream built for each.
+     */
+    private static final class ElementInput extends InputStream {
+
+        private ByteBuffer header = ByteBuffer.allocate(0);
+        private ByteBuffer element;
+
+        /**
+         * @param element the element read with the namespaces of the header, null for the header alone
+         */
+        InputStream of(final byte[] header, final ByteBuffer element) {
+            this.header = ByteBuffer.wrap(header);
+            this.element = element == null ? null : element.duplicate();
+            return this;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer bytes = current();
+            return bytes == null ? -1 : bytes.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            }
+            ByteBuffer bytes = current();
+            if (bytes == null) {
+                return -1;
+            }
+            int count = Math.min(length, bytes.remaining());
+            bytes.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer bytes = current();
+            return bytes == null ? 0 : bytes.remaining();
+        }
+
+        private ByteBuffer current() {
+            if (header.hasRemaining()) {
+                return header;
+            }
+            return element != null && element.hasRemaining() ? element : null;
+        }
+    }
+
+    private enum UnitKind {
+        HEADER {
+            @Override
+            void dispatch(final Connection connection, final Unit unit) {
+                connection.header(ByteBuffer.wrap(unit.data));
+            }
+        },
+        ELEMENT {
+            @Override
+            void dispatch(final Connection connection, final Unit unit) {
+                connection.element(unit.name, ByteBuffer.wrap(unit.data));
+            }
+        },
+        TEXT {
+            @Override
+            void dispatch(final Connection connection, final Unit unit) {
+                connection.text(ByteBuffer.wrap(unit.data));
+            }
+        },
+        FOOTER {
+            @Override
+            void dispatch(final Connection connection, final Unit unit) {
+                connection.footer(ByteBuffer.wrap(unit.data));
+            }
+        };
+
+        abstract void dispatch(Connection connection, Unit unit);
+    }
+
+    private static final class Unit {
+
+        private final UnitKind kind;
+        private final String name;
+        private final byte[] data;
+
+        Unit(final UnitKind kind, final String name, final byte[] data) {
+            this.kind = kind;
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Feeds the units framed by the event loop to the blocking parser used during the handshake.
+     * A read never crosses a unit boundary, so the parser does not buffer anything the handshake did not ask for
+     * and the rest of the units can be parsed on the event loop afterwards.
+     */
+    private static final class HandshakeInput extends InputStream {
+
+        private static final Unit EOF = new Unit(UnitKind.FOOTER, null, new byte[0]);
+
+        private final BlockingQueue<Unit> units = new LinkedBlockingQueue<>();
+        private byte[] current;
+        private int position;
+
+        void add(final UnitKind kind, final String name, final byte[] data) {
+            units.add(new Unit(kind, name, data));
+        }
+
+        void end() {
+            units.add(EOF);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (current == EOF.data) {
+                return -1;
+            }
+            if (current == null || position == current.length) {
+                try {
+                    current = units.take().data;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                position = 0;
+                if (current == EOF.data) {
+                    return -1;
+                }
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import static com.juick.xmpp.StreamServerDialback.NS_DB;
 import static com.juick.xmpp.StreamServerDialback.NS_TLS;
 
 import com.juick.xmpp.utils.XmlUtils;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.apache.commons.lang3.StringUtils;
@@ -35,12 +36,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketException;
-import java.text.ParseException;
 import java.time.Instant;
-import java.util.Arrays;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author ugnich
@@ -52,16 +57,27 @@ public class StreamServer extends Stream {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(StreamServer.class);
 
-    private List<Jid> fromJids = new CopyOnWriteArrayList<>();
+    /**
+     * Remote domains authorized by dialback to send on this stream, lower case.
+     */
+    private final Set<String> fromDomains = ConcurrentHashMap.newKeySet();
     private Instant received;
     @Setter
     private ConnectionListener listener;
+    @Setter
+    private ConnectionManager connectionManager;
     private String streamID;
     private boolean secured = false;
-    @Setter
-    private String[] brokenSSLhosts;
-    @Setter
-    private String[] bannedHosts;
+    /**
+     * Remote domains not offered STARTTLS, lower case.
+     */
+    @Getter(AccessLevel.NONE)
+    private volatile Set<String> brokenSSLhosts = Collections.emptySet();
+    /**
+     * Remote domains whose streams are closed, lower case.
+     */
+    @Getter(AccessLevel.NONE)
+    private volatile Set<String> bannedHosts = Collections.emptySet();
     private long packetsRemote = 0;
 
     public StreamServer(Jid from, Jid to, InputStream is, OutputStream os)
@@ -70,87 +86,90 @@ public class StreamServer extends Stream {
     }
 
     @Override
-    protected void parse() throws IOException, ParseException {
-        try {
+    protected boolean handleElement() throws Exception {
+        updateTsRemoteData();
 
-            while (parser.next() != XmlPullParser.END_DOCUMENT) {
+        packetsRemote++;
+
+        String tag = parser.getName();
+        if (tag.equals("result") && parser.getNamespace().equals(NS_DB)) {
+            String dfrom = parser.getAttributeValue(null, "from");
+            String to = parser.getAttributeValue(null, "to");
+            LOGGER.info("stream from {} to {} {} asking for dialback", dfrom, to, streamID);
+            if (dfrom.endsWith(from.toEscapedString()) && (dfrom.equals(from.toEscapedString())
+                || dfrom.endsWith("." + from))) {
+                LOGGER.warn("stream from {} is invalid", dfrom);
+                return false;
+            }
+            if (to != null && to.equals(from.toEscapedString())) {
+                String dbKey = XmlUtils.getTagText(parser);
                 updateTsRemoteData();
-                if (parser.getEventType() != XmlPullParser.START_TAG) {
-                    continue;
-                }
-                logParser();
-
-                packetsRemote++;
-
-                String tag = parser.getName();
-                if (tag.equals("result") && parser.getNamespace().equals(NS_DB)) {
-                    String dfrom = parser.getAttributeValue(null, "from");
-                    String to = parser.getAttributeValue(null, "to");
-                    LOGGER.info("stream from {} to {} {} asking for dialback", dfrom, to, streamID);
-                    if (dfrom.endsWith(from.toEscapedString()) && (dfrom.equals(from.toEscapedString())
-                        || dfrom.endsWith("." + from))) {
-                        LOGGER.warn("stream from {} is invalid", dfrom);
-                        break;
-                    }
-                    if (to != null && to.equals(from.toEscapedString())) {
-                        String dbKey = XmlUtils.getTagText(parser);
-                        updateTsRemoteData();
-                        //xmpp.startDialback(Jid.of(dfrom), streamID, dbKey);
-                    } else {
-                        LOGGER.warn("stream from " + dfrom + " " + streamID + " invalid to " + to);
-                        break;
-                    }
-                } else if (tag.equals("verify") && parser.getNamespace().equals(NS_DB)) {
-                    String vfrom = parser.getAttributeValue(null, "from");
-                    String vto = parser.getAttributeValue(null, "to");
-                    String vid = parser.getAttributeValue(null, "id");
-                    String vkey = XmlUtils.getTagText(parser);
-                    updateTsRemoteData();
-                    final boolean[] valid = {false};
-                    if (vfrom != null && vto != null && vid != null && vkey != null) {
-//                        xmpp.getConnectionOut(Jid.of(vfrom), false).ifPresent(c -> {
-//                            String dialbackKey = c.dbKey;
-//                            valid[0] = vkey.equals(dialbackKey);
-//                        });
-                    }
-                    if (valid[0]) {
-                        send("<db:verify from='" + vto + "' to='" + vfrom + "' id='" + vid + "' type='valid'/>");
-                        LOGGER.info("stream from {} {} dialback verify valid", vfrom, streamID);
-                    } else {
-                        send("<db:verify from='" + vto + "' to='" + vfrom + "' id='" + vid + "' type='invalid'/>");
-                        LOGGER.warn("stream from {} {} dialback verify invalid", vfrom, streamID);
-                    }
-                } else if (tag.equals("presence") && checkFromTo(parser)) {
-                    presence();
-                } else if (tag.equals("message") && checkFromTo(parser)) {
-                    message();
-                } else if (tag.equals("iq") && checkFromTo(parser)) {
-                    updateTsRemoteData();
-                    iq();
-                } else if (!isSecured() && tag.equals("starttls")) {
-                    listener.starttls(this);
-                } else if (isSecured() && tag.equals("stream") && parser.getNamespace().equals(NS_STREAM)) {
-                    sendOpenStream(null, true);
-                } else if (tag.equals("error")) {
-                    error();
-                    close();
-                } else {
-                    String unhandledStanza = XmlUtils.parseToString(parser, true);
-                    LOGGER.warn("Unhandled stanza from {}: {}", streamID, unhandledStanza);
-                }
+                //xmpp.startDialback(Jid.of(dfrom), streamID, dbKey);
+            } else {
+                LOGGER.warn("stream from " + dfrom + " " + streamID + " invalid to " + to);
+                return false;
             }
-            LOGGER.warn("stream {} finished", streamID);
-//            xmpp.removeConnectionIn(this);
+        } else if (tag.equals("verify") && parser.getNamespace().equals(NS_DB)) {
+            String vfrom = parser.getAttributeValue(null, "from");
+            String vto = parser.getAttributeValue(null, "to");
+            String vid = parser.getAttributeValue(null, "id");
+            String vkey = XmlUtils.getTagText(parser);
+            updateTsRemoteData();
+            boolean valid = vfrom != null && vto != null && vid != null && vkey != null
+                && connectionManager != null && connectionManager.verify(vfrom, vid, vkey);
+            StreamEvents.dialbackResult(this, vfrom, valid);
+            if (valid) {
+                send("<db:verify from='" + vto + "' to='" + vfrom + "' id='" + vid + "' type='valid'/>");
+                LOGGER.info("stream from {} {} dialback verify valid", vfrom, streamID);
+            } else {
+                send("<db:verify from='" + vto + "' to='" + vfrom + "' id='" + vid + "' type='invalid'/>");
+                getMetrics().authFailed();
+                LOGGER.warn("stream from {} {} dialback verify invalid", vfrom, streamID);
+            }
+        } else if (tag.equals("presence") && checkFromTo(parser)) {
+            presence();
+        } else if (tag.equals("message") && checkFromTo(parser)) {
+            message();
+        } else if (tag.equals("iq") && checkFromTo(parser)) {
+            updateTsRemoteData();
+            iq();
+        } else if (!isSecured() && tag.equals("starttls")) {
+            if (getTlsContext() != null) {
+                XmlUtils.skip(parser);
+                send("<proceed xmlns='" + NS_TLS + "'/>");
+                startTls(getTlsContext().createServerEngine());
+                secured = true;
+                restartStream();
+                LOGGER.info("stream {} secured", streamID);
+            } else {
+                listener.starttls(this);
+            }
+        } else if (tag.equals("compress") && parser.getNamespace().equals(NS_COMPRESS)) {
+            compress();
+        } else if ((isSecured() || isCompressed()) && tag.equals("stream") && parser.getNamespace().equals(NS_STREAM)) {
+            sendOpenStream(null, true);
+        } else if (tag.equals("error")) {
+            error();
             close();
-        } catch (EOFException | SocketException ex) {
+        } else {
+            String unhandledStanza = XmlUtils.parseToString(parser, true);
+            LOGGER.warn("Unhandled stanza from {}: {}", streamID, unhandledStanza);
+        }
+        return true;
+    }
+
+    @Override
+    protected void streamFinished(final Exception cause) {
+        super.streamFinished(cause);
+        if (cause == null) {
+            LOGGER.warn("stream {} finished", streamID);
+        } else if (cause instanceof EOFException || cause instanceof SocketException) {
             LOGGER.info("stream {} closed (dirty)", streamID);
-//            xmpp.removeConnectionIn(this);
-            close();
-        } catch (Exception e) {
-            LOGGER.warn("stream {} error {}", streamID, e);
-//            xmpp.removeConnectionIn(this);
-            close();
+        } else {
+            LOGGER.warn("stream {} error {}", streamID, cause);
         }
+//        xmpp.removeConnectionIn(this);
+        close();
     }
 
     @Override
@@ -170,7 +189,7 @@ public class StreamServer extends Stream {
         boolean xmppversionnew = parser.getAttributeValue(null, "version") != null;
         String fromJid = parser.getAttributeValue(null, "from");
 
-        if (Arrays.asList(getBannedHosts()).contains(fromJid)) {
+        if (fromJid != null && bannedHosts.contains(domainOf(fromJid))) {
             close();
             return;
         }
@@ -185,18 +204,48 @@ public class StreamServer extends Stream {
                 NS_SERVER, NS_STREAM, NS_DB, from.toEscapedString(), streamID));
         if (xmppversionnew) {
             openStream.append("<stream:features>");
-            if (listener != null && !isSecured() && !Arrays.asList(getBrokenSSLhosts()).contains(fromJid)) {
+            if ((listener != null || getTlsContext() != null) && !isSecured()
+                && (fromJid == null || !brokenSSLhosts.contains(domainOf(fromJid)))) {
                 openStream.append("<starttls xmlns=\"").append(NS_TLS).append("\"><optional/></starttls>");
             }
+            openStream.append(compressionFeature());
             openStream.append("</stream:features>");
         }
         send(openStream.toString());
     }
 
+    private void compress() throws IOException, XmlPullParserException {
+        String method = null;
+        while (parser.next() == XmlPullParser.START_TAG) {
+            if (parser.getName().equals("method")) {
+                method = XmlUtils.getTagText(parser);
+            } else {
+                XmlUtils.skip(parser);
+            }
+        }
+        if (!isCompressionEnabled() || isCompressed()) {
+            send("<failure xmlns='" + NS_COMPRESS + "'><setup-failed/></failure>");
+        } else if (!"zlib".equals(method)) {
+            send("<failure xmlns='" + NS_COMPRESS + "'><unsupported-method/></failure>");
+        } else {
+            send("<compressed xmlns='" + NS_COMPRESS + "'/>");
+            startCompression();
+            restartStream();
+            LOGGER.info("stream {} compressed", streamID);
+        }
+    }
+
     private void updateTsRemoteData() {
         received = Instant.now();
     }
 
+    /**
+     * Logs the element the parser is positioned on at TRACE level.
+     *
+     * @deprecated the elements read are traced by the {@link StanzaTracer} of the stream,
+     * see {@link StanzaTracer#getDefault()}
+     */
+    @Deprecated
     public void logParser() {
         if (streamID == null) {
             return;
@@ -212,25 +261,113 @@ public class StreamServer extends Stream {
     public void sendDialbackResult(Jid sfrom, String type) {
         send("<db:result from='" + from.toEscapedString() + "' to='" + sfrom + "' type='" + type + "'/>");
         if (type.equals("valid")) {
-            getFromJids().add(sfrom);
+            fromDomains.add(sfrom.getDomain().toLowerCase(Locale.ROOT));
             LOGGER.info("stream from {} {} ready", sfrom, streamID);
         }
     }
 
-    private boolean checkFromTo(XmlPullParser parser) throws Exception {
-        String cfrom = parser.getAttributeValue(null, "from");
-        String cto = parser.getAttributeValue(null, "to");
-        if (StringUtils.isNotEmpty(cfrom) && StringUtils.isNotEmpty(cto)) {
-            Jid jidto = Jid.of(cto);
-            if (jidto.getDomain().equals(from.toEscapedString())) {
-                Jid jidfrom = Jid.of(cfrom);
-                for (Jid aFrom : getFromJids()) {
-                    if (aFrom.equals(Jid.of(jidfrom.getDomain()))) {
-                        return true;
-                    }
+    /**
+     * @deprecated use {@link #getFromDomains()}; this is a snapshot of it, adding or removing a JID
+     * also authorizes or revokes its domain
+     */
+    @Deprecated
+    public List<Jid> getFromJids() {
+        final List<Jid> snapshot = new ArrayList<>(fromDomains.size());
+        for (String domain : fromDomains) {
+            snapshot.add(Jid.ofDomain(domain));
+        }
+        return new AbstractList<Jid>() {
+            @Override
+            public Jid get(final int index) {
+                return snapshot.get(index);
+            }
+
+            @Override
+            public int size() {
+                return snapshot.size();
+            }
+
+            @Override
+            public boolean add(final Jid jid) {
+                fromDomains.add(jid.getDomain().toLowerCase(Locale.ROOT));
+                return snapshot.add(jid);
+            }
+
+            @Override
+            public boolean remove(final Object o) {
+                if (o instanceof Jid) {
+                    fromDomains.remove(((Jid) o).getDomain().toLowerCase(Locale.ROOT));
                 }
+                return snapshot.remove(o);
             }
+        };
+    }
+
+    public Set<String> getBrokenSSLdomains() {
+        return brokenSSLhosts;
+    }
+
+    public Set<String> getBannedDomains() {
+        return bannedHosts;
+    }
+
+    /**
+     * @deprecated use {@link #getBrokenSSLdomains()}
+     */
+    @Deprecated
+    public String[] getBrokenSSLhosts() {
+        return brokenSSLhosts.toArray(new String[0]);
+    }
+
+    /**
+     * @deprecated use {@link #getBannedDomains()}
+     */
+    @Deprecated
+    public String[] getBannedHosts() {
+        return bannedHosts.toArray(new String[0]);
+    }
+
+    public void setBrokenSSLhosts(final String... brokenSSLhosts) {
+        this.brokenSSLhosts = domainSet(brokenSSLhosts);
+    }
+
+    public void setBannedHosts(final String... bannedHosts) {
+        this.bannedHosts = domainSet(bannedHosts);
+    }
+
+    /**
+     * Checks the addresses of a stanza without preparing them as {@link Jid}s: the domain of the recipient
+     * must be the local one and the domain of the sender must be authorized on this stream.
+     */
+    private boolean checkFromTo(XmlPullParser parser) throws Exception {
+        return checkFromTo(parser.getAttributeValue(null, "from"), parser.getAttributeValue(null, "to"));
+    }
+
+    private boolean checkFromTo(String cfrom, String cto) {
+        return StringUtils.isNotEmpty(cfrom) && StringUtils.isNotEmpty(cto)
+            && domainOf(cto).equals(from.getDomain()) && fromDomains.contains(domainOf(cfrom));
+    }
+
+    @Override
+    protected boolean acceptsRaw(final String from, final String to) {
+        return checkFromTo(from, to);
+    }
+
+    private static Set<String> domainSet(final String[] domains) {
+        Set<String> set = new HashSet<>();
+        for (String domain : domains) {
+            set.add(domain.toLowerCase(Locale.ROOT));
         }
-        return false;
+        return set;
+    }
+
+    /**
+     * @return the domain part of a JID, lower case, which is the only preparation domains need in practice
+     */
+    static String domainOf(final String jid) {
+        int slash = jid.indexOf('/');
+        int end = slash < 0 ? jid.length() : slash;
+        int at = jid.lastIndexOf('@', end - 1);
+        return jid.substring(at + 1, end).toLowerCase(Locale.ROOT);
     }
 }
@@ -27,7 +27,6 @@ import org.apache.commons.codec.digest.HmacUtils;
 import org.apache.commons.text.RandomStringGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xmlpull.v1.XmlPullParser;
 import rocks.xmpp.addr.Jid;
 
 import java.io.EOFException;
@@ -77,9 +76,7 @@ public class StreamServerDialback extends Stream {
     @Override
     public void handshake() {
         try {
-            send(String.format(
-                "<?xml version='1.0'?><stream:stream xmlns='%s' id='%s' xmlns:stream='%s' xmlns:db='%s' from='%s' to='%s' version='1.0'>",
-                NS_SERVER, streamID, NS_STREAM, NS_DB, from.toEscapedString(), to.toEscapedString()));
+            sendOpenStream();
 
             parser.next(); // stream:stream
             streamID = parser.getAttributeValue(null, "id");
@@ -92,53 +89,89 @@ public class StreamServerDialback extends Stream {
             if (!xmppversionnew) {
                 processDialback();
             }
+        } catch (Exception e) {
+            finish(e);
+        }
+    }
+
+    private void sendOpenStream() {
+        send(String.format(
+            "<?xml version='1.0'?><stream:stream xmlns='%s' id='%s' xmlns:stream='%s' xmlns:db='%s' from='%s' to='%s' version='1.0'>",
+            NS_SERVER, streamID, NS_STREAM, NS_DB, from.toEscapedString(), to.toEscapedString()));
+    }
 
-            while (parser.next() != XmlPullParser.END_DOCUMENT) {
-                if (parser.getEventType() != XmlPullParser.START_TAG) {
-                    continue;
-                }
-
-                String tag = parser.getName();
-                if (tag.equals("result") && parser.getNamespace().equals(NS_DB)) {
-                    String type = parser.getAttributeValue(null, "type");
-                    if (type != null && type.equals("valid")) {
-                        streamReady = true;
-                        connectionListener.ready(this);
-                    } else {
-                        logger.info("stream to {} {} dialback fail", to, streamID);
-                    }
-                    XmlUtils.skip(parser);
-                } else if (tag.equals("verify") && parser.getNamespace().equals(NS_DB)) {
-                    String from = parser.getAttributeValue(null, "from");
-                    String type = parser.getAttributeValue(null, "type");
-                    String sid = parser.getAttributeValue(null, "id");
-                    connectionListener.verify(this, from, type, sid);
-                    XmlUtils.skip(parser);
-                } else if (tag.equals("features") && parser.getNamespace().equals(NS_STREAM)) {
-                    StreamFeatures features = StreamFeatures.parse(parser);
-                    if (connectionListener != null && !secured && features.STARTTLS >= 0 && connectionListener.securing(this)) {
-                        logger.info("stream to {} {} securing", to.toEscapedString(), streamID);
-                        send("<starttls xmlns=\"" + NS_TLS + "\" />");
-                    } else {
-                        processDialback();
-                    }
-                } else if (tag.equals("proceed") && parser.getNamespace().equals(NS_TLS)) {
-                    connectionListener.proceed(this);
-                } else if (secured && tag.equals("stream") && parser.getNamespace().equals(NS_STREAM)) {
-                    streamID = parser.getAttributeValue(null, "id");
-                } else if (tag.equals("error")) {
-                    StreamError streamError = StreamError.parse(parser);
-                    connectionListener.dialbackError(this, streamError);
-                } else {
-                    String unhandledStanza = XmlUtils.parseToString(parser, true);
-                    logger.warn("Unhandled stanza from {} {} : {}", to, streamID, unhandledStanza);
-                }
+    @Override
+    protected boolean handleElement() throws Exception {
+        String tag = parser.getName();
+        if (tag.equals("result") && parser.getNamespace().equals(NS_DB)) {
+            String type = parser.getAttributeValue(null, "type");
+            StreamEvents.dialbackResult(this, to.getDomain(), "valid".equals(type));
+            if (type != null && type.equals("valid")) {
+                streamReady = true;
+                connectionListener.ready(this);
+            } else {
+                getMetrics().authFailed();
+                logger.info("stream to {} {} dialback fail", to, streamID);
+            }
+            XmlUtils.skip(parser);
+        } else if (tag.equals("verify") && parser.getNamespace().equals(NS_DB)) {
+            String from = parser.getAttributeValue(null, "from");
+            String type = parser.getAttributeValue(null, "type");
+            String sid = parser.getAttributeValue(null, "id");
+            connectionListener.verify(this, from, type, sid);
+            XmlUtils.skip(parser);
+        } else if (tag.equals("features") && parser.getNamespace().equals(NS_STREAM)) {
+            StreamFeatures features = StreamFeatures.parse(parser);
+            if (!secured && features.STARTTLS >= 0
+                && (getTlsContext() != null || (connectionListener != null && connectionListener.securing(this)))) {
+                logger.info("stream to {} {} securing", to.toEscapedString(), streamID);
+                send("<starttls xmlns=\"" + NS_TLS + "\" />");
+            } else if (isCompressionEnabled() && !isCompressed() && features.ZLIB >= 0) {
+                send("<compress xmlns='" + NS_COMPRESS + "'><method>zlib</method></compress>");
+            } else {
+                processDialback();
+            }
+        } else if (tag.equals("proceed") && parser.getNamespace().equals(NS_TLS)) {
+            if (getTlsContext() != null) {
+                XmlUtils.skip(parser);
+                startTls(getTlsContext().createClientEngine(to.getDomain()));
+                secured = true;
+                logger.info("stream to {} {} secured", to.toEscapedString(), streamID);
+                sendOpenStream();
+                restartStream();
+            } else {
+                connectionListener.proceed(this);
             }
+        } else if (tag.equals("compressed") && parser.getNamespace().equals(NS_COMPRESS)) {
+            XmlUtils.skip(parser);
+            startCompression();
+            logger.info("stream to {} {} compressed", to.toEscapedString(), streamID);
+            sendOpenStream();
+            restartStream();
+        } else if (tag.equals("failure") && parser.getNamespace().equals(NS_COMPRESS)) {
+            XmlUtils.skip(parser);
+            processDialback();
+        } else if ((secured || isCompressed()) && tag.equals("stream") && parser.getNamespace().equals(NS_STREAM)) {
+            streamID = parser.getAttributeValue(null, "id");
+        } else if (tag.equals("error")) {
+            StreamError streamError = StreamError.parse(parser);
+            connectionListener.dialbackError(this, streamError);
+        } else {
+            String unhandledStanza = XmlUtils.parseToString(parser, true);
+            logger.warn("Unhandled stanza from {} {} : {}", to, streamID, unhandledStanza);
+        }
+        return true;
+    }
+
+    @Override
+    protected void streamFinished(final Exception cause) {
+        super.streamFinished(cause);
+        if (cause == null) {
             connectionListener.finished(this, false);
-        } catch (EOFException | SocketException eofex) {
+        } else if (cause instanceof EOFException || cause instanceof SocketException) {
             connectionListener.finished(this, true);
-        } catch (Exception e) {
-            connectionListener.exception(this, e);
+        } else {
+            connectionListener.exception(this, cause);
         }
     }
 
@@ -154,6 +187,10 @@ public class StreamServerDialback extends Stream {
         return streamID;
     }
 
+    String getDbKey() {
+        return dbKey;
+    }
+
     public static String generateKey(String secret, Jid to, Jid from, String id) {
         return HmacUtils.hmacSha256Hex(DigestUtils.sha256(secret),
             (to.toEscapedString() + " " + from.toEscapedString() + " " + id).getBytes());
@@ -1,6 +1,7 @@
 package com.juick.xmpp.extensions;
 
 import com.juick.xmpp.StanzaChild;
+import com.juick.xmpp.utils.XmppWriter;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -30,6 +31,15 @@ public class ChatState implements StanzaChild {
 
     private State value;
 
+    private static final byte[][] ELEMENTS = new byte[State.values().length][];
+
+    static {
+        for (State state : State.values()) {
+            ELEMENTS[state.ordinal()] = XmppWriter.fragment(
+                String.format("<%s xmlns='%s' />", state, "http://jabber.org/protocol/chatstates"));
+        }
+    }
+
     @Override
     public String getXMLNS() {
         return "http://jabber.org/protocol/chatstates";
@@ -50,4 +60,13 @@ public class ChatState implements StanzaChild {
     public String toString() {
         return String.format("<%s xmlns='%s' />", getValue(), getXMLNS());
     }
+
+    @Override
+    public void writeTo(XmppWriter writer) {
+        if (value == null) {
+            writer.append(toString());
+        } else {
+            writer.append(ELEMENTS[value.ordinal()]);
+        }
+    }
 }
@@ -17,11 +17,13 @@
  */
 package com.juick.xmpp.extensions;
 
+import com.juick.xmpp.utils.JidCache;
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
+import com.juick.xmpp.utils.XmppWriter;
 import com.juick.xmpp.*;
 import java.io.IOException;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import rocks.xmpp.addr.Jid;
@@ -34,6 +36,12 @@ public class Delay implements StanzaChild {
 
     public final static String XMLNS = "urn:xmpp:delay";
     public final static String TagName = "delay";
+    private static final byte[] START = XmppWriter.fragment("<" + TagName + " xmlns='" + XMLNS + "'");
+    private static final byte[] FROM = XmppWriter.fragment(" from='");
+    private static final byte[] STAMP = XmppWriter.fragment(" stamp='");
+    private static final byte[] QUOTE = XmppWriter.fragment("'");
+    private static final byte[] GT = XmppWriter.fragment(">");
+    private static final byte[] END = XmppWriter.fragment("</" + TagName + ">");
     public Jid from = null;
     public String stamp = null;
     public String description = null;
@@ -49,7 +57,7 @@ public class Delay implements StanzaChild {
 
         String from = parser.getAttributeValue(null, "from");
         if (from != null) {
-            delay.from = Jid.of(from);
+            delay.from = JidCache.of(from);
         }
         delay.stamp = parser.getAttributeValue(null, "stamp");
         delay.description = XmlUtils.getTagText(parser);
@@ -61,7 +69,7 @@ public class Delay implements StanzaChild {
     public String toString() {
         StringBuilder str = new StringBuilder("<").append(TagName).append(" xmlns='").append(XMLNS).append("'");
         if (from != null) {
-            str.append(" from='").append(from.toEscapedString()).append("'");
+            str.append(" from='").append(JidCache.toEscapedString(from)).append("'");
         }
         if (stamp != null) {
             str.append(" stamp='").append(stamp).append("'");
@@ -69,10 +77,28 @@ public class Delay implements StanzaChild {
         str.append(">");
 
         if (description != null) {
-            str.append(StringEscapeUtils.escapeXml10(description));
+            str.append(XmlEscaper.escape(description));
         }
 
         str.append("</").append(TagName).append(">");
         return str.toString();
     }
+
+    @Override
+    public void writeTo(XmppWriter writer) {
+        writer.append(START);
+        if (from != null) {
+            writer.append(FROM).append(JidCache.toEscapedString(from)).append(QUOTE);
+        }
+        if (stamp != null) {
+            writer.append(STAMP).append(stamp).append(QUOTE);
+        }
+        writer.append(GT);
+
+        if (description != null) {
+            writer.text(description);
+        }
+
+        writer.append(END);
+    }
 }
@@ -18,8 +18,8 @@
 package com.juick.xmpp.extensions;
 
 import com.juick.xmpp.StanzaChild;
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -108,7 +108,7 @@ public class DiscoInfo implements StanzaChild {
                 str.append(" type='").append(type).append("'");
             }
             if (name != null) {
-                str.append(" name='").append(StringEscapeUtils.escapeXml10(name)).append("'");
+                str.append(" name='").append(XmlEscaper.escape(name)).append("'");
             }
             str.append("/>");
             return str.toString();
@@ -17,11 +17,11 @@
  */
 package com.juick.xmpp.extensions;
 
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
 import com.juick.xmpp.*;
 import java.io.IOException;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -95,10 +95,10 @@ public class GeoLoc implements StanzaChild {
             str.append("<accuracy>").append(Accuracy).append("</accuracy>");
         }
         if (Description != null && Description.length() > 0) {
-            str.append("<description>").append(StringEscapeUtils.escapeXml10(Description)).append("</description>");
+            str.append("<description>").append(XmlEscaper.escape(Description)).append("</description>");
         }
         if (Text != null && Text.length() > 0) {
-            str.append("<text>").append(StringEscapeUtils.escapeXml10(Text)).append("</text>");
+            str.append("<text>").append(XmlEscaper.escape(Text)).append("</text>");
         }
         if (JuickPlaceID > 0) {
             str.append("<uri>http://juick.com/places/").append(JuickPlaceID).append("</uri>");
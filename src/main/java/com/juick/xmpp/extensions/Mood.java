@@ -17,11 +17,11 @@
  */
 package com.juick.xmpp.extensions;
 
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
 import com.juick.xmpp.*;
 import java.io.IOException;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -69,7 +69,7 @@ public class Mood implements StanzaChild {
             str.append("<").append(moodValues[moodId]).append("/>");
         }
         if (moodTxt != null && moodTxt.length() > 0) {
-            str.append("<text>").append(StringEscapeUtils.escapeXml10(moodTxt)).append("</text>");
+            str.append("<text>").append(XmlEscaper.escape(moodTxt)).append("</text>");
         }
         str.append("</").append(TagName).append(">");
         return str.toString();
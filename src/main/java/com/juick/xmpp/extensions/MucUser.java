@@ -17,13 +17,14 @@
  */
 package com.juick.xmpp.extensions;
 
+import com.juick.xmpp.utils.JidCache;
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
 import com.juick.xmpp.*;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import rocks.xmpp.addr.Jid;
@@ -151,11 +152,11 @@ public class MucUser implements StanzaChild {
         public String toString() {
             StringBuilder str = new StringBuilder("<invite");
             if (from != null) {
-                str.append(" from='").append(from.toEscapedString()).append("'");
+                str.append(" from='").append(JidCache.toEscapedString(from)).append("'");
             }
             str.append(">");
             if (reason != null) {
-                str.append("<reason>").append(StringEscapeUtils.escapeXml10(reason)).append("</reason>");
+                str.append("<reason>").append(XmlEscaper.escape(reason)).append("</reason>");
             }
             str.append("</invite>");
             return str.toString();
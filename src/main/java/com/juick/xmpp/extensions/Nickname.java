@@ -18,10 +18,11 @@
 package com.juick.xmpp.extensions;
 
 import com.juick.xmpp.StanzaChild;
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
+import com.juick.xmpp.utils.XmppWriter;
 import java.io.IOException;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -33,6 +34,8 @@ public class Nickname implements StanzaChild {
 
     public final static String XMLNS = "http://jabber.org/protocol/nick";
     public final static String TagName = "nick";
+    private static final byte[] START = XmppWriter.fragment("<" + TagName + " xmlns='" + XMLNS + "'>");
+    private static final byte[] END = XmppWriter.fragment("</" + TagName + ">");
     public String Nickname = null;
 
     @Override
@@ -56,6 +59,11 @@ public class Nickname implements StanzaChild {
     @Override
     public String toString() {
         return new StringBuilder("<").append(TagName).append(" xmlns='").append(XMLNS).append("'>")
-            .append(StringEscapeUtils.escapeXml10(Nickname)).append("</").append(TagName).append(">").toString();
+            .append(XmlEscaper.escape(Nickname)).append("</").append(TagName).append(">").toString();
+    }
+
+    @Override
+    public void writeTo(XmppWriter writer) {
+        writer.append(START).text(Nickname).append(END);
     }
 }
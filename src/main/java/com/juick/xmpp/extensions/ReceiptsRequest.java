@@ -1,6 +1,7 @@
 package com.juick.xmpp.extensions;
 
 import com.juick.xmpp.StanzaChild;
+import com.juick.xmpp.utils.XmppWriter;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -13,6 +14,7 @@ import java.text.ParseException;
 public class ReceiptsRequest implements StanzaChild {
     public final static String XMLNS = "urn:xmpp:receipts";
     public final static String TagName = "request";
+    private static final byte[] ELEMENT = XmppWriter.fragment(String.format("<%s xmlns='%s' />", TagName, XMLNS));
     @Override
     public String getXMLNS() {
         return XMLNS;
@@ -27,4 +29,9 @@ public class ReceiptsRequest implements StanzaChild {
     public String toString() {
         return String.format("<%s xmlns='%s' />", TagName, XMLNS);
     }
+
+    @Override
+    public void writeTo(XmppWriter writer) {
+        writer.append(ELEMENT);
+    }
 }
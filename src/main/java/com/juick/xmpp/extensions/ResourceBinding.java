@@ -17,11 +17,12 @@
  */
 package com.juick.xmpp.extensions;
 
+import com.juick.xmpp.utils.JidCache;
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
 import com.juick.xmpp.*;
 import java.io.IOException;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import rocks.xmpp.addr.Jid;
@@ -53,7 +54,7 @@ public class ResourceBinding implements StanzaChild {
                     rb.resource = XmlUtils.getTagText(parser);
                     break;
                 case "Jid":
-                    rb.jid = Jid.of(XmlUtils.getTagText(parser));
+                    rb.jid = JidCache.of(XmlUtils.getTagText(parser));
                     break;
                 default:
                     XmlUtils.skip(parser);
@@ -67,10 +68,10 @@ public class ResourceBinding implements StanzaChild {
     public String toString() {
         StringBuilder str = new StringBuilder("<").append(TagName).append(" xmlns='").append(XMLNS).append("'>");
         if (resource != null) {
-            str.append("<resource>").append(StringEscapeUtils.escapeXml10(resource)).append("</lat>");
+            str.append("<resource>").append(XmlEscaper.escape(resource)).append("</lat>");
         }
         if (jid != null) {
-            str.append("<Jid>").append(jid.toEscapedString()).append("</Jid>");
+            str.append("<Jid>").append(JidCache.toEscapedString(jid)).append("</Jid>");
         }
         str.append("</").append(TagName).append(">");
         return str.toString();
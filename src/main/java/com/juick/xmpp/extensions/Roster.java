@@ -18,8 +18,9 @@
 package com.juick.xmpp.extensions;
 
 import com.juick.xmpp.StanzaChild;
+import com.juick.xmpp.utils.JidCache;
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import rocks.xmpp.addr.Jid;
@@ -52,7 +53,7 @@ public class Roster implements StanzaChild {
                 Item ri = new Item();
                 final String strJid = parser.getAttributeValue(null, "Jid");
                 if (strJid != null) {
-                    ri.jid = Jid.of(strJid);
+                    ri.jid = JidCache.of(strJid);
                 }
                 ri.name = parser.getAttributeValue(null, "name");
                 ri.subscription = parser.getAttributeValue(null, "subscription");
@@ -92,17 +93,17 @@ public class Roster implements StanzaChild {
         public String toString() {
             StringBuilder str = new StringBuilder("<item");
             if (jid != null) {
-                str.append(" jid='").append(jid.toEscapedString()).append("'");
+                str.append(" jid='").append(JidCache.toEscapedString(jid)).append("'");
             }
             if (name != null) {
-                str.append(" name='").append(StringEscapeUtils.escapeXml10(name)).append("'");
+                str.append(" name='").append(XmlEscaper.escape(name)).append("'");
             }
             if (subscription != null) {
                 str.append(" subscription='").append(subscription).append("'");
             }
             str.append(">");
             if (group != null) {
-                str.append("<group>").append(StringEscapeUtils.escapeXml10(group)).append("</group>");
+                str.append("<group>").append(XmlEscaper.escape(group)).append("</group>");
             }
             str.append("</item>");
             return str.toString();
@@ -17,11 +17,11 @@
  */
 package com.juick.xmpp.extensions;
 
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
 import com.juick.xmpp.*;
 import java.io.IOException;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import rocks.xmpp.addr.Jid;
@@ -58,7 +58,7 @@ public class XConference implements StanzaChild {
             str.append(" jid=\"").append(jid.toEscapedString()).append("\"");
         }
         if (reason != null) {
-            str.append(" reason=\"").append(StringEscapeUtils.escapeXml10(reason)).append("\"");
+            str.append(" reason=\"").append(XmlEscaper.escape(reason)).append("\"");
         }
         str.append("/>");
         return str.toString();
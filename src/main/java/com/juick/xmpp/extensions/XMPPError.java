@@ -18,8 +18,8 @@
 package com.juick.xmpp.extensions;
 
 import com.juick.xmpp.StanzaChild;
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -83,17 +83,17 @@ public class XMPPError implements StanzaChild {
     public String toString() {
         StringBuilder str = new StringBuilder("<").append(TagName).append("");
         if (by != null) {
-            str.append(" by=\"").append(StringEscapeUtils.escapeXml10(by)).append("\"");
+            str.append(" by=\"").append(XmlEscaper.escape(by)).append("\"");
         }
         if (type != null) {
-            str.append(" type=\"").append(StringEscapeUtils.escapeXml10(type)).append("\"");
+            str.append(" type=\"").append(XmlEscaper.escape(type)).append("\"");
         }
 
         if (condition != null) {
             str.append(">");
-            str.append("<").append(StringEscapeUtils.escapeXml10(condition)).append(" xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\"");
+            str.append("<").append(XmlEscaper.escape(condition)).append(" xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\"");
             if (text != null) {
-                str.append(">").append(StringEscapeUtils.escapeXml10(text)).append("</").append(StringEscapeUtils.escapeXml10(condition))
+                str.append(">").append(XmlEscaper.escape(text)).append("</").append(XmlEscaper.escape(condition))
                     .append(">");
             } else {
                 str.append("/>");
@@ -17,11 +17,12 @@
  */
 package com.juick.xmpp.extensions;
 
+import com.juick.xmpp.utils.XmlEscaper;
 import com.juick.xmpp.utils.XmlUtils;
+import com.juick.xmpp.utils.XmppWriter;
 import com.juick.xmpp.StanzaChild;
 import java.io.IOException;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -33,6 +34,12 @@ public class XOOB implements StanzaChild {
 
     public final static String XMLNS = "jabber:x:oob";
     public final static String TagName = "x";
+    private static final byte[] START = XmppWriter.fragment("<" + TagName + " xmlns='" + XMLNS + "'>");
+    private static final byte[] URL_START = XmppWriter.fragment("<url>");
+    private static final byte[] URL_END = XmppWriter.fragment("</url>");
+    private static final byte[] DESC_START = XmppWriter.fragment("<desc>");
+    private static final byte[] DESC_END = XmppWriter.fragment("</desc>");
+    private static final byte[] END = XmppWriter.fragment("</" + TagName + ">");
     public String URL = null;
     public String Desc = null;
 
@@ -66,12 +73,24 @@ public class XOOB implements StanzaChild {
     public String toString() {
         StringBuilder str = new StringBuilder("<").append(TagName).append(" xmlns='").append(XMLNS).append("'>");
         if (URL != null && !URL.isEmpty()) {
-            str.append("<url>").append(StringEscapeUtils.escapeXml10(URL)).append("</url>");
+            str.append("<url>").append(XmlEscaper.escape(URL)).append("</url>");
         }
         if (Desc != null && !Desc.isEmpty()) {
-            str.append("<desc>").append(StringEscapeUtils.escapeXml10(Desc)).append("</desc>");
+            str.append("<desc>").append(XmlEscaper.escape(Desc)).append("</desc>");
         }
         str.append("</").append(TagName).append(">");
         return str.toString();
     }
+
+    @Override
+    public void writeTo(XmppWriter writer) {
+        writer.append(START);
+        if (URL != null && !URL.isEmpty()) {
+            writer.append(URL_START).text(URL).append(URL_END);
+        }
+        if (Desc != null && !Desc.isEmpty()) {
+            writer.append(DESC_START).text(Desc).append(DESC_END);
+        }
+        writer.append(END);
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer for large numbers of timeouts which are mostly cancelled before they expire, such as IQ requests.
+ * <p>
+ * Scheduling and cancelling are O(1) and take no lock; a single thread advances a wheel of buckets once per tick
+ * and runs the expired tasks, so a timeout fires up to one tick late. Tasks should be short, they delay the others.
+ */
+public class HashedWheelTimer implements Closeable {
+
+    public interface Timeout {
+
+        /**
+         * @return false if the task already ran or was cancelled
+         */
+        boolean cancel();
+    }
+
+    private static final class Entry extends AtomicBoolean implements Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+
+        Entry(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            return compareAndSet(false, true);
+        }
+    }
+
+    private final long tickNanos;
+    private final List<List<Entry>> wheel;
+    private final Queue<Entry> scheduled = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long start = System.nanoTime();
+    private volatile boolean running = true;
+
+    public HashedWheelTimer(final long tickDuration, final TimeUnit unit, final int ticksPerWheel, final String name) {
+        tickNanos = unit.toNanos(tickDuration);
+        wheel = new ArrayList<>(ticksPerWheel);
+        for (int i = 0; i < ticksPerWheel; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        Entry entry = new Entry(task, System.nanoTime() + unit.toNanos(delay));
+        scheduled.add(entry);
+        return entry;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            long sleep;
+            while ((sleep = start + (tick + 1) * tickNanos - System.nanoTime()) > 0 && running) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            Entry entry;
+            while ((entry = scheduled.poll()) != null) {
+                long due = Math.max(tick, (entry.deadline - start + tickNanos - 1) / tickNanos - 1);
+                entry.rounds = (due - tick) / wheel.size();
+                wheel.get((int) (due % wheel.size())).add(entry);
+            }
+            expire(wheel.get((int) (tick % wheel.size())));
+            tick++;
+        }
+    }
+
+    private void expire(final List<Entry> bucket) {
+        int kept = 0;
+        for (Entry entry : bucket) {
+            if (entry.get()) {
+                continue;
+            }
+            if (entry.rounds > 0) {
+                entry.rounds--;
+                bucket.set(kept++, entry);
+            } else if (entry.cancel()) {
+                try {
+                    entry.task.run();
+                } catch (RuntimeException e) {
+                    // a failing task must not stop the timer
+                }
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+}
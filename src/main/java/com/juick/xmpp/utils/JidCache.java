@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import rocks.xmpp.addr.Jid;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of prepared JIDs keyed by the address as it appears on the wire, so that the addresses
+ * of busy peers are parsed and stringprep-normalized once, and every stanza from them shares one {@link Jid}.
+ * The escaped form of a JID, which serialization writes, is memoized as well.
+ * <p>
+ * Each cache keeps two generations of entries: a lookup hits the young one, falls back to the old one and promotes
+ * what it finds there. Once the young generation is full it becomes the old one and the old one is dropped,
+ * so entries not used during a whole generation are evicted, with no locking on lookups.
+ */
+public class JidCache {
+
+    private static final JidCache DEFAULT = new JidCache(1 << 16);
+
+    private final Generations<String, Jid> jids;
+    private final Generations<Jid, String> escaped;
+
+    /**
+     * @param capacity entries of a generation, so up to twice as many are kept
+     */
+    public JidCache(final int capacity) {
+        jids = new Generations<>(capacity, Jid::of);
+        escaped = new Generations<>(capacity, Jid::toEscapedString);
+    }
+
+    public static JidCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the JID of the address, as {@link Jid#of(CharSequence)} would
+     * @throws IllegalArgumentException if the address is not a valid JID
+     */
+    public static Jid of(final String jid) {
+        return DEFAULT.get(jid);
+    }
+
+    /**
+     * @return the escaped form of the JID, as {@link Jid#toEscapedString()} would
+     */
+    public static String toEscapedString(final Jid jid) {
+        return DEFAULT.escape(jid);
+    }
+
+    public Jid get(final String jid) {
+        return jids.get(jid);
+    }
+
+    public String escape(final Jid jid) {
+        return escaped.get(jid);
+    }
+
+    private static final class Generations<K, V> {
+
+        private final int capacity;
+        private final Function<K, V> loader;
+        private final AtomicInteger size = new AtomicInteger();
+        private final ReentrantLock rotateLock = new ReentrantLock();
+        private volatile Map<K, V> young = new ConcurrentHashMap<>();
+        private volatile Map<K, V> old = new ConcurrentHashMap<>();
+
+        Generations(final int capacity, final Function<K, V> loader) {
+            this.capacity = Math.max(1, capacity);
+            this.loader = loader;
+        }
+
+        V get(final K key) {
+            V value = young.get(key);
+            if (value != null) {
+                return value;
+            }
+            value = old.get(key);
+            if (value == null) {
+                value = loader.apply(key);
+            }
+            V previous = young.putIfAbsent(key, value);
+            if (previous != null) {
+                return previous;
+            }
+            if (size.incrementAndGet() >= capacity) {
+                rotate();
+            }
+            return value;
+        }
+
+        private void rotate() {
+            if (!rotateLock.tryLock()) {
+                return;
+            }
+            try {
+                if (size.get() >= capacity) {
+                    old = young;
+                    young = new ConcurrentHashMap<>();
+                    size.set(0);
+                }
+            } finally {
+                rotateLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Copy-on-write set of listeners which may be added and removed from any thread while they are being called.
+ * <p>
+ * Dispatching reads a volatile array and takes no lock. A {@link Registration} removes its listener in O(1):
+ * the entry is only marked, the array is compacted once removed entries make up half of it.
+ * A listener is registered at most once, according to its {@code equals}.
+ */
+public class ListenerRegistry<T> implements Iterable<T> {
+
+    public interface Registration extends AutoCloseable {
+
+        /**
+         * @return false if the listener was already removed
+         */
+        boolean remove();
+
+        @Override
+        default void close() {
+            remove();
+        }
+    }
+
+    private static final Entry<?>[] EMPTY = new Entry<?>[0];
+
+    private static final class Entry<T> extends AtomicBoolean implements Registration {
+
+        private final ListenerRegistry<T> registry;
+        private final T listener;
+
+        Entry(final ListenerRegistry<T> registry, final T listener) {
+            this.registry = registry;
+            this.listener = listener;
+        }
+
+        boolean isActive() {
+            return !get();
+        }
+
+        @Override
+        public boolean remove() {
+            if (!compareAndSet(false, true)) {
+                return false;
+            }
+            registry.removed(this);
+            return true;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<T, Entry<T>> index = new HashMap<>();
+    @SuppressWarnings("unchecked")
+    private volatile Entry<T>[] entries = (Entry<T>[]) EMPTY;
+    private int garbage;
+
+    /**
+     * @return the registration of the listener, the existing one if it was already added
+     */
+    public Registration add(final T listener) {
+        lock.lock();
+        try {
+            Entry<T> entry = index.get(listener);
+            if (entry == null || !entry.isActive()) {
+                entry = new Entry<>(this, listener);
+                index.put(listener, entry);
+                Entry<T>[] current = entries;
+                Entry<T>[] grown = Arrays.copyOf(current, current.length + 1);
+                grown[current.length] = entry;
+                entries = grown;
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean remove(final T listener) {
+        Entry<T> entry;
+        lock.lock();
+        try {
+            entry = index.get(listener);
+        } finally {
+            lock.unlock();
+        }
+        return entry != null && entry.remove();
+    }
+
+    public boolean isEmpty() {
+        for (Entry<T> entry : entries) {
+            if (entry.isActive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calls every listener with the argument.
+     */
+    public <A> void forEach(final BiConsumer<? super T, ? super A> action, final A argument) {
+        for (Entry<T> entry : entries) {
+            if (entry.isActive()) {
+                action.accept(entry.listener, argument);
+            }
+        }
+    }
+
+    /**
+     * Calls every listener with the argument.
+     *
+     * @return true if any of the listeners returned true
+     */
+    public <A> boolean handle(final BiPredicate<? super T, ? super A> action, final A argument) {
+        boolean handled = false;
+        for (Entry<T> entry : entries) {
+            if (entry.isActive()) {
+                handled |= action.test(entry.listener, argument);
+            }
+        }
+        return handled;
+    }
+
+    @Override
+    public void forEach(final Consumer<? super T> action) {
+        for (Entry<T> entry : entries) {
+            if (entry.isActive()) {
+                action.accept(entry.listener);
+            }
+        }
+    }
+
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final Entry<T>[] snapshot = entries;
+        return new Iterator<T>() {
+            private int next = skip(0);
+
+            private int skip(int i) {
+                while (i < snapshot.length && !snapshot[i].isActive()) {
+                    i++;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < snapshot.length;
+            }
+
+            @Override
+            public T next() {
+                if (next >= snapshot.length) {
+                    throw new NoSuchElementException();
+                }
+                T listener = snapshot[next].listener;
+                next = skip(next + 1);
+                return listener;
+            }
+        };
+    }
+
+    private void removed(final Entry<T> entry) {
+        lock.lock();
+        try {
+            index.remove(entry.listener, entry);
+            Entry<T>[] current = entries;
+            if (++garbage * 2 < current.length) {
+                return;
+            }
+            int live = 0;
+            for (Entry<T> e : current) {
+                if (e.isActive()) {
+                    live++;
+                }
+            }
+            @SuppressWarnings("unchecked")
+            Entry<T>[] compacted = (Entry<T>[]) new Entry<?>[live];
+            int i = 0;
+            for (Entry<T> e : current) {
+                if (e.isActive() && i < live) {
+                    compacted[i++] = e;
+                }
+            }
+            entries = i == live ? compacted : Arrays.copyOf(compacted, i);
+            garbage = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on an {@link Executor} in parallel, except that the tasks submitted with the same key
+ * run one at a time and in submission order.
+ * <p>
+ * Keys are hashed onto a fixed number of serial stripes, so unrelated keys may share a stripe.
+ * The tasks queued on all stripes are bounded: once the bound is reached, {@link Overflow#WAIT} blocks the submitting
+ * thread until a task completes, which pauses reading the stream, while {@link Overflow#REJECT} refuses the task.
+ * Streams of a {@code StreamReactor} dispatch on its event loop, where {@link Overflow#WAIT} would stall every
+ * stream of the loop, so they should use {@link Overflow#REJECT}.
+ * One executor may be shared by many streams.
+ */
+public class OrderedExecutor {
+
+    public enum Overflow {
+        WAIT,
+        REJECT
+    }
+
+    private static final int BATCH = 64;
+
+    private final Executor executor;
+    private final Stripe[] stripes;
+    private final Semaphore capacity;
+    private final Overflow overflow;
+
+    /**
+     * @param stripes  how many keys may run in parallel, e.g. a few times the threads of the executor
+     * @param capacity the largest number of queued and running tasks
+     */
+    public OrderedExecutor(final Executor executor, final int stripes, final int capacity, final Overflow overflow) {
+        this.executor = executor;
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.capacity = new Semaphore(capacity);
+        this.overflow = overflow;
+    }
+
+    /**
+     * @param key the key ordering the task, may be null
+     * @return false if the task was rejected because the queue is full
+     * @throws InterruptedException if interrupted while waiting for room
+     * @throws RejectedExecutionException if the executor refuses to run the stripe, the task is then dropped.
+     *                                    Tasks accepted in the meantime are never dropped: those of a stripe
+     *                                    the executor refuses run on the thread which found out
+     */
+    public boolean execute(final Object key, final Runnable task) throws InterruptedException {
+        if (overflow == Overflow.WAIT) {
+            capacity.acquire();
+        } else if (!capacity.tryAcquire()) {
+            return false;
+        }
+        int hash = key == null ? 0 : key.hashCode();
+        hash ^= hash >>> 16;
+        stripes[(hash & Integer.MAX_VALUE) % stripes.length].add(task);
+        return true;
+    }
+
+    private final class Stripe extends AtomicInteger implements Runnable {
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        void add(final Runnable task) {
+            tasks.add(task);
+            if (getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // nothing has run since, the task is still queued
+                    tasks.remove(task);
+                    capacity.release();
+                    if (decrementAndGet() != 0) {
+                        runTasks(Integer.MAX_VALUE);
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * @return whether the stripe is idle, rather than having run as many tasks as it may
+         */
+        private boolean runTasks(final int limit) {
+            for (int i = 0; i < limit; i++) {
+                try {
+                    tasks.poll().run();
+                } catch (RuntimeException e) {
+                    // a failing task must not stop the stripe
+                } finally {
+                    capacity.release();
+                }
+                if (decrementAndGet() == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            if (runTasks(BATCH)) {
+                return;
+            }
+            // let the other stripes have the thread
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                runTasks(Integer.MAX_VALUE);
+            }
+        }
+    }
+}
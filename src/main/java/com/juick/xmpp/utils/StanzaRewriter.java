@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and replaces the addresses of serialized stanzas, so that a stanza can be passed on to another stream
+ * without being parsed and serialized again. Only the start tag is looked at, everything after it is copied
+ * byte for byte, including children nothing here knows about.
+ * <p>
+ * The stanza is expected as {@link XmppTokenizer} delivers it: UTF-8, starting with its start tag.
+ * Its buffer is only read, its position and limit are left as they are.
+ */
+public final class StanzaRewriter {
+
+    private static final byte[] FROM = XmppWriter.fragment(" from='");
+    private static final byte[] TO = XmppWriter.fragment(" to='");
+    private static final byte[] QUOTE = XmppWriter.fragment("'");
+    private static final byte[] FROM_NAME = XmppWriter.fragment("from");
+    private static final byte[] TO_NAME = XmppWriter.fragment("to");
+
+    private static final int NAME_END = 0;
+    private static final int FROM_START = 1;
+    private static final int FROM_END = 2;
+    private static final int TO_START = 3;
+    private static final int TO_END = 4;
+
+    private StanzaRewriter() {
+    }
+
+    /**
+     * @param name {@code from} or {@code to}
+     * @return the value of the attribute of the stanza, with entities replaced, null if it has none
+     * @throws IllegalArgumentException if the stanza does not start with a well-formed start tag
+     */
+    public static String attribute(final ByteBuffer stanza, final String name) {
+        int[] tag = scan(stanza);
+        int start;
+        int end;
+        if (name.equals("from")) {
+            start = tag[FROM_START];
+            end = tag[FROM_END];
+        } else if (name.equals("to")) {
+            start = tag[TO_START];
+            end = tag[TO_END];
+        } else {
+            throw new IllegalArgumentException(name);
+        }
+        return start < 0 ? null : unescape(decode(stanza, start, end));
+    }
+
+    /**
+     * Writes the stanza with its {@code from} and {@code to} attributes replaced, or added where it has none.
+     *
+     * @param from the new sender, escaped as in {@code Jid.toEscapedString()}, null to keep the one there is
+     * @param to the new recipient, likewise
+     * @throws IllegalArgumentException if the stanza does not start with a well-formed start tag
+     */
+    public static void rewrite(final ByteBuffer stanza, final String from, final String to, final XmppWriter out) {
+        int[] tag = scan(stanza);
+        int cursor = copy(stanza, stanza.position(), tag[NAME_END], out);
+        if (from != null && tag[FROM_START] < 0) {
+            out.append(FROM).text(from).append(QUOTE);
+        }
+        if (to != null && tag[TO_START] < 0) {
+            out.append(TO).text(to).append(QUOTE);
+        }
+        if (tag[FROM_START] < tag[TO_START]) {
+            cursor = replace(stanza, cursor, tag[FROM_START], tag[FROM_END], from, out);
+            cursor = replace(stanza, cursor, tag[TO_START], tag[TO_END], to, out);
+        } else {
+            cursor = replace(stanza, cursor, tag[TO_START], tag[TO_END], to, out);
+            cursor = replace(stanza, cursor, tag[FROM_START], tag[FROM_END], from, out);
+        }
+        copy(stanza, cursor, stanza.limit(), out);
+    }
+
+    private static int replace(final ByteBuffer stanza, final int cursor, final int start, final int end,
+                               final String value, final XmppWriter out) {
+        if (value == null || start < 0) {
+            return cursor;
+        }
+        copy(stanza, cursor, start, out);
+        out.text(value);
+        return end;
+    }
+
+    private static int copy(final ByteBuffer stanza, final int from, final int to, final XmppWriter out) {
+        if (to > from) {
+            ByteBuffer range = stanza.duplicate();
+            range.limit(to).position(from);
+            out.append(range);
+        }
+        return to;
+    }
+
+    /**
+     * @return the end of the element name and the value ranges of {@code from} and {@code to}, -1 where absent
+     */
+    private static int[] scan(final ByteBuffer stanza) {
+        int[] tag = {-1, -1, -1, -1, -1};
+        final int limit = stanza.limit();
+        int i = stanza.position();
+        if (i >= limit || stanza.get(i) != '<') {
+            throw new IllegalArgumentException("not a start tag");
+        }
+        i++;
+        while (i < limit && !isNameEnd(stanza.get(i))) {
+            i++;
+        }
+        tag[NAME_END] = i;
+        while (true) {
+            while (i < limit && isSpace(stanza.get(i))) {
+                i++;
+            }
+            if (i >= limit) {
+                throw new IllegalArgumentException("unterminated start tag");
+            }
+            byte b = stanza.get(i);
+            if (b == '>' || b == '/') {
+                return tag;
+            }
+            int nameStart = i;
+            while (i < limit && stanza.get(i) != '=' && !isNameEnd(stanza.get(i))) {
+                i++;
+            }
+            int nameEnd = i;
+            while (i < limit && isSpace(stanza.get(i))) {
+                i++;
+            }
+            if (i >= limit || stanza.get(i) != '=') {
+                throw new IllegalArgumentException("attribute without value");
+            }
+            i++;
+            while (i < limit && isSpace(stanza.get(i))) {
+                i++;
+            }
+            if (i >= limit || (stanza.get(i) != '\'' && stanza.get(i) != '"')) {
+                throw new IllegalArgumentException("unquoted attribute value");
+            }
+            byte quote = stanza.get(i++);
+            int valueStart = i;
+            while (i < limit && stanza.get(i) != quote) {
+                i++;
+            }
+            if (i >= limit) {
+                throw new IllegalArgumentException("unterminated attribute value");
+            }
+            if (tag[FROM_START] < 0 && matches(stanza, nameStart, nameEnd, FROM_NAME)) {
+                tag[FROM_START] = valueStart;
+                tag[FROM_END] = i;
+            } else if (tag[TO_START] < 0 && matches(stanza, nameStart, nameEnd, TO_NAME)) {
+                tag[TO_START] = valueStart;
+                tag[TO_END] = i;
+            }
+            i++;
+        }
+    }
+
+    private static boolean isSpace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static boolean isNameEnd(final byte b) {
+        return isSpace(b) || b == '>' || b == '/';
+    }
+
+    private static boolean matches(final ByteBuffer stanza, final int start, final int end, final byte[] name) {
+        if (end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (stanza.get(start + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(final ByteBuffer stanza, final int start, final int end) {
+        if (stanza.hasArray()) {
+            return new String(stanza.array(), stanza.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[end - start];
+        ByteBuffer range = stanza.duplicate();
+        range.limit(end).position(start);
+        range.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String unescape(final String value) {
+        int amp = value.indexOf('&');
+        if (amp < 0) {
+            return value;
+        }
+        StringBuilder out = new StringBuilder(value.length());
+        int i = 0;
+        while (amp >= 0) {
+            int semicolon = value.indexOf(';', amp);
+            if (semicolon < 0) {
+                throw new IllegalArgumentException("unterminated entity");
+            }
+            out.append(value, i, amp);
+            String entity = value.substring(amp + 1, semicolon);
+            switch (entity) {
+                case "amp":
+                    out.append('&');
+                    break;
+                case "lt":
+                    out.append('<');
+                    break;
+                case "gt":
+                    out.append('>');
+                    break;
+                case "quot":
+                    out.append('"');
+                    break;
+                case "apos":
+                    out.append('\'');
+                    break;
+                default:
+                    try {
+                        out.appendCodePoint(entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16)
+                            : Integer.parseInt(entity.substring(1)));
+                    } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                        throw new IllegalArgumentException("unknown entity " + entity);
+                    }
+            }
+            i = semicolon + 1;
+            amp = value.indexOf('&', i);
+        }
+        return out.append(value, i, value.length()).toString();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fixed set of names, such as element names or namespaces, looked up with a perfect hash: a name is hashed
+ * from its length and two of its characters, and is then compared with the one symbol in its slot.
+ * The comparison is a reference check for names interned by the parser or taken from the constant pool,
+ * like the symbols themselves. Names for which no perfect hash is found, because their
+ * {@link String#hashCode()}s collide, are looked up in a {@link HashMap} instead.
+ * <p>
+ * The table is built once and is immutable.
+ */
+public final class SymbolTable {
+
+    private static final int SEEDS = 4096;
+
+    private final String[] symbols;
+    private final int[] slots;
+    private final int shift;
+    private final int seed;
+    private final boolean fullHash;
+    private final Map<String, Integer> fallback;
+
+    public SymbolTable(final String... symbols) {
+        this.symbols = symbols.clone();
+        for (int i = 0; i < symbols.length; i++) {
+            for (int j = 0; j < i; j++) {
+                if (symbols[i].equals(symbols[j])) {
+                    throw new IllegalArgumentException("duplicate symbol " + symbols[i]);
+                }
+            }
+        }
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, symbols.length * 2 - 1));
+        for (int extra = 0; extra < 4; extra++) {
+            for (boolean full : new boolean[]{false, true}) {
+                for (int s = 0; s < SEEDS; s++) {
+                    int[] table = build(this.symbols, bits + extra, s, full);
+                    if (table != null) {
+                        slots = table;
+                        shift = 32 - (bits + extra);
+                        seed = s;
+                        fullHash = full;
+                        fallback = null;
+                        return;
+                    }
+                }
+            }
+        }
+        slots = null;
+        shift = 0;
+        seed = 0;
+        fullHash = false;
+        fallback = new HashMap<>(symbols.length * 2);
+        for (int i = 0; i < symbols.length; i++) {
+            fallback.put(symbols[i], i);
+        }
+    }
+
+    /**
+     * @return the index of the name among the symbols the table was built with, -1 if it is not one of them
+     */
+    public int indexOf(final String name) {
+        if (name == null) {
+            return -1;
+        }
+        if (fallback != null) {
+            Integer index = fallback.get(name);
+            return index == null ? -1 : index;
+        }
+        int index = slots[slot(name, shift, seed, fullHash)];
+        return index >= 0 && symbols[index].equals(name) ? index : -1;
+    }
+
+    public String get(final int index) {
+        return symbols[index];
+    }
+
+    public int size() {
+        return symbols.length;
+    }
+
+    private static int[] build(final String[] symbols, final int bits, final int seed, final boolean full) {
+        int[] table = new int[1 << bits];
+        Arrays.fill(table, -1);
+        for (int i = 0; i < symbols.length; i++) {
+            int slot = slot(symbols[i], 32 - bits, seed, full);
+            if (table[slot] >= 0) {
+                return null;
+            }
+            table[slot] = i;
+        }
+        return table;
+    }
+
+    private static int slot(final String name, final int shift, final int seed, final boolean full) {
+        int length = name.length();
+        int hash;
+        if (full) {
+            hash = name.hashCode();
+        } else if (length == 0) {
+            hash = 0;
+        } else {
+            hash = length * 31 * 31 + name.charAt(length >> 1) * 31 + name.charAt(length - 1);
+        }
+        return ((hash ^ seed) * 0x9e3779b9) >>> shift;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Creates the {@link SSLEngine}s of STARTTLS with a common configuration.
+ * <p>
+ * Client engines are created for the remote domain, so the session cache of the {@link SSLContext}
+ * resumes the previous session with that domain instead of running a full handshake.
+ * Their peer has to present a certificate for that domain, unless it is one of the
+ * {@link #setUnverifiedDomains(String...) unverified domains}. ALPN needs Java 9 or 8u252 and is skipped on older runtimes.
+ */
+public class TlsContext {
+
+    public static final String ALPN_XMPP_CLIENT = "xmpp-client";
+    public static final String ALPN_XMPP_SERVER = "xmpp-server";
+    public static final int PORT_SERVER = 5269;
+
+    private static final Method SET_APPLICATION_PROTOCOLS = applicationProtocolsMethod();
+
+    private final SSLContext context;
+    private String[] cipherSuites;
+    private String[] protocols;
+    private String[] applicationProtocols;
+    private volatile Set<String> unverifiedDomains = Collections.emptySet();
+
+    public TlsContext(final SSLContext context) {
+        this.context = context;
+    }
+
+    public SSLContext getContext() {
+        return context;
+    }
+
+    /**
+     * @param cipherSuites the enabled cipher suites, null for the defaults of the context
+     */
+    public void setCipherSuites(final String... cipherSuites) {
+        this.cipherSuites = cipherSuites;
+    }
+
+    /**
+     * @param protocols the enabled protocols such as {@code TLSv1.3}, null for the defaults of the context
+     */
+    public void setProtocols(final String... protocols) {
+        this.protocols = protocols;
+    }
+
+    /**
+     * @param applicationProtocols the ALPN protocols, in order of preference
+     */
+    public void setApplicationProtocols(final String... applicationProtocols) {
+        this.applicationProtocols = applicationProtocols;
+    }
+
+    /**
+     * @param domains remote domains whose certificate is trusted whatever name it is for, such as the broken
+     *                SSL hosts of a {@link com.juick.xmpp.StreamServer}
+     */
+    public void setUnverifiedDomains(final String... domains) {
+        Set<String> set = new HashSet<>();
+        for (String domain : domains) {
+            set.add(domain.toLowerCase(Locale.ROOT));
+        }
+        unverifiedDomains = set;
+    }
+
+    /**
+     * @param size    the sessions kept for resumption, 0 for no limit
+     * @param timeout seconds a session may be resumed for
+     */
+    public void setSessionCache(final int size, final int timeout) {
+        context.getClientSessionContext().setSessionCacheSize(size);
+        context.getClientSessionContext().setSessionTimeout(timeout);
+        context.getServerSessionContext().setSessionCacheSize(size);
+        context.getServerSessionContext().setSessionTimeout(timeout);
+    }
+
+    public SSLEngine createClientEngine(final String domain) {
+        SSLEngine engine = context.createSSLEngine(domain, PORT_SERVER);
+        engine.setUseClientMode(true);
+        configure(engine);
+        if (!unverifiedDomains.contains(domain.toLowerCase(Locale.ROOT))) {
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        return engine;
+    }
+
+    public SSLEngine createServerEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return configure(engine);
+    }
+
+    private SSLEngine configure(final SSLEngine engine) {
+        if (cipherSuites != null) {
+            engine.setEnabledCipherSuites(cipherSuites);
+        }
+        if (protocols != null) {
+            engine.setEnabledProtocols(protocols);
+        }
+        if (applicationProtocols != null && SET_APPLICATION_PROTOCOLS != null) {
+            SSLParameters parameters = engine.getSSLParameters();
+            try {
+                SET_APPLICATION_PROTOCOLS.invoke(parameters, (Object) applicationProtocols);
+                engine.setSSLParameters(parameters);
+            } catch (ReflectiveOperationException e) {
+                // ALPN is optional
+            }
+        }
+        return engine;
+    }
+
+    private static Method applicationProtocolsMethod() {
+        try {
+            return SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
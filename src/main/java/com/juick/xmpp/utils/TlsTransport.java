@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs an {@link SSLEngine} over a pair of byte streams, whatever carries them: sockets, pipes or
+ * the buffers of a non-blocking connection exposed as streams.
+ * <p>
+ * {@link #handshake()} must complete before the streams are used. Reading and writing may then happen on
+ * different threads; handshake messages received later, such as TLS 1.3 key updates, are answered by the reader.
+ */
+public class TlsTransport {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    private final InputStream input = new Input();
+    private final OutputStream output = new Output();
+
+    public TlsTransport(final SSLEngine engine, final InputStream in, final OutputStream out) {
+        this.engine = engine;
+        this.in = in;
+        this.out = out;
+        netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        appIn.flip();
+        netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    }
+
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    public void handshake() throws IOException {
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED
+            && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    out.flush();
+                    break;
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                default:
+                    readLock.lock();
+                    try {
+                        if (!unwrap()) {
+                            throw new EOFException("connection closed during the TLS handshake");
+                        }
+                    } finally {
+                        readLock.unlock();
+                    }
+            }
+            status = engine.getHandshakeStatus();
+        }
+    }
+
+    private void wrap(final ByteBuffer src) throws IOException {
+        writeLock.lock();
+        try {
+            while (true) {
+                netOut.clear();
+                SSLEngineResult result = engine.wrap(src, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = ByteBuffer.allocate(Math.max(netOut.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                    continue;
+                }
+                out.write(netOut.array(), 0, netOut.position());
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED || !src.hasRemaining()) {
+                    return;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Unwraps one record into {@link #appIn}, reading from the network if needed. Must hold the read lock.
+     *
+     * @return false once the peer closed the connection
+     */
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        appIn.compact();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                int size = engine.getSession().getPacketBufferSize();
+                if (netIn.capacity() < size) {
+                    netIn.flip();
+                    netIn = ByteBuffer.allocate(size).put(netIn);
+                }
+                int count = in.read(netIn.array(), netIn.position(), netIn.remaining());
+                if (count < 0) {
+                    return false;
+                }
+                netIn.position(netIn.position() + count);
+                break;
+            case BUFFER_OVERFLOW:
+                appIn = ByteBuffer.allocate(appIn.remaining() + engine.getSession().getApplicationBufferSize())
+                    .put(appIn);
+                appIn.flip();
+                break;
+            case CLOSED:
+                return false;
+            default:
+                break;
+        }
+        switch (result.getHandshakeStatus()) {
+            case NEED_TASK:
+                runTasks();
+                break;
+            case NEED_WRAP:
+                wrap(EMPTY);
+                out.flush();
+                break;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private final class Input extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            readLock.lock();
+            try {
+                while (!appIn.hasRemaining()) {
+                    if (!unwrap()) {
+                        return -1;
+                    }
+                }
+                int count = Math.min(len, appIn.remaining());
+                appIn.get(b, off, count);
+                return count;
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int available() {
+            return appIn.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private final class Output extends OutputStream {
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (engine.isOutboundDone()) {
+                throw new SSLException("TLS connection closed");
+            }
+            wrap(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            engine.closeOutbound();
+            try {
+                wrap(EMPTY);
+                out.flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
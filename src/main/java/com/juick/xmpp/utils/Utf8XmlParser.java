@@ -0,0 +1,1174 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pull parser which scans UTF-8 bytes as they are read, without a {@link Reader} decoding them first.
+ * Markup is found by looking for ASCII delimiters, which never occur inside multi-byte sequences. Names and
+ * namespaces are taken from a cache of interned strings, so they compare by reference with constants;
+ * attribute values and text are only made into strings when they are asked for.
+ * <p>
+ * It behaves like kxml2 in what {@link #next()} reports: comments, processing instructions and the document type
+ * are skipped, text and CDATA sections are reported as one {@link #TEXT} event, whitespace outside of the root
+ * element is dropped and line breaks are normalized. Other encodings than UTF-8 and US-ASCII are not supported,
+ * input given as a {@link Reader} is encoded to UTF-8 first. {@link #nextToken()} reports the same as
+ * {@link #next()}, and line and column numbers are not tracked.
+ */
+public class Utf8XmlParser implements XmlPullParser {
+
+    private static final String XML_NS = "http://www.w3.org/XML/1998/namespace";
+    private static final String XMLNS_NS = "http://www.w3.org/2000/xmlns/";
+
+    private final NameCache names = new NameCache();
+    private InputStream in;
+    private byte[] buf = new byte[8192];
+    private int pos;
+    private int limit;
+    /**
+     * Start of the current token, the bytes from which are kept in the buffer while it is filled.
+     */
+    private int mark = -1;
+    /**
+     * Start of the element being captured by {@link #captureElement()}, kept in the buffer as well.
+     */
+    private int captureStart = -1;
+    private boolean eof;
+    private boolean processNamespaces;
+    private Map<String, String> entities;
+
+    private int type = START_DOCUMENT;
+    private int depth;
+    private boolean pop;
+    private boolean empty;
+
+    private Name[] elements = new Name[16];
+    private String[] elementNamespaces = new String[16];
+    private int[] nsCounts = new int[16];
+    private String[] nsPrefixes = new String[16];
+    private String[] nsUris = new String[16];
+
+    private int attributeCount = -1;
+    private Name[] attributes = new Name[8];
+    private String[] attributeNamespaces = new String[8];
+    /**
+     * Offsets of the values from {@link #mark}, while they are not decoded.
+     */
+    private int[] valueStarts = new int[8];
+    private int[] valueEnds = new int[8];
+    private String[] values = new String[8];
+
+    /**
+     * Length of the text from {@link #mark}, while it is not decoded.
+     */
+    private int textLength;
+    private String text;
+    private StringBuilder textBuilder;
+    private boolean whitespace;
+
+    @Override
+    public void setFeature(final String name, final boolean state) throws XmlPullParserException {
+        if (FEATURE_PROCESS_NAMESPACES.equals(name)) {
+            if (type != START_DOCUMENT) {
+                throw new XmlPullParserException("namespace processing can only be changed before parsing");
+            }
+            processNamespaces = state;
+        } else if (state) {
+            throw new XmlPullParserException("unsupported feature " + name);
+        }
+    }
+
+    @Override
+    public boolean getFeature(final String name) {
+        return FEATURE_PROCESS_NAMESPACES.equals(name) && processNamespaces;
+    }
+
+    @Override
+    public void setProperty(final String name, final Object value) throws XmlPullParserException {
+        throw new XmlPullParserException("unsupported property " + name);
+    }
+
+    @Override
+    public Object getProperty(final String name) {
+        return null;
+    }
+
+    /**
+     * @param in the input, encoded to UTF-8 as it is read, or null to drop the current input
+     */
+    @Override
+    public void setInput(final Reader in) throws XmlPullParserException {
+        setInput(in == null ? null : new EncodingInputStream(in));
+    }
+
+    @Override
+    public void setInput(final InputStream in, final String encoding) throws XmlPullParserException {
+        if (encoding != null && !encoding.equalsIgnoreCase("UTF-8") && !encoding.equalsIgnoreCase("UTF8")
+            && !encoding.equalsIgnoreCase("US-ASCII")) {
+            throw new XmlPullParserException("unsupported encoding " + encoding);
+        }
+        setInput(in);
+    }
+
+    private void setInput(final InputStream in) {
+        this.in = in;
+        pos = 0;
+        limit = 0;
+        mark = -1;
+        captureStart = -1;
+        eof = false;
+        type = START_DOCUMENT;
+        depth = 0;
+        pop = false;
+        empty = false;
+        attributeCount = -1;
+        text = null;
+        Arrays.fill(elements, null);
+        Arrays.fill(elementNamespaces, null);
+        Arrays.fill(nsPrefixes, null);
+        Arrays.fill(nsUris, null);
+        clearAttributes();
+        if (buf.length > 65536) {
+            buf = new byte[8192];
+        }
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return in == null ? null : "UTF-8";
+    }
+
+    @Override
+    public void defineEntityReplacementText(final String entityName, final String replacementText) {
+        if (entities == null) {
+            entities = new HashMap<>();
+        }
+        entities.put(entityName, replacementText);
+    }
+
+    @Override
+    public int getNamespaceCount(final int depth) throws XmlPullParserException {
+        if (depth > this.depth) {
+            throw new IndexOutOfBoundsException("depth " + depth + " > " + this.depth);
+        }
+        return depth <= 0 ? 0 : nsCounts[depth];
+    }
+
+    @Override
+    public String getNamespacePrefix(final int pos) throws XmlPullParserException {
+        return nsPrefixes[pos];
+    }
+
+    @Override
+    public String getNamespaceUri(final int pos) throws XmlPullParserException {
+        return nsUris[pos];
+    }
+
+    @Override
+    public String getNamespace(final String prefix) {
+        if ("xml".equals(prefix)) {
+            return XML_NS;
+        }
+        if ("xmlns".equals(prefix)) {
+            return XMLNS_NS;
+        }
+        for (int i = (depth <= 0 ? 0 : nsCounts[depth]) - 1; i >= 0; i--) {
+            if (prefix == null ? nsPrefixes[i] == null : prefix.equals(nsPrefixes[i])) {
+                return nsUris[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public String getPositionDescription() {
+        StringBuilder description = new StringBuilder(TYPES[type]);
+        if (type == START_TAG || type == END_TAG) {
+            description.append(type == START_TAG ? " <" : " </").append(elements[depth].qName).append('>');
+        }
+        return description.toString();
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (type != TEXT) {
+            throw new XmlPullParserException("not text: " + TYPES[type], this, null);
+        }
+        return whitespace;
+    }
+
+    @Override
+    public String getText() {
+        if (type != TEXT) {
+            return null;
+        }
+        if (text == null) {
+            text = textBuilder != null ? textBuilder.toString()
+                : new String(buf, mark, textLength, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    @Override
+    public char[] getTextCharacters(final int[] holderForStartAndLength) {
+        String content = getText();
+        if (content == null) {
+            holderForStartAndLength[0] = -1;
+            holderForStartAndLength[1] = -1;
+            return null;
+        }
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = content.length();
+        return content.toCharArray();
+    }
+
+    @Override
+    public String getNamespace() {
+        if (type != START_TAG && type != END_TAG) {
+            return null;
+        }
+        return processNamespaces ? elementNamespaces[depth] : "";
+    }
+
+    @Override
+    public String getName() {
+        if (type != START_TAG && type != END_TAG) {
+            return null;
+        }
+        Name name = elements[depth];
+        return processNamespaces ? name.local : name.qName;
+    }
+
+    @Override
+    public String getPrefix() {
+        if (type != START_TAG && type != END_TAG) {
+            return null;
+        }
+        return processNamespaces ? elements[depth].prefix : null;
+    }
+
+    @Override
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        if (type != START_TAG) {
+            throw new XmlPullParserException("not a start tag: " + TYPES[type], this, null);
+        }
+        return empty;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return attributeCount;
+    }
+
+    @Override
+    public String getAttributeNamespace(final int index) {
+        checkAttribute(index);
+        return processNamespaces ? attributeNamespaces[index] : "";
+    }
+
+    @Override
+    public String getAttributeName(final int index) {
+        checkAttribute(index);
+        return processNamespaces ? attributes[index].local : attributes[index].qName;
+    }
+
+    @Override
+    public String getAttributePrefix(final int index) {
+        checkAttribute(index);
+        return processNamespaces ? attributes[index].prefix : null;
+    }
+
+    @Override
+    public String getAttributeType(final int index) {
+        checkAttribute(index);
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(final int index) {
+        checkAttribute(index);
+        return false;
+    }
+
+    @Override
+    public String getAttributeValue(final int index) {
+        checkAttribute(index);
+        String value = values[index];
+        if (value == null) {
+            value = new String(buf, mark + valueStarts[index], valueEnds[index] - valueStarts[index],
+                StandardCharsets.UTF_8);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    @Override
+    public String getAttributeValue(final String namespace, final String name) {
+        for (int i = 0; i < attributeCount; i++) {
+            Name attribute = attributes[i];
+            String local = processNamespaces ? attribute.local : attribute.qName;
+            if (local.equals(name) && (namespace == null || namespace.equals(getAttributeNamespace(i)))) {
+                return getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    private void checkAttribute(final int index) {
+        if (index < 0 || index >= attributeCount) {
+            throw new IndexOutOfBoundsException("attribute " + index + " of " + attributeCount);
+        }
+    }
+
+    @Override
+    public int getEventType() {
+        return type;
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        if (in == null) {
+            throw new XmlPullParserException("no input");
+        }
+        if (empty) {
+            empty = false;
+            clearAttributes();
+            pop = true;
+            return type = END_TAG;
+        }
+        if (pop) {
+            pop = false;
+            elements[depth] = null;
+            depth--;
+        }
+        clearAttributes();
+        text = null;
+        textBuilder = null;
+        boolean inText = false;
+        while (true) {
+            if (!inText || textBuilder != null) {
+                mark = pos;
+            }
+            int c = peek(0);
+            if (c < 0) {
+                if (inText) {
+                    keepText();
+                    mark = -1;
+                    return type = TEXT;
+                }
+                mark = -1;
+                if (depth > 0) {
+                    throw error("unexpected end of input inside <" + elements[depth].qName + ">");
+                }
+                return type = END_DOCUMENT;
+            }
+            if (c != '<') {
+                if (inText) {
+                    appendText(scanText());
+                } else {
+                    whitespace = true;
+                    scanText();
+                    if (depth == 0 && whitespace) {
+                        continue;
+                    }
+                    inText = true;
+                }
+                continue;
+            }
+            int c1 = peek(1);
+            if (c1 != '!' && c1 != '?') {
+                if (inText) {
+                    return type = TEXT;
+                }
+                if (c1 == '/') {
+                    parseEndTag();
+                    pop = true;
+                    return type = END_TAG;
+                }
+                parseStartTag();
+                return type = START_TAG;
+            }
+            if (inText) {
+                keepText();
+            }
+            if (c1 == '?') {
+                skipPast("?>");
+            } else if (peekMatches("<![CDATA[")) {
+                String cdata = scanCdata();
+                if (inText) {
+                    appendText(cdata);
+                } else {
+                    whitespace = isWhitespace(cdata);
+                    inText = depth > 0 || !whitespace;
+                    textBuilder = inText ? new StringBuilder(cdata) : null;
+                }
+            } else if (peekMatches("<!--")) {
+                skipPast("-->");
+            } else {
+                skipDoctype();
+            }
+        }
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        return next();
+    }
+
+    @Override
+    public void require(final int type, final String namespace, final String name) throws XmlPullParserException {
+        if (type != this.type || (namespace != null && !namespace.equals(getNamespace()))
+            || (name != null && !name.equals(getName()))) {
+            throw error("expected " + TYPES[type] + " " + (name == null ? "" : name));
+        }
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (type != START_TAG) {
+            throw error("precondition: START_TAG");
+        }
+        String result = "";
+        if (next() == TEXT) {
+            result = getText();
+            next();
+        }
+        if (type != END_TAG) {
+            throw error("END_TAG expected");
+        }
+        return result;
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        next();
+        if (type == TEXT && whitespace) {
+            next();
+        }
+        if (type != START_TAG && type != END_TAG) {
+            throw error("unexpected type " + TYPES[type]);
+        }
+        return type;
+    }
+
+    /**
+     * Reads the element the parser is at up to its end tag, where the parser is left, and returns the bytes it
+     * was read from. Like {@link XmlUtils#capture(XmlPullParser)} the namespaces the element inherits from its
+     * ancestors are declared on it, but it is neither decoded nor encoded again.
+     */
+    public byte[] captureElement() throws XmlPullParserException, IOException {
+        if (type != START_TAG) {
+            throw error("precondition: START_TAG");
+        }
+        final int root = depth;
+        final int first = nsCounts[root - 1];
+        Map<String, String> inherited = null;
+        captureStart = mark;
+        try {
+            while (true) {
+                if (type == START_TAG && processNamespaces) {
+                    inherited = inherit(elements[depth].prefix, elementNamespaces[depth], first, inherited);
+                    for (int i = 0; i < attributeCount; i++) {
+                        if (attributes[i].prefix != null) {
+                            inherited = inherit(attributes[i].prefix, attributeNamespaces[i], first, inherited);
+                        }
+                    }
+                } else if (type == END_TAG && depth == root) {
+                    break;
+                }
+                if (next() == END_DOCUMENT) {
+                    throw error("unexpected end of document");
+                }
+            }
+            if (inherited == null) {
+                return Arrays.copyOfRange(buf, captureStart, pos);
+            }
+            StringBuilder xmlns = new StringBuilder();
+            for (Map.Entry<String, String> ns : inherited.entrySet()) {
+                xmlns.append(ns.getKey().isEmpty() ? " xmlns" : " xmlns:").append(ns.getKey()).append("='");
+                XmlEscaper.escape(ns.getValue(), xmlns).append('\'');
+            }
+            byte[] declarations = xmlns.toString().getBytes(StandardCharsets.UTF_8);
+            int name = captureStart + 1 + elements[root].qName.getBytes(StandardCharsets.UTF_8).length;
+            byte[] element = new byte[pos - captureStart + declarations.length];
+            System.arraycopy(buf, captureStart, element, 0, name - captureStart);
+            System.arraycopy(declarations, 0, element, name - captureStart, declarations.length);
+            System.arraycopy(buf, name, element, name - captureStart + declarations.length, pos - name);
+            return element;
+        } finally {
+            captureStart = -1;
+        }
+    }
+
+    /**
+     * Notes the namespace of a prefix if it is declared outside of the element being captured.
+     */
+    private Map<String, String> inherit(final String prefix, final String namespace, final int first,
+                                        final Map<String, String> inherited) {
+        if (namespace == null || namespace.isEmpty() || "xml".equals(prefix)) {
+            return inherited;
+        }
+        for (int i = first; i < nsCounts[depth]; i++) {
+            if (prefix == null ? nsPrefixes[i] == null : prefix.equals(nsPrefixes[i])) {
+                return inherited;
+            }
+        }
+        String key = prefix == null ? "" : prefix;
+        Map<String, String> map = inherited != null ? inherited : new LinkedHashMap<>(4);
+        map.putIfAbsent(key, namespace);
+        return map;
+    }
+
+    /**
+     * Reads text from {@link #mark} up to the next markup or the end of the input. Text without entity references
+     * and carriage returns is left in the buffer for {@link #getText()}, other text is decoded right away.
+     *
+     * @return the decoded text, or null if it was left in the buffer
+     */
+    private String scanText() throws XmlPullParserException, IOException {
+        boolean special = false;
+        boolean ws = whitespace;
+        while (true) {
+            if (pos == limit && !fill()) {
+                break;
+            }
+            byte b = buf[pos];
+            if (b == '<') {
+                break;
+            }
+            if (b == '&' || b == '\r') {
+                special = true;
+                ws = false;
+            } else if (ws && b != ' ' && b != '\n' && b != '\t') {
+                ws = false;
+            }
+            pos++;
+        }
+        whitespace = ws;
+        textLength = pos - mark;
+        text = special ? decode(mark, pos, false) : null;
+        return text;
+    }
+
+    /**
+     * Decodes the text read so far, so that the buffer may move on while more of it is read.
+     */
+    private void keepText() {
+        if (textBuilder == null) {
+            textBuilder = new StringBuilder(text != null ? text
+                : new String(buf, mark, textLength, StandardCharsets.UTF_8));
+            text = null;
+        }
+    }
+
+    /**
+     * @param more the decoded text, or null for the text just scanned
+     */
+    private void appendText(final String more) {
+        textBuilder.append(more != null ? more
+            : new String(buf, mark, textLength, StandardCharsets.UTF_8));
+        text = null;
+        if (whitespace && more != null) {
+            whitespace = isWhitespace(more);
+        }
+    }
+
+    private static boolean isWhitespace(final String content) {
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c != ' ' && c != '\n' && c != '\t' && c != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String scanCdata() throws XmlPullParserException, IOException {
+        pos += 9;
+        mark = pos;
+        while (true) {
+            if (pos + 2 >= limit) {
+                if (!fill()) {
+                    throw error("unterminated CDATA section");
+                }
+                continue;
+            }
+            if (buf[pos] == ']' && buf[pos + 1] == ']' && buf[pos + 2] == '>') {
+                break;
+            }
+            pos++;
+        }
+        String cdata = normalizeLineBreaks(new String(buf, mark, pos - mark, StandardCharsets.UTF_8));
+        pos += 3;
+        return cdata;
+    }
+
+    private static String normalizeLineBreaks(final String content) {
+        if (content.indexOf('\r') < 0) {
+            return content;
+        }
+        return content.replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    private void skipPast(final String end) throws XmlPullParserException, IOException {
+        mark = pos;
+        pos += 2;
+        while (true) {
+            if (pos + end.length() > limit && !fill() && pos + end.length() > limit) {
+                throw error("unterminated " + (end.equals("-->") ? "comment" : "processing instruction"));
+            }
+            if (pos + end.length() > limit) {
+                continue;
+            }
+            boolean matches = true;
+            for (int i = 0; i < end.length(); i++) {
+                if (buf[pos + i] != end.charAt(i)) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                pos += end.length();
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private void skipDoctype() throws XmlPullParserException, IOException {
+        mark = pos;
+        pos += 2;
+        int nesting = 1;
+        byte quote = 0;
+        while (nesting > 0) {
+            if (pos == limit && !fill()) {
+                throw error("unterminated declaration");
+            }
+            byte b = buf[pos++];
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '<') {
+                nesting++;
+            } else if (b == '>') {
+                nesting--;
+            }
+        }
+    }
+
+    private void parseStartTag() throws XmlPullParserException, IOException {
+        pos++;
+        Name name = readName();
+        int count = 0;
+        while (true) {
+            boolean space = skipSpace();
+            int c = peek(0);
+            if (c == '>') {
+                pos++;
+                break;
+            }
+            if (c == '/') {
+                pos++;
+                if (peek(0) != '>') {
+                    throw error("expected > after / in <" + name.qName + ">");
+                }
+                pos++;
+                empty = true;
+                break;
+            }
+            if (c < 0) {
+                throw error("unexpected end of input in <" + name.qName + ">");
+            }
+            if (!space) {
+                throw error("expected whitespace before an attribute of <" + name.qName + ">");
+            }
+            Name attribute = readName();
+            skipSpace();
+            if (peek(0) != '=') {
+                throw error("expected = after attribute " + attribute.qName);
+            }
+            pos++;
+            skipSpace();
+            int quote = peek(0);
+            if (quote != '"' && quote != '\'') {
+                throw error("expected a quoted value of attribute " + attribute.qName);
+            }
+            pos++;
+            if (count == attributes.length) {
+                growAttributes();
+            }
+            int start = pos - mark;
+            boolean special = false;
+            while (true) {
+                if (pos == limit && !fill()) {
+                    throw error("unterminated value of attribute " + attribute.qName);
+                }
+                byte b = buf[pos];
+                if (b == quote) {
+                    break;
+                }
+                if (b == '&' || b == '\r' || b == '\n' || b == '<') {
+                    if (b == '<') {
+                        throw error("< in value of attribute " + attribute.qName);
+                    }
+                    special = true;
+                }
+                pos++;
+            }
+            attributes[count] = attribute;
+            valueStarts[count] = start;
+            valueEnds[count] = pos - mark;
+            values[count] = special ? decode(mark + start, pos, true) : null;
+            count++;
+            pos++;
+        }
+        attributeCount = count;
+        depth++;
+        if (depth == elements.length) {
+            elements = Arrays.copyOf(elements, depth * 2);
+            elementNamespaces = Arrays.copyOf(elementNamespaces, depth * 2);
+            nsCounts = Arrays.copyOf(nsCounts, depth * 2);
+        }
+        elements[depth] = name;
+        nsCounts[depth] = nsCounts[depth - 1];
+        if (processNamespaces) {
+            processNamespaces(name);
+        }
+    }
+
+    private void processNamespaces(final Name name) throws XmlPullParserException {
+        int kept = 0;
+        for (int i = 0; i < attributeCount; i++) {
+            Name attribute = attributes[i];
+            if (attribute.qName.equals("xmlns") || "xmlns".equals(attribute.prefix)) {
+                String prefix = attribute.prefix == null ? null : attribute.local;
+                String uri = values[i] != null ? values[i] : names.namespace(buf, mark + valueStarts[i], mark + valueEnds[i]);
+                if (prefix != null && uri.isEmpty()) {
+                    throw error("empty namespace of prefix " + prefix);
+                }
+                int n = nsCounts[depth]++;
+                if (n == nsPrefixes.length) {
+                    nsPrefixes = Arrays.copyOf(nsPrefixes, n * 2);
+                    nsUris = Arrays.copyOf(nsUris, n * 2);
+                }
+                nsPrefixes[n] = prefix;
+                nsUris[n] = uri;
+            } else {
+                if (kept != i) {
+                    attributes[kept] = attribute;
+                    valueStarts[kept] = valueStarts[i];
+                    valueEnds[kept] = valueEnds[i];
+                    values[kept] = values[i];
+                }
+                kept++;
+            }
+        }
+        for (int i = kept; i < attributeCount; i++) {
+            attributes[i] = null;
+            values[i] = null;
+        }
+        attributeCount = kept;
+        for (int i = 0; i < attributeCount; i++) {
+            String prefix = attributes[i].prefix;
+            attributeNamespaces[i] = prefix == null ? "" : resolve(prefix);
+        }
+        String namespace = name.prefix == null ? getNamespace(null) : resolve(name.prefix);
+        elementNamespaces[depth] = namespace == null ? "" : namespace;
+    }
+
+    private String resolve(final String prefix) throws XmlPullParserException {
+        String namespace = getNamespace(prefix);
+        if (namespace == null) {
+            throw error("undefined prefix: " + prefix);
+        }
+        return namespace;
+    }
+
+    private void parseEndTag() throws XmlPullParserException, IOException {
+        pos += 2;
+        Name name = readName();
+        skipSpace();
+        if (peek(0) != '>') {
+            throw error("expected > in </" + name.qName);
+        }
+        pos++;
+        if (depth == 0) {
+            throw error("unexpected </" + name.qName + ">");
+        }
+        Name open = elements[depth];
+        if (name != open && !name.qName.equals(open.qName)) {
+            throw error("expected </" + open.qName + "> read </" + name.qName + ">");
+        }
+    }
+
+    private Name readName() throws XmlPullParserException, IOException {
+        int start = pos - mark;
+        while (true) {
+            if (pos == limit && !fill()) {
+                break;
+            }
+            byte b = buf[pos];
+            if (b == ' ' || b == '>' || b == '/' || b == '=' || b == '\n' || b == '\t' || b == '\r'
+                || b == '<' || b == '"' || b == '\'') {
+                break;
+            }
+            pos++;
+        }
+        if (pos - mark == start) {
+            throw error("expected a name");
+        }
+        return names.name(buf, mark + start, pos);
+    }
+
+    /**
+     * @return whether there was whitespace
+     */
+    private boolean skipSpace() throws IOException {
+        boolean skipped = false;
+        while (true) {
+            if (pos == limit && !fill()) {
+                return skipped;
+            }
+            byte b = buf[pos];
+            if (b != ' ' && b != '\n' && b != '\t' && b != '\r') {
+                return skipped;
+            }
+            skipped = true;
+            pos++;
+        }
+    }
+
+    private int peek(final int offset) throws IOException {
+        while (pos + offset >= limit) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        return buf[pos + offset] & 0xff;
+    }
+
+    private boolean peekMatches(final String markup) throws IOException {
+        for (int i = 0; i < markup.length(); i++) {
+            if (peek(i) != markup.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads more input, keeping the bytes of the current token and dropping those before.
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int keep = mark >= 0 && mark <= pos ? mark : pos;
+        if (captureStart >= 0 && captureStart < keep) {
+            keep = captureStart;
+        }
+        if (keep > 0) {
+            System.arraycopy(buf, keep, buf, 0, limit - keep);
+            limit -= keep;
+            pos -= keep;
+            if (mark >= 0) {
+                mark -= keep;
+            }
+            if (captureStart >= 0) {
+                captureStart -= keep;
+            }
+        }
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int count;
+        do {
+            count = in.read(buf, limit, buf.length - limit);
+        } while (count == 0);
+        if (count < 0) {
+            eof = true;
+            return false;
+        }
+        if (limit == 0 && pos == 0 && count >= 3 && buf[0] == (byte) 0xef && buf[1] == (byte) 0xbb
+            && buf[2] == (byte) 0xbf && type == START_DOCUMENT) {
+            System.arraycopy(buf, 3, buf, 0, count - 3);
+            count -= 3;
+        }
+        limit += count;
+        return true;
+    }
+
+    /**
+     * Decodes text or an attribute value which has entity references or line breaks to normalize.
+     */
+    private String decode(final int start, final int end, final boolean attribute) throws XmlPullParserException {
+        StringBuilder out = new StringBuilder(end - start);
+        int segment = start;
+        int i = start;
+        while (i < end) {
+            byte b = buf[i];
+            if (b == '&') {
+                out.append(new String(buf, segment, i - segment, StandardCharsets.UTF_8));
+                int semicolon = i + 1;
+                while (semicolon < end && buf[semicolon] != ';') {
+                    semicolon++;
+                }
+                if (semicolon == end) {
+                    throw error("unterminated entity reference");
+                }
+                entity(new String(buf, i + 1, semicolon - i - 1, StandardCharsets.UTF_8), out);
+                i = semicolon + 1;
+                segment = i;
+            } else if (b == '\r' || (attribute && b == '\n')) {
+                out.append(new String(buf, segment, i - segment, StandardCharsets.UTF_8));
+                out.append(attribute ? ' ' : '\n');
+                if (b == '\r' && i + 1 < end && buf[i + 1] == '\n') {
+                    i++;
+                }
+                i++;
+                segment = i;
+            } else {
+                i++;
+            }
+        }
+        return out.append(new String(buf, segment, end - segment, StandardCharsets.UTF_8)).toString();
+    }
+
+    private void entity(final String name, final StringBuilder out) throws XmlPullParserException {
+        switch (name) {
+            case "amp":
+                out.append('&');
+                return;
+            case "lt":
+                out.append('<');
+                return;
+            case "gt":
+                out.append('>');
+                return;
+            case "quot":
+                out.append('"');
+                return;
+            case "apos":
+                out.append('\'');
+                return;
+            default:
+                if (name.startsWith("#")) {
+                    try {
+                        out.appendCodePoint(name.startsWith("#x") ? Integer.parseInt(name.substring(2), 16)
+                            : Integer.parseInt(name.substring(1)));
+                        return;
+                    } catch (IllegalArgumentException e) {
+                        throw error("invalid character reference &" + name + ";");
+                    }
+                }
+                String replacement = entities == null ? null : entities.get(name);
+                if (replacement == null) {
+                    throw error("unresolved: &" + name + ";");
+                }
+                out.append(replacement);
+        }
+    }
+
+    private void clearAttributes() {
+        for (int i = 0; i < attributeCount; i++) {
+            attributes[i] = null;
+            attributeNamespaces[i] = null;
+            values[i] = null;
+        }
+        attributeCount = -1;
+    }
+
+    private void growAttributes() {
+        int size = attributes.length * 2;
+        attributes = Arrays.copyOf(attributes, size);
+        attributeNamespaces = Arrays.copyOf(attributeNamespaces, size);
+        valueStarts = Arrays.copyOf(valueStarts, size);
+        valueEnds = Arrays.copyOf(valueEnds, size);
+        values = Arrays.copyOf(values, size);
+    }
+
+    private XmlPullParserException error(final String message) {
+        return new XmlPullParserException(message, this, null);
+    }
+
+    /**
+     * A qualified name as read, split into prefix and local name.
+     */
+    private static final class Name {
+
+        final byte[] bytes;
+        final String qName;
+        final String prefix;
+        final String local;
+
+        Name(final byte[] bytes, final String qName) {
+            this.bytes = bytes;
+            this.qName = qName;
+            int colon = qName.indexOf(':');
+            prefix = colon < 0 ? null : qName.substring(0, colon).intern();
+            local = colon < 0 ? qName : qName.substring(colon + 1).intern();
+        }
+    }
+
+    /**
+     * Names and namespaces by their bytes, in a direct-mapped table where a newer entry replaces an older one.
+     */
+    private static final class NameCache {
+
+        private static final int SIZE = 512;
+        private static final int MAX_LENGTH = 128;
+
+        private final Name[] names = new Name[SIZE];
+        private final Name[] namespaces = new Name[SIZE];
+
+        Name name(final byte[] buf, final int start, final int end) {
+            int slot = hash(buf, start, end) & (SIZE - 1);
+            Name name = names[slot];
+            if (name != null && matches(name.bytes, buf, start, end)) {
+                return name;
+            }
+            name = new Name(Arrays.copyOfRange(buf, start, end),
+                new String(buf, start, end - start, StandardCharsets.UTF_8).intern());
+            if (end - start <= MAX_LENGTH) {
+                names[slot] = name;
+            }
+            return name;
+        }
+
+        String namespace(final byte[] buf, final int start, final int end) {
+            int slot = hash(buf, start, end) & (SIZE - 1);
+            Name namespace = namespaces[slot];
+            if (namespace != null && matches(namespace.bytes, buf, start, end)) {
+                return namespace.qName;
+            }
+            String uri = new String(buf, start, end - start, StandardCharsets.UTF_8);
+            if (end - start <= MAX_LENGTH) {
+                uri = uri.intern();
+                namespaces[slot] = new Name(Arrays.copyOfRange(buf, start, end), uri);
+            }
+            return uri;
+        }
+
+        private static int hash(final byte[] buf, final int start, final int end) {
+            int hash = end - start;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + buf[i];
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean matches(final byte[] bytes, final byte[] buf, final int start, final int end) {
+            if (bytes.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != buf[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Encodes the characters of a reader to UTF-8, as they are read.
+     */
+    private static final class EncodingInputStream extends InputStream {
+
+        private final Reader reader;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharBuffer chars = CharBuffer.allocate(2048);
+        private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+        private boolean end;
+
+        EncodingInputStream(final Reader reader) {
+            this.reader = reader;
+            chars.flip();
+            bytes.flip();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            while (!bytes.hasRemaining()) {
+                if (end) {
+                    return -1;
+                }
+                chars.compact();
+                int count = reader.read(chars);
+                chars.flip();
+                end = count < 0;
+                bytes.clear();
+                encoder.encode(chars, bytes, end);
+                if (end) {
+                    encoder.flush(bytes);
+                }
+                bytes.flip();
+            }
+            int count = Math.min(len, bytes.remaining());
+            bytes.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+/**
+ * Escapes character data exactly like {@code StringEscapeUtils.escapeXml10}: the five predefined entities,
+ * {@code &#...;} for the discouraged controls 0x7f-0x84 and 0x86-0x9f, and removal of characters
+ * XML 1.0 does not allow (other C0 controls, unpaired surrogates, U+FFFE and U+FFFF).
+ * <p>
+ * The input is scanned once and returned as is when nothing has to be escaped, which is the common case.
+ * {@link #escape(String, int, Sink)} writes the escaped text to other outputs, such as {@link XmppWriter}.
+ */
+public final class XmlEscaper {
+
+    /**
+     * Receives escaped text.
+     */
+    public interface Sink {
+
+        /**
+         * A character which is kept, not a surrogate.
+         */
+        void put(char c);
+
+        void put(char high, char low);
+
+        /**
+         * An entity or character reference.
+         */
+        void reference(String reference);
+    }
+
+    private static final class BuilderSink implements Sink {
+
+        private final StringBuilder out;
+
+        BuilderSink(final StringBuilder out) {
+            this.out = out;
+        }
+
+        @Override
+        public void put(final char c) {
+            out.append(c);
+        }
+
+        @Override
+        public void put(final char high, final char low) {
+            out.append(high).append(low);
+        }
+
+        @Override
+        public void reference(final String reference) {
+            out.append(reference);
+        }
+    }
+
+    private XmlEscaper() {
+    }
+
+    public static String escape(final String text) {
+        if (text == null) {
+            return null;
+        }
+        int first = indexOfEscape(text);
+        if (first < 0) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length() + 16);
+        out.append(text, 0, first);
+        escape(text, first, new BuilderSink(out));
+        return out.toString();
+    }
+
+    /**
+     * Appends the escaped text to the builder.
+     */
+    public static StringBuilder escape(final String text, final StringBuilder out) {
+        if (text == null) {
+            return out;
+        }
+        int first = indexOfEscape(text);
+        if (first < 0) {
+            return out.append(text);
+        }
+        out.append(text, 0, first);
+        escape(text, first, new BuilderSink(out));
+        return out;
+    }
+
+    /**
+     * @return the index of the first character which has to be escaped or removed, -1 if there is none
+     */
+    public static int indexOfEscape(final String text) {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x20 && c < 0x7f) {
+                if (c == '&' || c == '<' || c == '>' || c == '"' || c == '\'') {
+                    return i;
+                }
+            } else if (c == '\t' || c == '\n' || c == '\r' || c == 0x85) {
+                continue;
+            } else if (c <= 0x9f) {
+                return i;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                i++;
+            } else if (Character.isSurrogate(c) || c >= 0xfffe) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the text from the start index on to the sink, escaped.
+     */
+    public static void escape(final String text, final int start, final Sink out) {
+        final int length = text.length();
+        for (int i = start; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.reference("&amp;");
+                    break;
+                case '<':
+                    out.reference("&lt;");
+                    break;
+                case '>':
+                    out.reference("&gt;");
+                    break;
+                case '"':
+                    out.reference("&quot;");
+                    break;
+                case '\'':
+                    out.reference("&apos;");
+                    break;
+                case '\t':
+                case '\n':
+                case '\r':
+                case 0x85:
+                    out.put(c);
+                    break;
+                default:
+                    if (c < 0x20) {
+                        break;
+                    }
+                    if (c >= 0x7f && c <= 0x9f) {
+                        out.reference("&#" + (int) c + ";");
+                    } else if (Character.isHighSurrogate(c)) {
+                        if (i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                            out.put(c, text.charAt(++i));
+                        }
+                    } else if (!Character.isLowSurrogate(c) && c < 0xfffe) {
+                        out.put(c);
+                    }
+            }
+        }
+    }
+}
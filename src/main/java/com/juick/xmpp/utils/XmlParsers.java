@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.Reader;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * A pool of namespace aware parsers, which are {@link Utf8XmlParser}s unless {@link #setUseFactory(boolean)}
+ * asks for those of the {@link XmlPullParserFactory} of the JVM, looked up once it is first needed.
+ * <p>
+ * A parser is reset by {@link XmlPullParser#setInput(Reader)}, so streams keep theirs across restarts and
+ * hand it back once they are done reading, for the next connection to pick up instead of building one.
+ * The parser released last is reused first, its buffers are the likeliest to be in a cache.
+ */
+public final class XmlParsers {
+
+    private static final int POOL_SIZE = 256;
+    private static final BlockingDeque<XmlPullParser> POOL = new LinkedBlockingDeque<>(POOL_SIZE);
+    private static volatile boolean useFactory;
+
+    private XmlParsers() {
+    }
+
+    public static XmlPullParserFactory getFactory() {
+        return FactoryHolder.FACTORY;
+    }
+
+    /**
+     * @param useFactory whether parsers are built by {@link #getFactory()} rather than being {@link Utf8XmlParser}s,
+     *                   the pool is emptied if this changes
+     */
+    public static void setUseFactory(final boolean useFactory) {
+        if (XmlParsers.useFactory != useFactory) {
+            XmlParsers.useFactory = useFactory;
+            POOL.clear();
+        }
+    }
+
+    /**
+     * @return a namespace aware parser without input, from the pool if it has one
+     */
+    public static XmlPullParser acquire() throws XmlPullParserException {
+        XmlPullParser parser = POOL.pollFirst();
+        if (parser == null) {
+            parser = useFactory ? getFactory().newPullParser() : new Utf8XmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        }
+        return parser;
+    }
+
+    /**
+     * Drops the input of the parser and keeps it for {@link #acquire()}, unless the pool is full.
+     * The parser must not be used any more by the caller.
+     */
+    public static void release(final XmlPullParser parser) {
+        try {
+            parser.setInput(null);
+        } catch (XmlPullParserException e) {
+            return;
+        }
+        POOL.offerFirst(parser);
+    }
+
+    private static final class FactoryHolder {
+
+        static final XmlPullParserFactory FACTORY = newFactory();
+
+        private static XmlPullParserFactory newFactory() {
+            try {
+                return XmlPullParserFactory.newInstance();
+            } catch (XmlPullParserException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
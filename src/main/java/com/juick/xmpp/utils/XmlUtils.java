@@ -18,8 +18,10 @@
 package com.juick.xmpp.utils;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -64,7 +66,7 @@ public class XmlUtils {
         for (int i = 0; i < parser.getAttributeCount(); i++) {
             String attr = parser.getAttributeName(i);
             if ((!skipXMLNS || !attr.equals("xmlns")) && !attr.contains(":")) {
-                ret.append(" ").append(attr).append("=\"").append(StringEscapeUtils.escapeXml10(parser.getAttributeValue(i))).append("\"");
+                ret.append(" ").append(attr).append("=\"").append(XmlEscaper.escape(parser.getAttributeValue(i))).append("\"");
             }
         }
         ret.append(">");
@@ -78,11 +80,114 @@ public class XmlUtils {
                     skip(parser);
                 }
             } else if (event == XmlPullParser.TEXT) {
-                ret.append(StringEscapeUtils.escapeXml10(parser.getText()));
+                ret.append(XmlEscaper.escape(parser.getText()));
             }
         }
 
         ret.append("</").append(tag).append(">");
         return ret.toString();
     }
+
+    /**
+     * Serializes the element the parser is at with everything in it, and leaves the parser at its end tag.
+     * Unlike {@link #parseToString(XmlPullParser, boolean)} nothing is dropped: prefixes are kept, and the
+     * namespaces the element inherits from its ancestors are declared on it, so the XML stands on its own.
+     */
+    public static String capture(XmlPullParser parser) throws XmlPullParserException, IOException {
+        final int root = parser.getDepth();
+        final int first = parser.getNamespaceCount(root - 1);
+        StringBuilder out = new StringBuilder(128);
+        Map<String, String> inherited = new LinkedHashMap<>(4);
+        int declarations = -1;
+        int event = parser.getEventType();
+        while (true) {
+            if (event == XmlPullParser.START_TAG) {
+                out.append('<');
+                name(out, parser.getPrefix(), parser.getName());
+                if (declarations < 0) {
+                    declarations = out.length();
+                }
+                int depth = parser.getDepth();
+                int last = parser.getNamespaceCount(depth);
+                for (int i = parser.getNamespaceCount(depth - 1); i < last; i++) {
+                    String prefix = parser.getNamespacePrefix(i);
+                    out.append(" xmlns");
+                    if (prefix != null && !prefix.isEmpty()) {
+                        out.append(':').append(prefix);
+                    }
+                    out.append("='");
+                    XmlEscaper.escape(parser.getNamespaceUri(i), out).append('\'');
+                }
+                inherit(parser, parser.getPrefix(), parser.getNamespace(), first, last, inherited);
+                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                    String prefix = parser.getAttributePrefix(i);
+                    if (prefix != null) {
+                        inherit(parser, prefix, parser.getAttributeNamespace(i), first, last, inherited);
+                    }
+                    out.append(' ');
+                    name(out, prefix, parser.getAttributeName(i));
+                    out.append("='");
+                    XmlEscaper.escape(parser.getAttributeValue(i), out).append('\'');
+                }
+                out.append('>');
+            } else if (event == XmlPullParser.TEXT) {
+                XmlEscaper.escape(parser.getText(), out);
+            } else if (event == XmlPullParser.END_TAG) {
+                out.append("</");
+                name(out, parser.getPrefix(), parser.getName());
+                out.append('>');
+                if (parser.getDepth() == root) {
+                    break;
+                }
+            } else if (event == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("unexpected end of document", parser, null);
+            }
+            event = parser.next();
+        }
+        if (!inherited.isEmpty()) {
+            StringBuilder xmlns = new StringBuilder();
+            for (Map.Entry<String, String> ns : inherited.entrySet()) {
+                xmlns.append(ns.getKey().isEmpty() ? " xmlns" : " xmlns:").append(ns.getKey()).append("='");
+                XmlEscaper.escape(ns.getValue(), xmlns).append('\'');
+            }
+            out.insert(declarations, xmlns);
+        }
+        return out.toString();
+    }
+
+    /**
+     * {@link #capture(XmlPullParser)} as UTF-8, sliced from the input rather than serialized again if the parser
+     * is a {@link Utf8XmlParser}.
+     */
+    public static byte[] captureBytes(XmlPullParser parser) throws XmlPullParserException, IOException {
+        if (parser instanceof Utf8XmlParser) {
+            return ((Utf8XmlParser) parser).captureElement();
+        }
+        return capture(parser).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void name(StringBuilder out, String prefix, String name) {
+        if (prefix != null) {
+            out.append(prefix).append(':');
+        }
+        out.append(name);
+    }
+
+    /**
+     * Notes the namespace of a prefix if it is declared outside of the captured element.
+     */
+    private static void inherit(XmlPullParser parser, String prefix, String namespace, int first, int last,
+                                Map<String, String> inherited) throws XmlPullParserException {
+        if (namespace == null || namespace.isEmpty() || "xml".equals(prefix)) {
+            return;
+        }
+        String key = prefix == null ? "" : prefix;
+        for (int i = first; i < last; i++) {
+            String declared = parser.getNamespacePrefix(i);
+            if (key.equals(declared == null ? "" : declared)) {
+                return;
+            }
+        }
+        inherited.putIfAbsent(key, namespace);
+    }
 }
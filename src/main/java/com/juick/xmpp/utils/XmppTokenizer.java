@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Push tokenizer for the raw bytes of an XMPP stream.
+ * <p>
+ * Byte slices are fed as they arrive from the network; the tokenizer reports the stream header,
+ * every complete first-level element (stanzas, features, dialback...), the text between them and the closing tag.
+ * Only markup delimiters are looked at, which is safe on UTF-8 input because multi-byte sequences never contain
+ * ASCII bytes, so nothing is decoded here. A {@code stream:stream} start tag inside the stream is reported as a new
+ * header, {@link #reset()} starts over after the underlying connection has been restarted (e.g. by TLS).
+ * A handler which changes how the following bytes are to be read, e.g. inflated, calls {@link #suspend()}
+ * and feeds the rest of the input once it is read that way.
+ * <p>
+ * The buffers passed to the {@link Handler} are only valid during the call and must not be modified:
+ * they are slices of the fed buffer whenever the unit was fed at once, and the internal buffer otherwise.
+ */
+public class XmppTokenizer {
+
+    public interface Handler {
+
+        void header(ByteBuffer header);
+
+        /**
+         * @param name qualified name of the element, {@code message}, {@code presence} and {@code iq} are shared constants
+         */
+        void element(String name, ByteBuffer element);
+
+        void text(ByteBuffer text);
+
+        void footer(ByteBuffer footer);
+    }
+
+    public static class ElementTooLargeException extends XmlPullParserException {
+
+        public ElementTooLargeException(final int limit) {
+            super("element exceeds " + limit + " bytes");
+        }
+    }
+
+    private static final int TEXT = 0;
+    private static final int MARKUP = 1;
+    private static final int START_TAG = 2;
+    private static final int END_TAG = 3;
+    private static final int DECLARATION = 4;
+    private static final int COMMENT = 5;
+    private static final int CDATA = 6;
+    private static final int PROCESSING_INSTRUCTION = 7;
+
+    private static final byte[] COMMENT_START = "<!--".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CDATA_START = "<![CDATA[".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] NAMES = {
+        "message".getBytes(StandardCharsets.US_ASCII),
+        "presence".getBytes(StandardCharsets.US_ASCII),
+        "iq".getBytes(StandardCharsets.US_ASCII)
+    };
+    private static final String[] NAME_STRINGS = {"message", "presence", "iq"};
+
+    private final Handler handler;
+    private final int maxElementSize;
+    private byte[] pending = new byte[256];
+    private int pendingCount;
+    private byte[] scratch;
+    private int state = TEXT;
+    private int depth;
+    private byte quote;
+    private byte previous;
+    private byte beforePrevious;
+    private int markupLength;
+    private boolean inName;
+    private byte[] name = new byte[32];
+    private int nameLength;
+    private String elementName;
+    private boolean suspended;
+
+    public XmppTokenizer(final Handler handler) {
+        this(handler, 0);
+    }
+
+    /**
+     * @param maxElementSize the largest first-level element accepted, in bytes, or 0 for no limit
+     */
+    public XmppTokenizer(final Handler handler, final int maxElementSize) {
+        this.handler = handler;
+        this.maxElementSize = maxElementSize;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Drops any partial input and expects a new stream header.
+     */
+    public void reset() {
+        pendingCount = 0;
+        suspended = false;
+        state = TEXT;
+        depth = 0;
+        quote = 0;
+        previous = 0;
+        beforePrevious = 0;
+        inName = false;
+    }
+
+    /**
+     * Makes the feed in progress return right after the unit being handled, only from {@link Handler#header},
+     * {@link Handler#element} or {@link Handler#footer}. Outside of a feed it has no effect.
+     */
+    public void suspend() {
+        suspended = true;
+    }
+
+    /**
+     * Consumes the remaining bytes, up to the unit the feed is suspended after.
+     */
+    public void feed(final ByteBuffer data) throws XmlPullParserException {
+        if (data.hasArray()) {
+            data.position(data.position() + feed(data.array(), data.arrayOffset() + data.position(), data.remaining()));
+        } else {
+            if (scratch == null) {
+                scratch = new byte[8192];
+            }
+            while (data.hasRemaining()) {
+                int count = Math.min(scratch.length, data.remaining());
+                data.get(scratch, 0, count);
+                int consumed = feed(scratch, 0, count);
+                if (consumed < count) {
+                    data.position(data.position() - count + consumed);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the bytes consumed, less than the length if the feed is suspended
+     */
+    public int feed(final byte[] data, final int offset, final int length) throws XmlPullParserException {
+        suspended = false;
+        final int end = offset + length;
+        int unitStart = offset;
+        for (int i = offset; i < end; i++) {
+            final byte b = data[i];
+            switch (state) {
+                case TEXT:
+                    if (b == '<') {
+                        if (depth <= 1 && (pendingCount > 0 || i > unitStart)) {
+                            handler.text(unit(data, unitStart, i));
+                            unitStart = i;
+                        }
+                        markupLength = 1;
+                        state = MARKUP;
+                    }
+                    break;
+                case MARKUP:
+                    markupLength++;
+                    if (b == '/') {
+                        state = END_TAG;
+                    } else if (b == '?') {
+                        state = PROCESSING_INSTRUCTION;
+                    } else if (b == '!') {
+                        state = DECLARATION;
+                    } else {
+                        state = START_TAG;
+                        inName = true;
+                        nameLength = 0;
+                        appendName(b);
+                    }
+                    break;
+                case START_TAG:
+                    if (quote != 0) {
+                        if (b == quote) {
+                            quote = 0;
+                        }
+                    } else if (b == '>') {
+                        inName = false;
+                        if (startTag(previous == '/')) {
+                            emit(data, unitStart, i);
+                            unitStart = i + 1;
+                        }
+                    } else if (b == '"' || b == '\'') {
+                        quote = b;
+                    } else if (b == '<') {
+                        throw new XmlPullParserException("unexpected '<' in a start tag");
+                    } else if (inName) {
+                        if (b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '/') {
+                            inName = false;
+                        } else {
+                            appendName(b);
+                        }
+                    }
+                    break;
+                case END_TAG:
+                    if (b == '>') {
+                        state = TEXT;
+                        if (depth <= 1) {
+                            depth = 0;
+                            elementName = null;
+                            handler.footer(unit(data, unitStart, i + 1));
+                            unitStart = i + 1;
+                        } else if (--depth == 1) {
+                            emit(data, unitStart, i);
+                            unitStart = i + 1;
+                        }
+                    }
+                    break;
+                case DECLARATION:
+                    markupLength++;
+                    if (markupLength <= CDATA_START.length) {
+                        boolean comment = markupLength <= COMMENT_START.length && b == COMMENT_START[markupLength - 1];
+                        boolean cdata = b == CDATA_START[markupLength - 1];
+                        if (comment && markupLength == COMMENT_START.length) {
+                            state = COMMENT;
+                            break;
+                        }
+                        if (cdata && markupLength == CDATA_START.length) {
+                            state = CDATA;
+                            break;
+                        }
+                        if (comment || cdata) {
+                            break;
+                        }
+                        markupLength = Integer.MAX_VALUE;
+                    }
+                    if (b == '>') {
+                        unitStart = markup(data, unitStart, i);
+                    }
+                    break;
+                case COMMENT:
+                    markupLength++;
+                    if (b == '>' && previous == '-' && beforePrevious == '-' && markupLength >= 7) {
+                        unitStart = markup(data, unitStart, i);
+                    }
+                    break;
+                case CDATA:
+                    if (b == '>' && previous == ']' && beforePrevious == ']') {
+                        unitStart = markup(data, unitStart, i);
+                    }
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    if (b == '>' && previous == '?') {
+                        unitStart = markup(data, unitStart, i);
+                    }
+                    break;
+            }
+            beforePrevious = previous;
+            previous = b;
+            if (suspended) {
+                suspended = false;
+                return i + 1 - offset;
+            }
+        }
+        append(data, unitStart, end);
+        return length;
+    }
+
+    /**
+     * @return true if the start tag completed a unit
+     */
+    private boolean startTag(final boolean empty) throws XmlPullParserException {
+        state = TEXT;
+        if (depth == 0 || (depth == 1 && !empty && isStreamName())) {
+            depth = 1;
+            elementName = null;
+            return true;
+        }
+        if (depth == 1) {
+            elementName = elementName();
+        }
+        if (empty) {
+            return depth == 1;
+        }
+        depth++;
+        return false;
+    }
+
+    private void emit(final byte[] data, final int from, final int last) throws XmlPullParserException {
+        ByteBuffer unit = unit(data, from, last + 1);
+        if (elementName == null) {
+            handler.header(unit);
+        } else {
+            String element = elementName;
+            elementName = null;
+            handler.element(element, unit);
+        }
+    }
+
+    private int markup(final byte[] data, final int unitStart, final int last) throws XmlPullParserException {
+        state = TEXT;
+        if (depth <= 1) {
+            handler.text(unit(data, unitStart, last + 1));
+            return last + 1;
+        }
+        return unitStart;
+    }
+
+    private ByteBuffer unit(final byte[] data, final int from, final int to) throws XmlPullParserException {
+        if (pendingCount == 0) {
+            checkSize(to - from);
+            return ByteBuffer.wrap(data, from, to - from);
+        }
+        append(data, from, to);
+        ByteBuffer unit = ByteBuffer.wrap(pending, 0, pendingCount);
+        pendingCount = 0;
+        return unit;
+    }
+
+    private void append(final byte[] data, final int from, final int to) throws XmlPullParserException {
+        final int length = to - from;
+        if (length <= 0) {
+            return;
+        }
+        checkSize(pendingCount + length);
+        if (pendingCount + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingCount + length));
+        }
+        System.arraycopy(data, from, pending, pendingCount, length);
+        pendingCount += length;
+    }
+
+    private void checkSize(final int size) throws XmlPullParserException {
+        if (maxElementSize > 0 && size > maxElementSize) {
+            throw new ElementTooLargeException(maxElementSize);
+        }
+    }
+
+    private void appendName(final byte b) {
+        if (nameLength == name.length) {
+            name = Arrays.copyOf(name, name.length * 2);
+        }
+        name[nameLength++] = b;
+    }
+
+    private boolean isStreamName() {
+        if (nameLength < 6) {
+            return false;
+        }
+        for (int i = 0; i < 6; i++) {
+            if (name[nameLength - 6 + i] != "stream".charAt(i)) {
+                return false;
+            }
+        }
+        return nameLength == 6 || name[nameLength - 7] == ':';
+    }
+
+    private String elementName() {
+        for (int i = 0; i < NAMES.length; i++) {
+            byte[] known = NAMES[i];
+            if (known.length == nameLength) {
+                int j = 0;
+                while (j < nameLength && known[j] == name[j]) {
+                    j++;
+                }
+                if (j == nameLength) {
+                    return NAME_STRINGS[i];
+                }
+            }
+        }
+        return new String(name, 0, nameLength, StandardCharsets.UTF_8);
+    }
+}
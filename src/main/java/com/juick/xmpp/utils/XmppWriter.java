@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serializes stanzas as UTF-8 straight into a reusable {@link ByteBuffer}, which grows as needed.
+ * <p>
+ * Constant markup is appended as fragments encoded once with {@link #fragment(String)},
+ * character data is escaped by {@link XmlEscaper} while it is encoded.
+ */
+public class XmppWriter {
+
+    private final XmlEscaper.Sink escaped = new XmlEscaper.Sink() {
+        @Override
+        public void put(final char c) {
+            ensure(3);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else {
+                putCodePoint(c);
+            }
+        }
+
+        @Override
+        public void put(final char high, final char low) {
+            ensure(4);
+            putCodePoint(Character.toCodePoint(high, low));
+        }
+
+        @Override
+        public void reference(final String reference) {
+            append(reference);
+        }
+    };
+    private final boolean direct;
+    private ByteBuffer buffer;
+    private byte[] scratch;
+
+    public XmppWriter() {
+        this(1024, false);
+    }
+
+    public XmppWriter(final int capacity, final boolean direct) {
+        this.direct = direct;
+        buffer = allocate(capacity);
+    }
+
+    public static byte[] fragment(final String markup) {
+        return markup.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public XmppWriter append(final byte[] fragment) {
+        ensure(fragment.length);
+        buffer.put(fragment);
+        return this;
+    }
+
+    /**
+     * Appends the remaining bytes of the buffer, which is left as it is.
+     */
+    public XmppWriter append(final ByteBuffer bytes) {
+        ensure(bytes.remaining());
+        buffer.put(bytes.duplicate());
+        return this;
+    }
+
+    /**
+     * Appends markup without escaping it.
+     */
+    public XmppWriter append(final String markup) {
+        final int length = markup.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            ensure(4);
+            char c = markup.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(markup.charAt(i + 1))) {
+                putCodePoint(Character.toCodePoint(c, markup.charAt(++i)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                putCodePoint(c);
+            }
+        }
+        return this;
+    }
+
+    public XmppWriter append(final int value) {
+        return append(Integer.toString(value));
+    }
+
+    /**
+     * Appends character data, escaped for both element content and attribute values.
+     */
+    public XmppWriter text(final String text) {
+        ensure(text.length());
+        XmlEscaper.escape(text, 0, escaped);
+        return this;
+    }
+
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * @return the buffer in write mode, its content ends at the position
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.position()];
+        ByteBuffer content = buffer.duplicate();
+        content.flip();
+        content.get(bytes);
+        return bytes;
+    }
+
+    public void clear() {
+        buffer.clear();
+    }
+
+    public void writeTo(final OutputStream os) throws IOException {
+        if (buffer.hasArray()) {
+            os.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            return;
+        }
+        if (scratch == null) {
+            scratch = new byte[8192];
+        }
+        ByteBuffer content = buffer.duplicate();
+        content.flip();
+        while (content.hasRemaining()) {
+            int count = Math.min(scratch.length, content.remaining());
+            content.get(scratch, 0, count);
+            os.write(scratch, 0, count);
+        }
+    }
+
+    private void putCodePoint(final int codePoint) {
+        if (codePoint < 0x800) {
+            buffer.put((byte) (0xc0 | codePoint >> 6));
+        } else {
+            if (codePoint < 0x10000) {
+                buffer.put((byte) (0xe0 | codePoint >> 12));
+            } else {
+                buffer.put((byte) (0xf0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | (codePoint >> 12 & 0x3f)));
+            }
+            buffer.put((byte) (0x80 | (codePoint >> 6 & 0x3f)));
+        }
+        buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+    }
+
+    private void ensure(final int length) {
+        if (buffer.remaining() < length) {
+            ByteBuffer grown = allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    private ByteBuffer allocate(final int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
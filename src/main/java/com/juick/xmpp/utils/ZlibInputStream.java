@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2008-2017, Juick
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.juick.xmpp.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates a zlib stream which the peer sync-flushes after every write.
+ * <p>
+ * Unlike {@link java.util.zip.InflaterInputStream}, {@link #available()} reports 0 once everything received
+ * has been inflated, so an {@link java.io.InputStreamReader} returns what it has instead of blocking for more.
+ */
+public class ZlibInputStream extends FilterInputStream {
+
+    private final Inflater inflater = new Inflater();
+    private final byte[] buffer = new byte[8192];
+    private final byte[] single = new byte[1];
+
+    public ZlibInputStream(final InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            while (true) {
+                int count = inflater.inflate(b, off, len);
+                if (count > 0) {
+                    return count;
+                }
+                if (inflater.finished() || inflater.needsDictionary()) {
+                    return -1;
+                }
+                if (inflater.needsInput()) {
+                    int received = in.read(buffer, 0, buffer.length);
+                    if (received < 0) {
+                        return -1;
+                    }
+                    inflater.setInput(buffer, 0, received);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (inflater.finished()) {
+            return 0;
+        }
+        return inflater.needsInput() ? in.available() : 1;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        byte[] skipped = new byte[(int) Math.min(n, 512)];
+        long total = 0;
+        while (total < n) {
+            int count = read(skipped, 0, (int) Math.min(skipped.length, n - total));
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        super.close();
+    }
+}
@@ -0,0 +1,114 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.ConnectionManager;
+import com.juick.xmpp.Message;
+import com.juick.xmpp.StreamServerDialback;
+import org.junit.Test;
+import rocks.xmpp.addr.Jid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionManagerTests {
+
+    private static Message message(final String from, final String to, final String body) {
+        Message message = new Message();
+        message.from = Jid.of(from);
+        message.to = Jid.of(to);
+        message.body = body;
+        return message;
+    }
+
+    @Test
+    public void queueUntilDialback() throws Exception {
+        PipedInputStream remoteInputStream = new PipedInputStream(65536);
+        PipedOutputStream dialbackOutputStream = new PipedOutputStream(remoteInputStream);
+        PipedInputStream dialbackInputStream = new PipedInputStream(65536);
+        PipedOutputStream remoteOutputStream = new PipedOutputStream(dialbackInputStream);
+        AtomicInteger opened = new AtomicInteger();
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        ConnectionManager manager = new ConnectionManager(Jid.of("juick.com"), (from, to) -> {
+            opened.incrementAndGet();
+            return new StreamServerDialback(from, to, dialbackInputStream, dialbackOutputStream, null, null);
+        }, executorService);
+        try {
+            assertTrue(manager.send(message("ugnich@juick.com", "alice@example.com", "1")));
+            assertTrue(manager.send(message("vt@juick.com", "bob@example.com", "2")));
+            assertTrue(manager.send(message("ugnich@juick.com", "alice@example.com", "3")));
+            assertEquals(3, manager.getQueued("example.com"));
+            assertEquals(1, manager.getLinks("example.com"));
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            executorService.execute(() -> copy(remoteInputStream, received));
+            remoteOutputStream.write(("<stream:stream xmlns='jabber:server' xmlns:stream='http://etherx.jabber.org/streams'"
+                + " xmlns:db='jabber:server:dialback' from='example.com' id='s1'>"
+                + "<db:result from='example.com' to='juick.com' type='valid'/>").getBytes(StandardCharsets.UTF_8));
+            remoteOutputStream.flush();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!received(received).contains("<body>3</body>") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            String output = received(received);
+            assertTrue(output, output.indexOf("<body>1</body>") < output.indexOf("<body>2</body>"));
+            assertTrue(output, output.indexOf("<body>2</body>") < output.indexOf("<body>3</body>"));
+            assertEquals(0, manager.getQueued("example.com"));
+            assertTrue(manager.getConnectionOut("example.com").isPresent());
+            assertEquals(1, opened.get());
+        } finally {
+            manager.close();
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void backoffThenDrop() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        ConnectionManager manager = new ConnectionManager(Jid.of("juick.com"), (from, to) -> {
+            attempts.incrementAndGet();
+            throw new IOException("unreachable");
+        }, executorService);
+        manager.setReconnectDelay(50);
+        manager.setMaxReconnects(2);
+        try {
+            assertTrue(manager.send(message("ugnich@juick.com", "alice@example.com", "1")));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (manager.getQueued("example.com") > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, manager.getQueued("example.com"));
+            assertEquals(3, attempts.get());
+            manager.close();
+            assertFalse(manager.send(message("ugnich@juick.com", "alice@example.com", "2")));
+        } finally {
+            manager.close();
+            executorService.shutdownNow();
+        }
+    }
+
+    private static void copy(final InputStream in, final ByteArrayOutputStream out) {
+        byte[] buffer = new byte[4096];
+        try {
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    private static String received(final ByteArrayOutputStream out) {
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
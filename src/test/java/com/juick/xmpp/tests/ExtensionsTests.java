@@ -1,6 +1,8 @@
 package com.juick.xmpp.tests;
 
 import com.juick.xmpp.Message;
+import com.juick.xmpp.RawChild;
+import com.juick.xmpp.StanzaChild;
 import com.juick.xmpp.extensions.ChatState;
 import com.juick.xmpp.extensions.ReceiptsRequest;
 import org.junit.Before;
@@ -9,11 +11,17 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.text.ParseException;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.verify;
 import static org.mockito.internal.verification.VerificationModeFactory.times;
 
@@ -56,4 +64,48 @@ public class ExtensionsTests {
         ReceiptsRequest noReceiptsRequest = (ReceiptsRequest) msgs.get(1).getChild(ReceiptsRequest.XMLNS);
         assertEquals("message have no receipt request", true, noReceiptsRequest == null);
     }
+    @Test
+    public void lazyChildrenTest() throws Exception {
+        TestStream dummyStream = new TestStream(
+                "<stream xmlns='jabber:client' xmlns:p='urn:p'><message to='vasya@localhost'>" +
+                        "<active xmlns='http://jabber.org/protocol/chatstates'/><body>test</body>" +
+                        "<x xmlns='urn:example' a='1&amp;2'><y>a &lt; b</y><e:z xmlns:e='urn:example:e' e:b='c'/></x>" +
+                        "<p:q p:r='s'/><unknown/><x xmlns='urn:unknown'/><bad xmlns='urn:bad'/></message>");
+        AtomicInteger parses = new AtomicInteger();
+        StanzaChild bad = new StanzaChild() {
+            @Override
+            public String getXMLNS() {
+                return "urn:bad";
+            }
+
+            @Override
+            public StanzaChild parse(XmlPullParser parser) throws ParseException {
+                parses.incrementAndGet();
+                throw new ParseException("bad", 0);
+            }
+        };
+        dummyStream.setLazyChildren(true);
+        dummyStream.addChildParser(new ChatState());
+        dummyStream.addChildParser(new RawChild("urn:example", new byte[0], null));
+        dummyStream.addChildParser(new RawChild("urn:p", new byte[0], null));
+        dummyStream.addChildParser(bad);
+        dummyStream.addListener(testListener);
+        dummyStream.connect();
+        verify(testListener).onMessage(messageCaptor.capture());
+        Message msg = messageCaptor.getValue();
+        assertEquals("test", msg.body);
+        assertEquals("children of unregistered namespaces are skipped", 4, msg.childs.size());
+        assertTrue(msg.childs.get(0) instanceof RawChild);
+        assertEquals("<x xmlns='urn:example' a='1&amp;2'><y>a &lt; b</y><e:z xmlns:e='urn:example:e' e:b='c'/></x>",
+                msg.childs.get(1).toString());
+        assertEquals("<p:q xmlns:p='urn:p' p:r='s'/>", msg.childs.get(2).toString());
+        ChatState chatState = (ChatState) msg.getChild("http://jabber.org/protocol/chatstates");
+        assertEquals(ChatState.State.active, chatState.getValue());
+        assertSame(chatState, msg.childs.get(0));
+        assertTrue(msg.getChild("urn:example") instanceof RawChild);
+        assertNull(msg.getChild("urn:bad"));
+        assertNull(msg.getChild("urn:bad"));
+        assertEquals(1, parses.get());
+        assertEquals("<bad xmlns='urn:bad'/>", msg.childs.get(3).toString());
+    }
 }
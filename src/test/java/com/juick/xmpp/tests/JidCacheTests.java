@@ -0,0 +1,30 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.utils.JidCache;
+import org.junit.Test;
+import rocks.xmpp.addr.Jid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class JidCacheTests {
+
+    @Test
+    public void sharedAndEvicted() {
+        JidCache cache = new JidCache(4);
+        Jid jid = cache.get("ugnich@juick.com/web");
+        assertEquals(Jid.of("ugnich@juick.com/web"), jid);
+        assertSame(jid, cache.get("ugnich@juick.com/web"));
+        assertEquals(jid.toEscapedString(), cache.escape(jid));
+        for (int i = 0; i < 3; i++) {
+            cache.get("user" + i + "@juick.com");
+        }
+        // promoted from the old generation
+        assertSame(jid, cache.get("ugnich@juick.com/web"));
+        for (int i = 0; i < 8; i++) {
+            cache.get("user" + i + "@example.com");
+        }
+        assertNotSame(jid, cache.get("ugnich@juick.com/web"));
+    }
+}
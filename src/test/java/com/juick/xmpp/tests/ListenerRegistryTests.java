@@ -0,0 +1,57 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.utils.ListenerRegistry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ListenerRegistryTests {
+
+    @Test
+    public void registration() {
+        ListenerRegistry<Consumer<String>> registry = new ListenerRegistry<>();
+        List<String> calls = new ArrayList<>();
+        Consumer<String> first = s -> calls.add("first " + s);
+        Consumer<String> second = s -> calls.add("second " + s);
+        ListenerRegistry.Registration registration = registry.add(first);
+        assertSame(registration, registry.add(first));
+        registry.add(second);
+        registry.forEach(Consumer::accept, "a");
+        assertTrue(registration.remove());
+        assertFalse(registration.remove());
+        registry.forEach(Consumer::accept, "b");
+        assertTrue(registry.remove(second));
+        assertTrue(registry.isEmpty());
+        registry.add(first);
+        registry.forEach(Consumer::accept, "c");
+        assertEquals("[first a, second a, second b, first c]", calls.toString());
+    }
+
+    @Test
+    public void removeWhileDispatching() throws Exception {
+        ListenerRegistry<Runnable> registry = new ListenerRegistry<>();
+        AtomicInteger calls = new AtomicInteger();
+        Thread modifier = new Thread(() -> {
+            for (int i = 0; i < 10000; i++) {
+                registry.add(calls::incrementAndGet).remove();
+            }
+        });
+        modifier.start();
+        while (modifier.isAlive()) {
+            for (Runnable listener : registry) {
+                listener.run();
+            }
+            registry.forEach(Runnable::run);
+        }
+        modifier.join();
+        assertTrue(registry.isEmpty());
+    }
+}
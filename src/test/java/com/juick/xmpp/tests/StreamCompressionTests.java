@@ -0,0 +1,85 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.ConnectionListener;
+import com.juick.xmpp.StreamReactor;
+import com.juick.xmpp.StreamServer;
+import com.juick.xmpp.StreamServerDialback;
+import org.junit.Test;
+import rocks.xmpp.addr.Jid;
+
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class StreamCompressionTests {
+
+    @Test
+    public void dialbackOverZlib() throws Exception {
+        PipedInputStream serverInputStream = new PipedInputStream(65536);
+        PipedOutputStream dialbackOutputStream = new PipedOutputStream(serverInputStream);
+        PipedInputStream dialbackInputStream = new PipedInputStream(65536);
+        PipedOutputStream serverOutputStream = new PipedOutputStream(dialbackInputStream);
+
+        StreamServer server = new StreamServer(Jid.of("juick.com"), null, serverInputStream, serverOutputStream);
+        server.setBannedHosts(new String[0]);
+        server.setBrokenSSLhosts(new String[0]);
+        server.setCompressionEnabled(true);
+        StreamServerDialback dialback = new StreamServerDialback(Jid.of("example.com"), Jid.of("juick.com"),
+            dialbackInputStream, dialbackOutputStream, null, null);
+        dialback.setConnectionListener(mock(ConnectionListener.class));
+        dialback.setCompressionEnabled(true);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            executorService.submit(server::connect);
+            executorService.submit(dialback::connect);
+            long deadline = System.currentTimeMillis() + 5000;
+            // compress, the restarted stream header and the dialback result
+            while (server.getPacketsRemote() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(server.isCompressed());
+            assertTrue(dialback.isCompressed());
+            assertTrue(server.getPacketsRemote() >= 3);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void dialbackOverZlibOnReactor() throws Exception {
+        try (StreamReactor reactor = new StreamReactor(1);
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            SocketChannel client = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel accepted = serverChannel.accept();
+
+            StreamServer server = new StreamServer(Jid.of("juick.com"), null, null, null);
+            server.setBannedHosts(new String[0]);
+            server.setBrokenSSLhosts(new String[0]);
+            server.setCompressionEnabled(true);
+            StreamServerDialback dialback = new StreamServerDialback(Jid.of("example.com"), Jid.of("juick.com"),
+                null, null, null, null);
+            dialback.setConnectionListener(mock(ConnectionListener.class));
+            dialback.setCompressionEnabled(true);
+            reactor.register(accepted, server);
+            reactor.register(client, dialback);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            // compress, the restarted stream header and the dialback result, read through the inflater
+            while (server.getPacketsRemote() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(server.isCompressed());
+            assertTrue(dialback.isCompressed());
+            assertTrue(server.getPacketsRemote() >= 3);
+        }
+    }
+}
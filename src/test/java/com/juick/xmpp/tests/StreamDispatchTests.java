@@ -0,0 +1,191 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.Iq;
+import com.juick.xmpp.Message;
+import com.juick.xmpp.extensions.DiscoInfo;
+import com.juick.xmpp.extensions.DiscoItems;
+import com.juick.xmpp.extensions.XOOB;
+import com.juick.xmpp.utils.OrderedExecutor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamDispatchTests {
+
+    @Test
+    public void orderedPerSender() throws Exception {
+        StringBuilder input = new StringBuilder("<stream xmlns='jabber:client'>");
+        for (int i = 0; i < 50; i++) {
+            input.append("<message from='alice@localhost'><body>").append(i).append("</body></message>");
+            input.append("<message from='bob@localhost'><body>").append(i).append("</body></message>");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            TestStream stream = new TestStream(input.toString());
+            stream.setDispatcher(new OrderedExecutor(pool, 16, 8, OrderedExecutor.Overflow.WAIT));
+            Map<String, List<String>> received = new ConcurrentHashMap<>();
+            CountDownLatch done = new CountDownLatch(100);
+            stream.addListener((Message.MessageListener) message -> {
+                received.computeIfAbsent(message.from.toEscapedString(), k -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(message.body);
+                done.countDown();
+            });
+            stream.connect();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                expected.add(Integer.toString(i));
+            }
+            assertEquals(expected, received.get("alice@localhost"));
+            assertEquals(expected, received.get("bob@localhost"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectWhenFull() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            TestStream stream = new TestStream("<stream xmlns='jabber:client'>"
+                + "<message from='alice@localhost' to='bot@localhost' id='1'><body>1</body></message>"
+                + "<message from='alice@localhost' to='bot@localhost' id='2'><body>2</body></message>"
+                + "<iq from='alice@localhost' to='bot@localhost' id='3' type='get'><query xmlns='jabber:iq:version'/></iq>");
+            stream.setDispatcher(new OrderedExecutor(pool, 1, 1, OrderedExecutor.Overflow.REJECT));
+            stream.addListener((Message.MessageListener) message -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            stream.connect();
+            stream.flush();
+            String output = stream.getOs().toString();
+            assertTrue(output, output.contains("id='2' type='error'"));
+            assertTrue(output, output.contains("resource-constraint"));
+            assertTrue(output, output.contains("id='3' type='error'"));
+            assertEquals(output, 2, output.split("<error", -1).length - 1);
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void noDispatchAfterFinish() throws Exception {
+        List<String> received = new ArrayList<>();
+        TestStream stream = new TestStream("<stream xmlns='jabber:client'>"
+            + "<message from='alice@localhost'><body>1</body></message>"
+            + "<message from='alice@localhost'><body>2</body></message>") {
+            {
+                addListener((Message.MessageListener) message -> {
+                    received.add(message.body);
+                    finish(null);
+                });
+            }
+        };
+        stream.connect();
+        assertEquals(Collections.singletonList("1"), received);
+    }
+
+    @Test
+    public void rejectedByExecutor() throws Exception {
+        AtomicBoolean shutdown = new AtomicBoolean(true);
+        OrderedExecutor executor = new OrderedExecutor(task -> {
+            if (shutdown.get()) {
+                throw new RejectedExecutionException();
+            }
+            task.run();
+        }, 1, 1, OrderedExecutor.Overflow.REJECT);
+        try {
+            executor.execute("alice", () -> fail("a rejected task is run"));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        shutdown.set(false);
+        AtomicInteger runs = new AtomicInteger();
+        assertTrue(executor.execute("alice", runs::incrementAndGet));
+        assertTrue(executor.execute("alice", runs::incrementAndGet));
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void acceptedNeverDropped() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        OrderedExecutor[] executor = new OrderedExecutor[1];
+        executor[0] = new OrderedExecutor(task -> {
+            try {
+                // accepted while the stripe is being scheduled
+                assertTrue(executor[0].execute("alice", runs::incrementAndGet));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            throw new RejectedExecutionException();
+        }, 1, 2, OrderedExecutor.Overflow.REJECT);
+        try {
+            executor[0].execute("alice", () -> fail("a rejected task is run"));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, runs.get());
+
+        List<Runnable> scheduled = new ArrayList<>();
+        AtomicBoolean shutdown = new AtomicBoolean();
+        OrderedExecutor batches = new OrderedExecutor(task -> {
+            if (shutdown.get()) {
+                throw new RejectedExecutionException();
+            }
+            scheduled.add(task);
+        }, 1, 1000, OrderedExecutor.Overflow.REJECT);
+        runs.set(0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(batches.execute("alice", runs::incrementAndGet));
+        }
+        shutdown.set(true);
+        scheduled.remove(0).run();
+        assertEquals(100, runs.get());
+        assertTrue(scheduled.isEmpty());
+    }
+
+    @Test
+    public void indexedListeners() throws Exception {
+        TestStream stream = new TestStream("<stream xmlns='jabber:client'>"
+            + "<message from='alice@localhost' to='bot@localhost'><x xmlns='jabber:x:oob'><url>a</url></x>"
+            + "<x xmlns='jabber:x:oob'><url>b</url></x></message>"
+            + "<iq from='alice@localhost' to='bot@localhost' id='1' type='get'>"
+            + "<query xmlns='http://jabber.org/protocol/disco#items'/></iq>");
+        stream.addChildParser(new XOOB());
+        stream.addChildParser(new DiscoInfo());
+        stream.addChildParser(new DiscoItems());
+        AtomicInteger messages = new AtomicInteger();
+        AtomicInteger iqs = new AtomicInteger();
+        stream.addMessageListener(XOOB.XMLNS, message -> messages.incrementAndGet());
+        stream.addIqListener(Iq.Type.get, DiscoInfo.XMLNS, iq -> true);
+        stream.addListener((Iq.IqListener) iq -> iqs.incrementAndGet() > 0);
+        stream.connect();
+        stream.flush();
+        assertEquals(1, messages.get());
+        assertEquals(0, iqs.get());
+        String output = stream.getOs().toString();
+        assertTrue(output, output.contains("id='1' type='error'"));
+    }
+}
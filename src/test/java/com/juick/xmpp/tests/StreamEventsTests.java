@@ -0,0 +1,43 @@
+package com.juick.xmpp.tests;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamEventsTests {
+
+    @Test
+    public void recordedWhenEnabled() throws Exception {
+        Path file = Files.createTempFile("juick", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("com.juick.xmpp.StanzaReceived");
+            recording.enable("com.juick.xmpp.StreamClosed");
+            recording.start();
+            new TestStream("<stream xmlns='jabber:client'>"
+                + "<message from='alice@example.com' to='bot@localhost'><body>1</body></message></stream>").connect();
+            recording.stop();
+            recording.dump(file);
+        }
+        try {
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            List<RecordedEvent> received = events.stream()
+                .filter(e -> e.getEventType().getName().equals("com.juick.xmpp.StanzaReceived"))
+                .collect(Collectors.toList());
+            assertEquals(1, received.size());
+            assertEquals("example.com", received.get(0).getString("peer"));
+            assertEquals("message", received.get(0).getString("kind"));
+            assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("com.juick.xmpp.StreamClosed")));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.Iq;
+import com.juick.xmpp.StreamComponent;
+import com.juick.xmpp.StreamComponentServer;
+import com.juick.xmpp.StreamLauncher;
+import com.juick.xmpp.StreamListener;
+import com.juick.xmpp.extensions.DiscoInfo;
+import org.junit.Test;
+import rocks.xmpp.addr.Jid;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class StreamIqTests {
+
+    @Test
+    public void sendIq() throws Exception {
+        StreamListener serverListener = mock(StreamListener.class);
+        StreamListener componentListener = mock(StreamListener.class);
+        List<Iq> errors = new CopyOnWriteArrayList<>();
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            StreamLauncher launcher = new StreamLauncher();
+            final StreamComponentServer[] server = new StreamComponentServer[1];
+            launcher.serve(serverSocket, (is, os) -> {
+                server[0] = new StreamComponentServer(is, os, "secret");
+                server[0].addChildParser(new DiscoInfo());
+                server[0].addListener(serverListener);
+                return server[0];
+            });
+            Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+            StreamComponent component = launcher.launch(socket, (is, os) -> {
+                StreamComponent c = new StreamComponent(Jid.of("localhost"), is, os, "secret");
+                c.addListener(componentListener);
+                c.addListener((Iq.IqListener) iq -> {
+                    if ("nobody".equals(iq.to.getLocal())) {
+                        return false;
+                    }
+                    if ("get".equals(iq.type)) {
+                        // a request to a bare JID may be answered by a resource
+                        Iq reply = iq.reply();
+                        reply.from = reply.from.withResource("desktop");
+                        c.send(reply);
+                    } else if (Iq.Type.error.equals(iq.type)) {
+                        errors.add(iq);
+                    }
+                    return true;
+                });
+                c.addChildParser(new DiscoInfo());
+                c.addIqListener(Iq.Type.get, DiscoInfo.XMLNS, iq -> {
+                    Iq reply = iq.reply();
+                    DiscoInfo info = new DiscoInfo();
+                    info.addFeature(DiscoInfo.XMLNS);
+                    reply.addChild(info);
+                    c.send(reply);
+                    return true;
+                });
+                return c;
+            });
+            verify(componentListener, timeout(5000).times(1)).ready();
+            verify(serverListener, timeout(5000).times(1)).ready();
+
+            Iq result = server[0].sendIq(new Iq(Jid.of("localhost"), Jid.of("juick@localhost"), Iq.Type.get))
+                .get(5, TimeUnit.SECONDS);
+            assertEquals(Iq.Type.result, result.type);
+
+            Iq disco = new Iq(Jid.of("localhost"), Jid.of("juick@localhost"), Iq.Type.get);
+            disco.addChild(new DiscoInfo());
+            assertTrue(server[0].sendIq(disco).get(5, TimeUnit.SECONDS).getChild() instanceof DiscoInfo);
+
+            Iq error = server[0].sendIq(new Iq(Jid.of("localhost"), Jid.of("nobody@localhost"), Iq.Type.get))
+                .get(5, TimeUnit.SECONDS);
+            assertEquals(Iq.Type.error, error.type);
+
+            Iq stray = new Iq(Jid.of("juick@localhost"), Jid.of("localhost"), Iq.Type.result);
+            stray.id = "stray";
+            component.send(stray);
+            assertEquals(Iq.Type.result, server[0].sendIq(new Iq(Jid.of("localhost"), Jid.of("juick@localhost"), Iq.Type.get))
+                .get(5, TimeUnit.SECONDS).type);
+            assertTrue("a result is answered with an error", errors.isEmpty());
+
+            server[0].setIqTimeout(200);
+            server[0].setMaxPendingIqs(1);
+            CompletableFuture<Iq> unanswered = server[0].sendIq(new Iq(Jid.of("localhost"), Jid.of("juick@localhost"), Iq.Type.set));
+            CompletableFuture<Iq> rejected = server[0].sendIq(new Iq(Jid.of("localhost"), Jid.of("juick@localhost"), Iq.Type.set));
+            assertTrue(rejected.isCompletedExceptionally());
+            try {
+                unanswered.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            assertEquals(Iq.Type.result, server[0].sendIq(new Iq(Jid.of("localhost"), Jid.of("juick@localhost"), Iq.Type.get))
+                .get(5, TimeUnit.SECONDS).type);
+            component.close();
+        }
+    }
+}
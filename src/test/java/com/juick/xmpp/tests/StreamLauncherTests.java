@@ -0,0 +1,97 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.Message;
+import com.juick.xmpp.StreamComponent;
+import com.juick.xmpp.StreamComponentServer;
+import com.juick.xmpp.StreamLauncher;
+import com.juick.xmpp.StreamListener;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import rocks.xmpp.addr.Jid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.*;
+
+public class StreamLauncherTests {
+    @Mock
+    StreamListener serverListener;
+    @Mock
+    StreamListener componentListener;
+    @Mock
+    Message.MessageListener messageListener;
+    @Captor
+    ArgumentCaptor<Message> messageCaptor;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void componentOnLauncherThreads() throws Exception {
+        exchange();
+    }
+
+    /**
+     * With -Djdk.tracePinnedThreads (see build.gradle) the JVM prints the stack of every virtual thread
+     * which blocks while pinned to its carrier, marking the frames which hold monitors.
+     */
+    @Test
+    public void noPinnedCarriers() throws Exception {
+        Assume.assumeTrue("virtual threads are not available", StreamLauncher.isVirtualThreadsSupported());
+        PrintStream out = System.out;
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(trace, true, "UTF-8"));
+        try {
+            exchange();
+        } finally {
+            System.setOut(out);
+        }
+        String pinned = new String(trace.toByteArray(), StandardCharsets.UTF_8);
+        assertFalse(pinned, pinned.matches("(?s).*com\\.juick\\.xmpp\\.[^\\n]*<== monitors.*"));
+    }
+
+    private void exchange() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            StreamLauncher launcher = new StreamLauncher();
+            final StreamComponentServer[] server = new StreamComponentServer[1];
+            launcher.serve(serverSocket, (is, os) -> {
+                server[0] = new StreamComponentServer(is, os, "secret");
+                server[0].addListener(serverListener);
+                return server[0];
+            });
+            Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+            StreamComponent component = launcher.launch(socket, (is, os) -> {
+                StreamComponent c = new StreamComponent(Jid.of("localhost"), is, os, "secret");
+                c.addListener(componentListener);
+                c.addListener(messageListener);
+                return c;
+            });
+
+            verify(componentListener, timeout(5000).times(1)).ready();
+            verify(serverListener, timeout(5000).times(1)).ready();
+
+            Message msg = new Message();
+            msg.from = Jid.of("vasya@localhost");
+            msg.to = Jid.of("masha@localhost");
+            msg.body = "test";
+            server[0].send(msg);
+            verify(messageListener, timeout(5000).times(1)).onMessage(messageCaptor.capture());
+            assertEquals("test", messageCaptor.getValue().body);
+            component.close();
+        }
+    }
+}
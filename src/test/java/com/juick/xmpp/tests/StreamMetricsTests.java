@@ -0,0 +1,87 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.JmxMetricsExporter;
+import com.juick.xmpp.Message;
+import com.juick.xmpp.StreamMetrics;
+import com.juick.xmpp.utils.Histogram;
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.RuntimeOperationsException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamMetricsTests {
+
+    @Test
+    public void countsPerStreamAndGlobally() throws Exception {
+        String input = "<stream xmlns='jabber:client'>"
+            + "<message from='alice@localhost' to='bot@localhost' id='1'><body>1</body></message>"
+            + "<presence from='alice@localhost/home'/>"
+            + "<iq from='alice@localhost/home' to='bot@localhost' id='2' type='result'/>"
+            + "</stream>";
+        long globalMessages = StreamMetrics.GLOBAL.getMessagesIn();
+        TestStream stream = new TestStream(input);
+        StreamMetrics metrics = new StreamMetrics(StreamMetrics.GLOBAL);
+        stream.setMetrics(metrics);
+        stream.addListener((Message.MessageListener) message -> stream.send(message.reply()));
+        stream.connect();
+        stream.flush();
+
+        assertEquals(1, metrics.getMessagesIn());
+        assertEquals(1, metrics.getPresencesIn());
+        assertEquals(1, metrics.getIqsIn());
+        assertEquals(1, metrics.getMessagesOut());
+        assertEquals(input.getBytes(StandardCharsets.UTF_8).length, metrics.getBytesIn());
+        assertEquals(stream.getOs().toString().length(), metrics.getBytesOut());
+        assertEquals(0, metrics.getQueuedBytes());
+        assertEquals(3, metrics.getParseTime().getCount());
+        assertEquals(3, metrics.getDispatchTime().getCount());
+        assertEquals(0, metrics.getOpenStreams("TestStream"));
+        assertTrue(StreamMetrics.GLOBAL.getMessagesIn() >= globalMessages + 1);
+    }
+
+    @Test
+    public void jmxIsReadOnly() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        StreamMetrics metrics = new StreamMetrics(null);
+        new JmxMetricsExporter(server).register("test", metrics);
+        ObjectName name = new ObjectName("com.juick.xmpp:type=StreamMetrics,name=\"test\"");
+        assertEquals(0L, server.getAttribute(name, "stanzas.in.message"));
+        try {
+            server.invoke(name, "reset", new Object[0], new String[0]);
+            fail("invoke is accepted");
+        } catch (ReflectionException e) {
+            assertTrue(e.getTargetException() instanceof NoSuchMethodException);
+        }
+        AttributeList attributes = new AttributeList();
+        attributes.add(new Attribute("stanzas.in.message", 1L));
+        try {
+            server.setAttributes(name, attributes);
+            fail("read-only attributes are set");
+        } catch (RuntimeOperationsException e) {
+            assertTrue(e.getMessage(), e.getTargetException().getMessage().contains("stanzas.in.message"));
+        }
+    }
+
+    @Test
+    public void histogramPrecision() {
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        long median = histogram.getValueAtQuantile(0.5);
+        assertTrue(Long.toString(median), median >= 500000 && median <= 500000 * 1.125);
+        long max = histogram.getMax();
+        assertTrue(Long.toString(max), max >= 1000000 && max <= 1000000 * 1.125);
+    }
+}
@@ -0,0 +1,149 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.Message;
+import com.juick.xmpp.Stream;
+import com.juick.xmpp.StreamComponent;
+import com.juick.xmpp.StreamComponentServer;
+import com.juick.xmpp.StreamListener;
+import com.juick.xmpp.StreamReactor;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import rocks.xmpp.addr.Jid;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class StreamReactorTests {
+    @Mock
+    StreamListener serverListener;
+    @Mock
+    StreamListener componentListener;
+    @Mock
+    Message.MessageListener serverMessageListener;
+    @Mock
+    Message.MessageListener componentMessageListener;
+    @Captor
+    ArgumentCaptor<Message> messageCaptor;
+    @Captor
+    ArgumentCaptor<Exception> exceptionArgumentCaptor;
+
+    StreamReactor reactor;
+    ServerSocketChannel serverChannel;
+
+    @Before
+    public void setup() throws IOException {
+        MockitoAnnotations.initMocks(this);
+        reactor = new StreamReactor(1);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void teardown() throws IOException {
+        reactor.close();
+        serverChannel.close();
+    }
+
+    @Test
+    public void componentOverReactor() throws Exception {
+        final int streams = 10;
+        Jid localhost = Jid.of("localhost");
+        List<StreamComponentServer> servers = new ArrayList<>();
+        List<StreamComponent> components = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            SocketChannel client = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel accepted = serverChannel.accept();
+
+            StreamComponentServer server = new StreamComponentServer(null, null, "secret");
+            server.addListener(serverListener);
+            server.addListener(serverMessageListener);
+            reactor.register(accepted, server);
+            assertEquals(Stream.SlowConsumerPolicy.DISCONNECT, server.getSlowConsumerPolicy());
+            servers.add(server);
+
+            StreamComponent component = new StreamComponent(localhost, null, null, "secret");
+            component.addListener(componentListener);
+            component.addListener(componentMessageListener);
+            reactor.register(client, component);
+            components.add(component);
+        }
+
+        verify(componentListener, timeout(5000).times(streams)).ready();
+        verify(serverListener, timeout(5000).times(streams)).ready();
+
+        for (int i = 0; i < streams; i++) {
+            Message msg = new Message();
+            msg.from = Jid.of("vasya@localhost");
+            msg.to = Jid.of("masha@localhost");
+            msg.body = "to component " + i;
+            servers.get(i).send(msg);
+            Message reply = new Message();
+            reply.from = Jid.of("masha@localhost");
+            reply.to = Jid.of("vasya@localhost");
+            reply.body = "to server " + i;
+            components.get(i).send(reply);
+        }
+        verify(componentMessageListener, timeout(5000).times(streams)).onMessage(messageCaptor.capture());
+        assertTrue(messageCaptor.getAllValues().stream().anyMatch(m -> "to component 0".equals(m.body)));
+        verify(serverMessageListener, timeout(5000).times(streams)).onMessage(any(Message.class));
+
+        components.get(0).send("<yo:people/>");
+        verify(serverListener, timeout(5000).times(1)).fail(exceptionArgumentCaptor.capture());
+        assertEquals("invalid-xml", exceptionArgumentCaptor.getValue().getMessage());
+    }
+
+    @Test
+    public void disconnectSlowConsumer() throws Exception {
+        SocketChannel client = SocketChannel.open();
+        client.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        client.connect(serverChannel.getLocalAddress());
+        SocketChannel accepted = serverChannel.accept();
+        accepted.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+        StreamComponentServer server = new StreamComponentServer(null, null, "secret");
+        server.addListener(serverListener);
+        server.setHighWatermark(1 << 16);
+        reactor.register(accepted, server);
+        // the peer logs in and never reads again
+        client.write(ByteBuffer.wrap(("<stream:stream xmlns='jabber:component:accept' "
+            + "xmlns:stream='http://etherx.jabber.org/streams' to='localhost'><handshake>"
+            + DigestUtils.sha1Hex(server.getStreamId() + "secret") + "</handshake>").getBytes(StandardCharsets.UTF_8)));
+        verify(serverListener, timeout(5000)).ready();
+
+        char[] body = new char[4096];
+        Arrays.fill(body, 'x');
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!server.isFinished() && System.currentTimeMillis() < deadline) {
+            Message msg = new Message();
+            msg.from = Jid.of("vasya@localhost");
+            msg.to = Jid.of("masha@localhost");
+            msg.body = new String(body);
+            server.send(msg);
+        }
+        assertTrue(server.isFinished());
+        while ((accepted.isOpen() || server.getQueuedBytes() > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse("the channel of a slow consumer is left open", accepted.isOpen());
+        assertEquals(0, server.getQueuedBytes());
+        client.close();
+    }
+}
@@ -0,0 +1,201 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.Message;
+import com.juick.xmpp.Stream;
+import com.juick.xmpp.StreamListener;
+import com.juick.xmpp.utils.StanzaRewriter;
+import com.juick.xmpp.utils.XmlParsers;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import rocks.xmpp.addr.Jid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StreamSendTests {
+
+    private final AtomicInteger flushes = new AtomicInteger();
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream() {
+        @Override
+        public void flush() {
+            flushes.incrementAndGet();
+        }
+    };
+
+    private Stream stream() throws XmlPullParserException {
+        return stream(output);
+    }
+
+    private static Stream stream(final ByteArrayOutputStream output) throws XmlPullParserException {
+        return new Stream(null, null, null, output) {
+            @Override
+            protected void handshake() {
+            }
+        };
+    }
+
+    private static Message message(final int i) {
+        Message msg = new Message();
+        msg.to = Jid.of("masha@localhost");
+        msg.body = "message " + i;
+        return msg;
+    }
+
+    @Test
+    public void sendBatch() throws XmlPullParserException {
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(message(i));
+        }
+        stream().sendBatch(batch);
+        assertEquals(1, flushes.get());
+        assertTrue(output.toString().endsWith("message 9</body></message>"));
+    }
+
+    @Test
+    public void delayedFlush() throws Exception {
+        Stream stream = stream();
+        stream.setFlushDelay(1000000);
+        for (int i = 0; i < 50; i++) {
+            stream.send(message(i));
+        }
+        assertEquals(0, flushes.get());
+        stream.flush();
+        assertEquals(1, flushes.get());
+        assertTrue(output.toString().endsWith("message 49</body></message>"));
+
+        stream.setFlushDelay(1000);
+        stream.send(message(50));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flushes.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, flushes.get());
+    }
+
+    @Test
+    public void slowConsumer() throws Exception {
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        Stream stream = new Stream(null, null, null, new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(final byte[] b, final int off, final int len) {
+                stalled.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        }) {
+            @Override
+            protected void handshake() {
+            }
+
+            @Override
+            protected void streamFinished(final Exception cause) {
+                super.streamFinished(cause);
+                // as servers do, which must not wait for the stalled writer
+                close();
+            }
+        };
+        assertEquals(Stream.SlowConsumerPolicy.BLOCK, stream.getSlowConsumerPolicy());
+        stream.setHighWatermark(1000);
+        stream.setLowWatermark(100);
+        stream.setSlowConsumerPolicy(Stream.SlowConsumerPolicy.DROP);
+        CountDownLatch unwritable = new CountDownLatch(1);
+        CountDownLatch writable = new CountDownLatch(1);
+        stream.addListener(new StreamListener() {
+            @Override
+            public void ready() {
+            }
+
+            @Override
+            public void fail(final Exception ex) {
+            }
+
+            @Override
+            public boolean filter(final Jid from, final Jid to) {
+                return false;
+            }
+
+            @Override
+            public void writabilityChanged(final boolean isWritable) {
+                (isWritable ? writable : unwritable).countDown();
+            }
+        });
+        Thread writer = new Thread(() -> stream.send(message(0)));
+        writer.start();
+        assertTrue(stalled.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < 1000; i++) {
+            stream.send(message(i));
+        }
+        assertTrue(unwritable.await(5, TimeUnit.SECONDS));
+        assertFalse(stream.isWritable());
+        assertTrue(stream.getQueuedBytes() < 2000);
+        stream.setSlowConsumerPolicy(Stream.SlowConsumerPolicy.DISCONNECT);
+        Thread disconnecting = new Thread(() -> stream.send(message(1000)));
+        disconnecting.start();
+        disconnecting.join(5000);
+        assertFalse(disconnecting.isAlive());
+        assertTrue(stream.isFinished());
+        assertEquals(0, closed.getCount());
+        release.countDown();
+        writer.join(5000);
+        assertTrue(writable.await(5, TimeUnit.SECONDS));
+        assertEquals(0, stream.getQueuedBytes());
+    }
+
+    @Test
+    public void forward() throws XmlPullParserException {
+        String in = "<message type='chat' to=\"gw.localhost\" id='1'><body>a&amp;b</body>"
+            + "<x xmlns='urn:example'><y/></x></message>";
+        ByteBuffer stanza = ByteBuffer.wrap(in.getBytes(StandardCharsets.UTF_8));
+        assertEquals("gw.localhost", StanzaRewriter.attribute(stanza, "to"));
+        assertNull(StanzaRewriter.attribute(stanza, "from"));
+        stream().forward(stanza, Jid.of("vasya@gw.localhost/it's"), Jid.of("masha@localhost"));
+        assertEquals("<message from='vasya@gw.localhost/it&apos;s' type='chat' to=\"masha@localhost\" id='1'>"
+            + "<body>a&amp;b</body><x xmlns='urn:example'><y/></x></message>", output.toString());
+        assertEquals(0, stanza.position());
+    }
+
+    @Test
+    public void restartKeepsParser() throws Exception {
+        Stream stream = new Stream(null, null, new ByteArrayInputStream(new byte[0]), output) {
+            @Override
+            protected void handshake() {
+            }
+        };
+        stream.restartStream();
+        XmlPullParser parser = stream.getParser();
+        Writer writer = stream.getWriter();
+        stream.restartStream();
+        assertSame(parser, stream.getParser());
+        assertSame(writer, stream.getWriter());
+        stream.connect();
+        assertNull(stream.getParser());
+        assertSame(parser, XmlParsers.acquire());
+    }
+}
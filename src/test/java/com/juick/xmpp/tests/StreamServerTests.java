@@ -0,0 +1,85 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.Message;
+import com.juick.xmpp.StreamReactor;
+import com.juick.xmpp.StreamServer;
+import org.junit.Test;
+import rocks.xmpp.addr.Jid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamServerTests {
+
+    @Test
+    public void policyViolationOnReactor() throws Exception {
+        try (StreamReactor reactor = new StreamReactor(1);
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            reactor.setMaxElementSize(1024);
+            InetSocketAddress address = (InetSocketAddress) serverChannel.getLocalAddress();
+            try (Socket client = new Socket(address.getAddress(), address.getPort())) {
+                StreamServer server = new StreamServer(Jid.of("juick.com"), null, null, null);
+                server.setBannedHosts();
+                server.setBrokenSSLhosts();
+                reactor.register(serverChannel.accept(), server);
+                char[] body = new char[2048];
+                Arrays.fill(body, 'x');
+                client.getOutputStream().write(("<stream:stream xmlns='jabber:server' "
+                    + "xmlns:stream='http://etherx.jabber.org/streams' xmlns:db='jabber:server:dialback' "
+                    + "from='example.com' to='juick.com' version='1.0'><message from='alice@example.com' "
+                    + "to='ugnich@juick.com'><body>" + new String(body) + "</body></message>")
+                    .getBytes(StandardCharsets.UTF_8));
+                client.setSoTimeout(5000);
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int count;
+                while ((count = client.getInputStream().read(buffer)) >= 0) {
+                    received.write(buffer, 0, count);
+                }
+                String output = received.toString("UTF-8");
+                assertTrue(output, output.contains("policy-violation"));
+                assertTrue(output, output.endsWith("</stream:stream>"));
+            }
+        }
+    }
+
+    @Test
+    public void checkFromTo() throws Exception {
+        String input = "<stream:stream xmlns='jabber:server' xmlns:stream='http://etherx.jabber.org/streams'"
+            + " xmlns:db='jabber:server:dialback' from='example.com' to='juick.com' version='1.0'>"
+            + "<message from='alice@Example.com/home@work' to='ugnich@juick.com/web'><body>1</body></message>"
+            + "<message from='eve@evil.com' to='ugnich@juick.com'><body>2</body></message>"
+            + "<message from='alice@example.com' to='ugnich@evil.com'><body>3</body></message>"
+            + "<message from='example.com' to='juick.com'><body>4</body></message>"
+            + "</stream:stream>";
+        StreamServer server = new StreamServer(Jid.of("juick.com"), null,
+            new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), new ByteArrayOutputStream());
+        server.setBannedHosts("Evil.com");
+        server.setBrokenSSLhosts();
+        server.sendDialbackResult(Jid.of("example.com"), "valid");
+        List<String> received = new ArrayList<>();
+        server.addListener((Message.MessageListener) message -> received.add(message.body));
+        server.connect();
+        assertEquals(2, received.size());
+        assertTrue(received.contains("1"));
+        assertTrue(received.contains("4"));
+        assertTrue(server.getBannedDomains().contains("evil.com"));
+        assertArrayEquals(new String[]{"evil.com"}, server.getBannedHosts());
+        assertEquals(Collections.singletonList(Jid.of("example.com")), server.getFromJids());
+        server.getFromJids().add(Jid.of("Conference.Example.com"));
+        assertTrue(server.getFromDomains().contains("conference.example.com"));
+    }
+}
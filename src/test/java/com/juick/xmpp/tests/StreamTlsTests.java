@@ -0,0 +1,168 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.ConnectionListener;
+import com.juick.xmpp.StreamReactor;
+import com.juick.xmpp.StreamServer;
+import com.juick.xmpp.StreamServerDialback;
+import com.juick.xmpp.utils.TlsContext;
+import org.junit.Test;
+import rocks.xmpp.addr.Jid;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class StreamTlsTests {
+
+    private static SSLContext serverContext() throws Exception {
+        File keystore = File.createTempFile("juick", ".p12");
+        keystore.delete();
+        keystore.deleteOnExit();
+        File keytool = new File(System.getProperty("java.home"), "bin/keytool");
+        if (!keytool.exists()) {
+            keytool = new File(System.getProperty("java.home"), "../bin/keytool");
+        }
+        Process process = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-alias", "juick", "-keyalg", "EC",
+            "-dname", "CN=juick.com", "-validity", "1", "-storetype", "PKCS12", "-keystore", keystore.getPath(),
+            "-storepass", "secret", "-keypass", "secret").inheritIO().start();
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS) && process.exitValue() == 0);
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream is = new FileInputStream(keystore)) {
+            keyStore.load(is, "secret".toCharArray());
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, "secret".toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    private static SSLContext clientContext() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(final X509Certificate[] chain, final String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(final X509Certificate[] chain, final String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+
+    @Test
+    public void dialbackOverStarttls() throws Exception {
+        StreamServerDialback dialback = dialbackOverStarttls("juick.com", new TlsContext(clientContext()));
+        assertTrue(dialback.isSecured());
+    }
+
+    @Test
+    public void domainVerified() throws Exception {
+        StreamServerDialback dialback = dialbackOverStarttls("juick.org", new TlsContext(clientContext()));
+        assertFalse("a certificate for another domain is accepted", dialback.isSecured());
+        TlsContext unverified = new TlsContext(clientContext());
+        unverified.setUnverifiedDomains("Juick.org");
+        assertTrue(dialbackOverStarttls("juick.org", unverified).isSecured());
+    }
+
+    /**
+     * Runs dialback to the domain over STARTTLS with a certificate for juick.com until the server
+     * has read the dialback result or the stream fails.
+     */
+    private static StreamServerDialback dialbackOverStarttls(final String domain, final TlsContext dialbackTls)
+        throws Exception {
+        PipedInputStream serverInputStream = new PipedInputStream(65536);
+        PipedOutputStream dialbackOutputStream = new PipedOutputStream(serverInputStream);
+        PipedInputStream dialbackInputStream = new PipedInputStream(65536);
+        PipedOutputStream serverOutputStream = new PipedOutputStream(dialbackInputStream);
+
+        StreamServer server = new StreamServer(Jid.of(domain), null, serverInputStream, serverOutputStream);
+        server.setBannedHosts(new String[0]);
+        server.setBrokenSSLhosts(new String[0]);
+        TlsContext serverTls = new TlsContext(serverContext());
+        serverTls.setApplicationProtocols(TlsContext.ALPN_XMPP_SERVER);
+        server.setTlsContext(serverTls);
+        StreamServerDialback dialback = new StreamServerDialback(Jid.of("example.com"), Jid.of(domain),
+            dialbackInputStream, dialbackOutputStream, null, null);
+        dialback.setConnectionListener(mock(ConnectionListener.class));
+        dialbackTls.setApplicationProtocols(TlsContext.ALPN_XMPP_SERVER);
+        dialback.setTlsContext(dialbackTls);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            executorService.submit(server::connect);
+            executorService.submit(dialback::connect);
+            long deadline = System.currentTimeMillis() + 10000;
+            // starttls, the restarted stream header and the dialback result
+            while (server.getPacketsRemote() < 3 && !dialback.isFinished()
+                && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            if (dialback.isSecured()) {
+                assertTrue(server.isSecured());
+                assertTrue(server.getPacketsRemote() >= 3);
+            }
+            return dialback;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void dialbackOverStarttlsOnReactor() throws Exception {
+        try (StreamReactor reactor = new StreamReactor(1);
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            SocketChannel client = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel accepted = serverChannel.accept();
+
+            StreamServer server = new StreamServer(Jid.of("juick.com"), null, null, null);
+            server.setBannedHosts(new String[0]);
+            server.setBrokenSSLhosts(new String[0]);
+            server.setCompressionEnabled(true);
+            server.setTlsContext(new TlsContext(serverContext()));
+            StreamServerDialback dialback = new StreamServerDialback(Jid.of("example.com"), Jid.of("juick.com"),
+                null, null, null, null);
+            dialback.setConnectionListener(mock(ConnectionListener.class));
+            dialback.setCompressionEnabled(true);
+            dialback.setTlsContext(new TlsContext(clientContext()));
+            reactor.register(accepted, server);
+            reactor.register(client, dialback);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            // starttls and compress, the restarted stream headers and the dialback result
+            while (server.getPacketsRemote() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(server.isSecured());
+            assertTrue(dialback.isSecured());
+            assertTrue(server.isCompressed());
+            assertTrue(dialback.isCompressed());
+            assertTrue(server.getPacketsRemote() >= 5);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.ChildParsers;
+import com.juick.xmpp.StanzaChild;
+import com.juick.xmpp.extensions.ChatState;
+import com.juick.xmpp.extensions.Delay;
+import com.juick.xmpp.extensions.DiscoInfo;
+import com.juick.xmpp.extensions.MucUser;
+import com.juick.xmpp.extensions.ReceiptsRequest;
+import com.juick.xmpp.utils.SymbolTable;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SymbolTableTests {
+
+    @Test
+    public void indexOf() {
+        String[] names = {"subject", "body", "thread", "a", "", "ab", "ba", "x1y", "x2y"};
+        SymbolTable table = new SymbolTable(names);
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(i, table.indexOf(names[i]));
+            assertEquals(i, table.indexOf(new String(names[i].toCharArray())));
+        }
+        assertEquals(-1, table.indexOf("bodz"));
+        assertEquals(-1, table.indexOf("x3y"));
+        assertEquals(-1, table.indexOf(null));
+        assertEquals(-1, new SymbolTable().indexOf("body"));
+    }
+
+    @Test
+    public void hashCollision() {
+        // same length, middle and last characters, and String.hashCode
+        SymbolTable table = new SymbolTable("AaXX", "BBXX");
+        assertEquals(0, table.indexOf("AaXX"));
+        assertEquals(1, table.indexOf("BBXX"));
+        assertEquals(-1, table.indexOf("CcXX"));
+        assertEquals(-1, table.indexOf(null));
+    }
+
+    @Test
+    public void childParsers() {
+        ChatState chatState = new ChatState();
+        ChildParsers parsers = ChildParsers.of(chatState, new ReceiptsRequest(), new Delay(), new MucUser(),
+            new DiscoInfo());
+        assertSame(chatState, parsers.get(new String(chatState.getXMLNS().toCharArray())));
+        assertNull(parsers.get("jabber:client"));
+        assertNull(parsers.get(null));
+        ChildParsers without = parsers.without(chatState.getXMLNS());
+        assertNull(without.get(chatState.getXMLNS()));
+        assertSame(chatState, without.with(chatState).get(chatState.getXMLNS()));
+        ChildParsers wrapped = ChildParsers.wrap(Collections.singletonMap(chatState.getXMLNS(), chatState));
+        assertSame(chatState, wrapped.get(chatState.getXMLNS()));
+        assertNull(wrapped.get(null));
+        assertNull(wrapped.without(chatState.getXMLNS()).get(chatState.getXMLNS()));
+        assertEquals(1, wrapped.asMap().size());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void childParsersMap() throws Exception {
+        TestStream stream = new TestStream("<stream xmlns='jabber:client'>");
+        ChatState chatState = new ChatState();
+        Map<String, StanzaChild> map = stream.getChildParsers();
+        assertNull(map.put(chatState.getXMLNS(), chatState));
+        stream.addChildParser(new Delay());
+        assertEquals(2, map.size());
+        assertSame(chatState, map.get(chatState.getXMLNS()));
+        assertSame(chatState, map.remove(chatState.getXMLNS()));
+        assertNull(map.get(chatState.getXMLNS()));
+        assertEquals(Collections.singleton(Delay.XMLNS), map.keySet());
+    }
+}
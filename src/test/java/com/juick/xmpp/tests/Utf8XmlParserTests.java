@@ -0,0 +1,221 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.utils.Utf8XmlParser;
+import com.juick.xmpp.utils.XmlParsers;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Utf8XmlParserTests {
+
+    private static final String[] CORPUS = {
+        "<message xmlns='jabber:client' from='juick@juick.com/Juick' to='ugnich@juick.com' type='chat' id='m1'>"
+            + "<body>Привет, мир 🙂 &amp; &lt;tags&gt; &#x41;&#66;</body><thread>t1</thread>"
+            + "<active xmlns='http://jabber.org/protocol/chatstates'/>"
+            + "<delay xmlns='urn:xmpp:delay' stamp='2017-01-01T00:00:00Z'>Offline storage</delay></message>",
+        "<?xml version='1.0'?><iq xmlns=\"jabber:client\" type=\"result\" id=\"disco1\" to=\"juick.com\">\n"
+            + "  <query xmlns=\"http://jabber.org/protocol/disco#info\">\n"
+            + "    <identity category=\"server\" type=\"im\" name=\"Juick &quot;XMPP&quot; &apos;s\"/>\n"
+            + "    <feature var=\"http://jabber.org/protocol/disco#info\"/>\n"
+            + "  </query>\n</iq>",
+        "<stream:stream xmlns:stream='http://etherx.jabber.org/streams' xmlns='jabber:server' "
+            + "xmlns:db='jabber:server:dialback' version='1.0' xml:lang='ru'>"
+            + "<db:result from='a.example' to='b.example'>c2VjcmV0</db:result>"
+            + "<presence from='a@a.example/r'><show>away</show><status xml:lang='en'>out\r\nof\roffice</status>"
+            + "<x xmlns='http://jabber.org/protocol/muc#user'><item affiliation='none' role='visitor'/></x>"
+            + "</presence></stream:stream>",
+        "<message xmlns='jabber:client'><body><![CDATA[<not> & markup]]> after\tcdata</body>"
+            + "<html xmlns='http://jabber.org/protocol/xhtml-im'><body xmlns='http://www.w3.org/1999/xhtml'>"
+            + "<p style='font-weight:bold'>bold <em>and</em> italic</p></body></html></message>",
+        "<a xmlns:p='urn:p' p:attr='v' plain='multi\nline'><p:b xmlns:p='urn:q' p:attr='w'/><p:c/></a>"
+    };
+
+    @Test
+    public void conformance() throws Exception {
+        for (String document : CORPUS) {
+            List<String> expected = events(reference(), input(document, false));
+            assertEquals(document, expected, events(namespaceAware(), input(document, false)));
+            assertEquals(document, expected, events(namespaceAware(), input(document, true)));
+            XmlPullParser fromReader = namespaceAware();
+            fromReader.setInput(new StringReader(document));
+            assertEquals(document, expected, events(fromReader));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void streamFactory() throws Exception {
+        assertSame(XmlParsers.getFactory(), new TestStream("<stream xmlns='jabber:client'>").getFactory());
+    }
+
+    @Test
+    public void emptyElements() throws Exception {
+        XmlPullParser parser = namespaceAware();
+        parser.setInput(input("<a><b x='1'/><c></c></a>", false), "UTF-8");
+        parser.nextTag();
+        assertFalse(parser.isEmptyElementTag());
+        assertEquals(XmlPullParser.START_TAG, parser.nextTag());
+        assertTrue(parser.isEmptyElementTag());
+        assertEquals("1", parser.getAttributeValue(null, "x"));
+        assertEquals(XmlPullParser.END_TAG, parser.next());
+        assertEquals("b", parser.getName());
+        assertEquals(2, parser.getDepth());
+        assertEquals(-1, parser.getAttributeCount());
+        assertEquals(XmlPullParser.START_TAG, parser.next());
+        assertFalse(parser.isEmptyElementTag());
+        assertEquals("", parser.nextText());
+        assertEquals(XmlPullParser.END_TAG, parser.next());
+        assertEquals(1, parser.getDepth());
+        assertEquals(XmlPullParser.END_DOCUMENT, parser.next());
+    }
+
+    @Test
+    public void textAcrossComments() throws Exception {
+        XmlPullParser parser = namespaceAware();
+        parser.setInput(input("<!DOCTYPE a [<!ENTITY x 'y'>]><a>one<!-- two -->three<?pi?>"
+            + "<![CDATA[four]]>&amp;five</a><!-- after -->", true), null);
+        parser.nextTag();
+        assertEquals(XmlPullParser.TEXT, parser.next());
+        assertEquals("onethreefour&five", parser.getText());
+        assertEquals(XmlPullParser.END_TAG, parser.next());
+        assertEquals(XmlPullParser.END_DOCUMENT, parser.next());
+    }
+
+    @Test
+    public void streamPrefix() throws Exception {
+        XmlPullParser parser = namespaceAware();
+        parser.setInput(input("<stream:stream xmlns:stream='http://etherx.jabber.org/streams' "
+            + "xmlns='jabber:client'><message/>", false), "UTF-8");
+        parser.nextTag();
+        assertEquals("stream", parser.getPrefix());
+        assertEquals("http://etherx.jabber.org/streams", parser.getNamespace());
+        assertEquals(0, parser.getAttributeCount());
+        parser.nextTag();
+        assertEquals("jabber:client", parser.getNamespace());
+        assertNull(parser.getPrefix());
+        parser.next();
+        try {
+            parser.next();
+            fail("unexpected end of input is not reported");
+        } catch (XmlPullParserException e) {
+            assertEquals(1, parser.getDepth());
+        }
+    }
+
+    @Test
+    public void errors() throws Exception {
+        String[] invalid = {"<a>&nbsp;</a>", "<a></b>", "<p:a/>", "<a b='<'/>", "<a b=c/>", "<a><b></a>"};
+        for (String document : invalid) {
+            XmlPullParser parser = namespaceAware();
+            parser.setInput(input(document, false), "UTF-8");
+            try {
+                while (parser.next() != XmlPullParser.END_DOCUMENT) {
+                    parser.getText();
+                }
+                fail(document + " is parsed");
+            } catch (XmlPullParserException e) {
+                // expected
+            }
+        }
+        XmlPullParser parser = namespaceAware();
+        parser.defineEntityReplacementText("nbsp", " ");
+        parser.setInput(input("<a>&nbsp;</a>", false), "UTF-8");
+        parser.nextTag();
+        assertEquals(" ", parser.nextText());
+    }
+
+    @Test
+    public void captureElement() throws Exception {
+        for (boolean trickle : new boolean[]{false, true}) {
+            Utf8XmlParser parser = (Utf8XmlParser) namespaceAware();
+            parser.setInput(input("<a xmlns='urn:a' xmlns:p='urn:p'><b>\n<p:c x='&amp;'>t&lt;</p:c></b><d/></a>",
+                trickle), "UTF-8");
+            parser.nextTag();
+            parser.nextTag();
+            assertEquals("<b xmlns='urn:a' xmlns:p='urn:p'>\n<p:c x='&amp;'>t&lt;</p:c></b>",
+                new String(parser.captureElement(), StandardCharsets.UTF_8));
+            assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+            assertEquals("b", parser.getName());
+            assertEquals(XmlPullParser.START_TAG, parser.nextTag());
+            assertEquals("<d xmlns='urn:a'/>", new String(parser.captureElement(), StandardCharsets.UTF_8));
+            assertEquals(XmlPullParser.END_TAG, parser.nextTag());
+            assertEquals("a", parser.getName());
+        }
+    }
+
+    private static XmlPullParser reference() throws XmlPullParserException {
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return parser;
+    }
+
+    private static XmlPullParser namespaceAware() throws XmlPullParserException {
+        XmlPullParser parser = new Utf8XmlParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return parser;
+    }
+
+    /**
+     * @param trickle whether the bytes are read one at a time, so that every token is split across reads
+     */
+    private static InputStream input(final String document, final boolean trickle) {
+        byte[] bytes = document.getBytes(StandardCharsets.UTF_8);
+        if (!trickle) {
+            return new ByteArrayInputStream(bytes);
+        }
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(final byte[] b, final int off, final int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    private static List<String> events(final XmlPullParser parser, final InputStream input)
+        throws XmlPullParserException, IOException {
+        parser.setInput(input, "UTF-8");
+        return events(parser);
+    }
+
+    private static List<String> events(final XmlPullParser parser) throws XmlPullParserException, IOException {
+        List<String> events = new ArrayList<>();
+        while (parser.next() != XmlPullParser.END_DOCUMENT) {
+            StringBuilder event = new StringBuilder(XmlPullParser.TYPES[parser.getEventType()])
+                .append(' ').append(parser.getDepth());
+            if (parser.getEventType() == XmlPullParser.TEXT) {
+                event.append(" [").append(parser.getText()).append(']');
+            } else {
+                event.append(" {").append(parser.getNamespace()).append('}').append(parser.getPrefix())
+                    .append(':').append(parser.getName());
+                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                    event.append(" {").append(parser.getAttributeNamespace(i)).append('}')
+                        .append(parser.getAttributePrefix(i)).append(':').append(parser.getAttributeName(i))
+                        .append("=[").append(parser.getAttributeValue(i)).append(']');
+                }
+                for (int i = parser.getNamespaceCount(parser.getDepth() - 1);
+                     i < parser.getNamespaceCount(parser.getDepth()); i++) {
+                    event.append(" xmlns:").append(parser.getNamespacePrefix(i)).append('=')
+                        .append(parser.getNamespaceUri(i));
+                }
+            }
+            events.add(event.toString());
+        }
+        return events;
+    }
+}
@@ -0,0 +1,32 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.utils.XmlEscaper;
+import org.apache.commons.text.StringEscapeUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class XmlEscaperTests {
+
+    @Test
+    public void sameAsCommonsText() {
+        StringBuilder all = new StringBuilder();
+        for (char c = 0; c < 0xffff; c++) {
+            all.append(c).append(' ');
+        }
+        all.append('￿').append("😀\ud83d");
+        String text = all.toString();
+        assertEquals(StringEscapeUtils.escapeXml10(text), XmlEscaper.escape(text));
+        assertEquals("x" + StringEscapeUtils.escapeXml10(text), XmlEscaper.escape(text, new StringBuilder("x")).toString());
+        assertEquals(StringEscapeUtils.escapeXml10("\ude00\ud83d"), XmlEscaper.escape("\ude00\ud83d"));
+    }
+
+    @Test
+    public void unchanged() {
+        String text = "Привет, 😀\t\n";
+        assertSame(text, XmlEscaper.escape(text));
+        assertNull(XmlEscaper.escape(null));
+    }
+}
@@ -0,0 +1,143 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.utils.XmppTokenizer;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class XmppTokenizerTests {
+
+    private final List<String> units = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+
+    private XmppTokenizer tokenizer(final int maxElementSize) {
+        return new XmppTokenizer(new XmppTokenizer.Handler() {
+            @Override
+            public void header(final ByteBuffer header) {
+                units.add("H:" + StandardCharsets.UTF_8.decode(header));
+            }
+
+            @Override
+            public void element(final String name, final ByteBuffer element) {
+                names.add(name);
+                units.add("E:" + StandardCharsets.UTF_8.decode(element));
+            }
+
+            @Override
+            public void text(final ByteBuffer text) {
+                units.add("T:" + StandardCharsets.UTF_8.decode(text));
+            }
+
+            @Override
+            public void footer(final ByteBuffer footer) {
+                units.add("F:" + StandardCharsets.UTF_8.decode(footer));
+            }
+        }, maxElementSize);
+    }
+
+    private static void feed(final XmppTokenizer tokenizer, final String data, final int chunk) throws XmlPullParserException {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i += chunk) {
+            ByteBuffer slice = ByteBuffer.allocateDirect(Math.min(chunk, bytes.length - i));
+            slice.put(bytes, i, slice.capacity()).flip();
+            tokenizer.feed(slice);
+        }
+    }
+
+    @Test
+    public void chunkedStream() throws XmlPullParserException {
+        String stream = "<?xml version='1.0'?>\n<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'> "
+            + "<message to='a>b' id=\"x'y\"><body>Привет &amp; <![CDATA[<x></x>]]><!-- </message> --></body><br/></message>"
+            + "<presence/> <iq type='get'><q xmlns='x'/></iq><stream:stream id='2'><stream:features/></stream:stream>";
+        for (int chunk : new int[]{1, 2, 3, 7, 1000}) {
+            units.clear();
+            names.clear();
+            feed(tokenizer(0), stream, chunk);
+            assertEquals(units.toString(), 11, units.size());
+            assertEquals("T:<?xml version='1.0'?>", units.get(0));
+            assertEquals("T:\n", units.get(1));
+            assertEquals("H:<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>", units.get(2));
+            assertEquals("T: ", units.get(3));
+            assertEquals("E:<message to='a>b' id=\"x'y\"><body>Привет &amp; <![CDATA[<x></x>]]><!-- </message> --></body><br/></message>",
+                units.get(4));
+            assertEquals("E:<presence/>", units.get(5));
+            assertEquals("T: ", units.get(6));
+            assertEquals("E:<iq type='get'><q xmlns='x'/></iq>", units.get(7));
+            assertEquals("H:<stream:stream id='2'>", units.get(8));
+            assertEquals("E:<stream:features/>", units.get(9));
+            assertEquals("F:</stream:stream>", units.get(10));
+            assertSame("message", names.get(0));
+            assertSame("presence", names.get(1));
+            assertSame("iq", names.get(2));
+            assertEquals("stream:features", names.get(3));
+        }
+    }
+
+    @Test
+    public void resetAfterRestart() throws XmlPullParserException {
+        XmppTokenizer tokenizer = tokenizer(0);
+        feed(tokenizer, "<stream:stream><starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/><proc", 1000);
+        tokenizer.reset();
+        feed(tokenizer, "<?xml version='1.0'?><stream:stream><message/>", 1000);
+        assertEquals("[H:<stream:stream>, E:<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>, "
+            + "T:<?xml version='1.0'?>, H:<stream:stream>, E:<message/>]", units.toString());
+    }
+
+    @Test
+    public void elementTooLarge() throws XmlPullParserException {
+        XmppTokenizer tokenizer = tokenizer(40);
+        feed(tokenizer, "<stream:stream><message><body>short</body></message>", 5);
+        try {
+            feed(tokenizer, "<message><body>this one is longer than the limit</body></message>", 5);
+            fail();
+        } catch (XmppTokenizer.ElementTooLargeException e) {
+            assertEquals("[H:<stream:stream>, E:<message><body>short</body></message>]", units.toString());
+        }
+    }
+
+    @Test
+    public void suspend() throws XmlPullParserException {
+        XmppTokenizer[] tokenizer = new XmppTokenizer[1];
+        tokenizer[0] = new XmppTokenizer(new XmppTokenizer.Handler() {
+            @Override
+            public void header(final ByteBuffer header) {
+            }
+
+            @Override
+            public void element(final String name, final ByteBuffer element) {
+                names.add(name);
+                tokenizer[0].suspend();
+            }
+
+            @Override
+            public void text(final ByteBuffer text) {
+            }
+
+            @Override
+            public void footer(final ByteBuffer footer) {
+            }
+        });
+        for (boolean direct : new boolean[]{false, true}) {
+            names.clear();
+            tokenizer[0].reset();
+            byte[] bytes = "<stream:stream><compressed/>\u0000\u0001".getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bytes.length) : ByteBuffer.allocate(bytes.length);
+            buffer.put(bytes).flip();
+            tokenizer[0].feed(buffer);
+            assertEquals("[compressed]", names.toString());
+            assertEquals(2, buffer.remaining());
+        }
+        // as when the element was handled before the feed, e.g. after the handshake
+        tokenizer[0].suspend();
+        byte[] text = "<?xml version='1.0'?> ".getBytes(StandardCharsets.UTF_8);
+        assertEquals(text.length, tokenizer[0].feed(text, 0, text.length));
+    }
+}
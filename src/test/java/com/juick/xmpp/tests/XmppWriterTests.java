@@ -0,0 +1,68 @@
+package com.juick.xmpp.tests;
+
+import com.juick.xmpp.Iq;
+import com.juick.xmpp.Message;
+import com.juick.xmpp.Presence;
+import com.juick.xmpp.Stanza;
+import com.juick.xmpp.extensions.ChatState;
+import com.juick.xmpp.extensions.Delay;
+import com.juick.xmpp.extensions.Nickname;
+import com.juick.xmpp.extensions.ReceiptsRequest;
+import com.juick.xmpp.extensions.ResourceBinding;
+import com.juick.xmpp.extensions.XOOB;
+import com.juick.xmpp.utils.XmppWriter;
+import org.junit.Test;
+import rocks.xmpp.addr.Jid;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class XmppWriterTests {
+
+    private static void assertSameAsToString(final Stanza stanza, final boolean direct) {
+        XmppWriter writer = new XmppWriter(16, direct);
+        stanza.writeTo(writer);
+        assertEquals(stanza.toString(), new String(writer.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void stanzas() {
+        Message msg = new Message();
+        msg.from = Jid.of("vasya@localhost/res");
+        msg.to = Jid.of("masha@localhost");
+        msg.type = Message.Type.chat;
+        msg.id = "it's <1> & \"2\"";
+        msg.subject = "Привет";
+        msg.body = "a\u0001b\u007fc\u0085d\u0090e😀f\ud83dg￾h\t\n";
+        msg.thread = "thread";
+        ChatState state = new ChatState();
+        state.setValue(ChatState.State.composing);
+        msg.addChild(state);
+        msg.addChild(new ReceiptsRequest());
+        Nickname nick = new Nickname();
+        nick.Nickname = "ugnich & co";
+        msg.addChild(nick);
+        Delay delay = new Delay();
+        delay.from = Jid.of("localhost");
+        delay.stamp = "2017-01-01T00:00:00Z";
+        delay.description = "offline <storage>";
+        msg.addChild(delay);
+        XOOB oob = new XOOB();
+        oob.URL = "http://juick.com/?a=1&b=2";
+        msg.addChild(oob);
+        assertSameAsToString(msg, false);
+        assertSameAsToString(msg, true);
+
+        Presence presence = new Presence(Jid.of("juick@localhost"));
+        presence.show = "away";
+        presence.priority = -5;
+        presence.status = "status";
+        assertSameAsToString(presence, false);
+
+        Iq iq = new Iq(Jid.of("juick@localhost"), Jid.of("localhost"));
+        iq.type = Iq.Type.error;
+        iq.addChild(new ResourceBinding());
+        assertSameAsToString(iq, false);
+    }
+}